@@ -13,6 +13,7 @@ public class AtSelectorPutMethod extends PrimObject {
         PrimObjectBlock block = blockFrom(primContext);
         block.markAsMethodBlock();
         ((PrimObjectClass) receiver).methods().put(selector, block);
+        ((PrimObjectClass) receiver).invalidateSelector(selector);
         return receiver;
     }
 
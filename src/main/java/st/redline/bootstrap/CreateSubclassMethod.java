@@ -1,6 +1,7 @@
 /* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
 package st.redline.bootstrap;
 
+import st.redline.core.GlobalBindings;
 import st.redline.core.PrimContext;
 import st.redline.core.PrimObject;
 import st.redline.core.PrimObjectMetaclass;
@@ -18,6 +19,7 @@ public class CreateSubclassMethod extends PrimObject {
         subclassMetaClass.fqn(fqn);
         shareEigenClassImports(subclassClass, fqn);
         PrimObject.CLASSES.put(fqn, subclassClass);
+        GlobalBindings.defined(fqn);
         return subclassClass;
     }
 
@@ -281,6 +281,10 @@ public class Analyser implements NodeVisitor {
         delegate.visit(symbolConstant, value, line);
     }
 
+    public void visit(FoldedExpression foldedExpression, String value, int line) {
+        delegate.visit(foldedExpression, value, line);
+    }
+
     public void visit(UnarySelectorMessageElement unarySelectorMessageElement, String value, int line) {
         delegate.visit(unarySelectorMessageElement, value, line);
     }
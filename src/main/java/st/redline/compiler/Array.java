@@ -54,6 +54,31 @@ class Array extends Primary implements ArrayElement {
         return elements.get(0).line();
     }
 
+    // Answers the elements encoded as a single literal, each element is its kind, the length of its value,
+    // ':' and its value. A nested array's value is its own elements encoded. See PrimObject.literalArray.
+    String literal() {
+        StringBuilder literal = new StringBuilder();
+        for (ArrayElement arrayElement : elements) {
+            String value = arrayElement instanceof Array ? ((Array) arrayElement).literal() : arrayElement.value();
+            literal.append(kindOf(arrayElement)).append(value.length()).append(':').append(value);
+        }
+        return literal.toString();
+    }
+
+    static char kindOf(ArrayElement arrayElement) {
+        if (arrayElement instanceof Array)
+            return 'a';
+        if (arrayElement instanceof Number)
+            return 'n';
+        if (arrayElement instanceof StringConstant)
+            return 's';
+        if (arrayElement instanceof Symbol)
+            return 'y';
+        if (arrayElement instanceof CharacterConstant)
+            return 'c';
+        throw new IllegalStateException("Unknown kind of array element " + arrayElement);
+    }
+
     public void accept(NodeVisitor nodeVisitor) {
         nodeVisitor.visitBegin(this);
         for (ArrayElement arrayElement : elements)
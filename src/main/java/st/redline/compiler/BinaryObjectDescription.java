@@ -6,7 +6,7 @@ import java.util.List;
 
 public class BinaryObjectDescription implements VisitableNode {
 
-    private final Primary primary;
+    private Primary primary;
     private final List<UnarySelector> unarySelectors;
     private final List<BinarySelectorUnaryObjectDescription> binarySelectorUnaryObjectDescriptions;
 
@@ -32,6 +32,12 @@ public class BinaryObjectDescription implements VisitableNode {
         return primary;
     }
 
+    Block literalBlock() {
+        if (primary instanceof Block && unarySelectors.isEmpty() && binarySelectorUnaryObjectDescriptions.isEmpty())
+            return (Block) primary;
+        return null;
+    }
+
     List<UnarySelector> unarySelectors() {
         return  unarySelectors;
     }
@@ -40,7 +46,14 @@ public class BinaryObjectDescription implements VisitableNode {
         return binarySelectorUnaryObjectDescriptions;
     }
 
+    // Folds the arithmetic on a number literal into a FoldedExpression, eg: 60 * 60 * 24.
+    void analyseForFolding() {
+        if (unarySelectors.isEmpty())
+            primary = FoldedExpression.fold(primary, binarySelectorUnaryObjectDescriptions);
+    }
+
     public void accept(NodeVisitor nodeVisitor) {
+        analyseForFolding();
         nodeVisitor.visit(this);
         if (primary != null)
             primary.accept(nodeVisitor);
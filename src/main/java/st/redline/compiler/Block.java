@@ -1,7 +1,10 @@
 /* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
 package st.redline.compiler;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class Block extends Primary {
 
@@ -10,9 +13,11 @@ public class Block extends Primary {
     private final Temporaries temporaries;
     private final Statements statements;
     private Analyser analyser;
-    private String blockReturnType;
     private Map<String, Integer> outerTemporariesRegistry;
     private Map<String, Integer> outerArgumentsRegistry;
+    private List<String> captured = Collections.emptyList();
+    private Set<String> boxed = Collections.emptySet();
+    private boolean inlined = false;
 
     public Block(int line, BlockArguments blockArguments, Temporaries temporaries, Statements statements) {
         this.line = line;
@@ -37,6 +42,37 @@ public class Block extends Primary {
         return temporaries;
     }
 
+    int argumentCount() {
+        if (blockArguments != null)
+            return blockArguments.size();
+        return 0;
+    }
+
+    // A literal block given to a message the compiler inlines (see KeywordExpression) has its
+    // statements compiled in place, so no block class is created for it.
+    boolean canBeInlined(int argumentCount) {
+        return argumentCount() == argumentCount && temporariesCount() == 0;
+    }
+
+    // The digits of the primitive that is the block's first statement, or null. A primitive after
+    // the first statement is only sent when that statement runs, so the block can't be linked to it.
+    String leadingPrimitive() {
+        if (statements == null || !(statements.expression() instanceof SimpleExpression))
+            return null;
+        SimpleExpression expression = (SimpleExpression) statements.expression();
+        if (expression.primary() instanceof Primitive && expression.messageExpression() == null)
+            return ((Primitive) expression.primary()).digits();
+        return null;
+    }
+
+    void inline() {
+        inlined = true;
+    }
+
+    boolean isInlined() {
+        return inlined;
+    }
+
     boolean isBlockWithAnswerExpression() {
         return (statements != null && statements.hasAnswerExpression());
     }
@@ -72,15 +108,6 @@ public class Block extends Primary {
         return 0;
     }
 
-    public void blockReturnType(String blockReturnType) {
-    //		System.out.println("blockReturnType: " + blockReturnType);
-        this.blockReturnType = blockReturnType;
-    }
-
-    public String blockReturnType() {
-        return blockReturnType;
-    }
-
     public void outerTemporariesRegistry(Map<String, Integer> temporariesRegistry) {
         outerTemporariesRegistry = temporariesRegistry;
     }
@@ -104,4 +131,22 @@ public class Block extends Primary {
     public int outerArgument(String name) {
         return outerArgumentsRegistry.get(name);
     }
+
+    // The outer temporaries and arguments the block captures, see CaptureAnalyser.
+    void captured(List<String> captured, Set<String> boxed) {
+        this.captured = captured;
+        this.boxed = boxed;
+    }
+
+    boolean isCaptured(String name) {
+        return captured.contains(name);
+    }
+
+    int capturedIndex(String name) {
+        return captured.indexOf(name);
+    }
+
+    boolean isBoxed(String name) {
+        return boxed.contains(name);
+    }
 }
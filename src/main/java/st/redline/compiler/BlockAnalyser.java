@@ -19,46 +19,49 @@ public class BlockAnalyser extends ProgramAnalyser implements AnalyserDelegate {
     }
 
     public boolean skipBlockVisit(Block block) {
-        return block != thisBlock;
+        return block != thisBlock && !block.isInlined();
+    }
+
+    VisitableNode scope() {
+        return thisBlock;
     }
 
     public void visitBegin(Block block, int line) {
         if (block == thisBlock) {
+            ContextUsageAnalyser contextUsage = new ContextUsageAnalyser(analyser, thisBlock);
+            if (!contextUsage.needsContext())
+                writer.contextFree(contextUsage.argumentCount());
+            if (new CleanBlockAnalyser(analyser, thisBlock).isClean())
+                writer.clean();
+            if (thisBlock.leadingPrimitive() != null)
+                writer.primitive(thisBlock.leadingPrimitive());
             writer.openClass();
         } else
             super.visitBegin(block, line);
     }
 
     public void visitEnd(Block block, int line) {
+        if (block.isInlined()) {
+            super.visitEnd(block, line);
+            return;
+        }
         if (block != thisBlock)
             throw new IllegalStateException("Expected visitEnd of own block. Got " + block);
         writer.closeClass();
     }
 
     public void visit(Identifier identifier, String value, int line) {
-        if (identifier.isOnLoadSideOfExpression()) {
-            if (isOuterArgument(value))
-                writer.pushOuterArgument(thisBlock.outerArgument(value));
-            else if (isOuterTemporary(value))
-                writer.pushOuterTemporary(thisBlock.outerTemporary(value));
-            else
-                super.visit(identifier, value, line);
-        } else {
-            if (isOuterArgument(value))
-                throw new RedlineException("Can't store into an argument, only temporaries and variables.");
-            else if (isOuterTemporary(value))
-                writer.storeOuterTemporary(thisBlock.outerTemporary(value));
-            else
-                super.visit(identifier, value, line);
-        }
-    }
-
-    boolean isOuterTemporary(String name) {
-        return thisBlock.isOuterTemporary(name);
-    }
-
-    boolean isOuterArgument(String name) {
-        return thisBlock.isOuterArgument(name);
+        if (isInlinedArgument(value))
+            super.visit(identifier, value, line);
+        else if (!thisBlock.isCaptured(value))
+            super.visit(identifier, value, line);
+        else if (identifier.isOnLoadSideOfExpression())
+            writer.pushCaptured(thisBlock.capturedIndex(value), thisBlock.isBoxed(value));
+        else if (thisBlock.isOuterArgument(value))
+            throw new RedlineException("Can't store into an argument, only temporaries and variables.");
+        else
+            // a captured temporary the block stores into is always boxed, see CaptureAnalyser.
+            writer.storeCaptured(thisBlock.capturedIndex(value));
     }
 
     public void visit(JVM jvm, int line) {
@@ -68,7 +71,10 @@ public class BlockAnalyser extends ProgramAnalyser implements AnalyserDelegate {
     }
 
     public void visitEnd(AnswerStatement answerStatement) {
-        writer.invokeBlockAnswer(thisBlock.blockReturnType().replaceAll("/", "."));
+        writer.invokeBlockAnswer();
+        // a method block answers here, other blocks have thrown to their home method.
+        if (isInsideInlinedBlock())
+            writer.answer();
     }
 
     public void visit(Self self, int line) {
@@ -77,7 +83,6 @@ public class BlockAnalyser extends ProgramAnalyser implements AnalyserDelegate {
     }
 
     String createBlockName() {
-        BLOCK_NUMBER++;
-        return analyser.className() + "$B" + BLOCK_NUMBER;
+        return analyser.className() + "$B" + BLOCK_NUMBER.incrementAndGet();
     }
 }
@@ -7,6 +7,14 @@ import org.objectweb.asm.Opcodes;
 public class BlockBytecodeWriter extends ClassBytecodeWriter implements Opcodes {
 
     private static final String INVOKE_SIG = "(Lst/redline/core/PrimObject;Lst/redline/core/PrimContext;)Lst/redline/core/PrimObject;";
+    private static final String INIT_SIG = "(Lst/redline/core/PrimObject;Lst/redline/core/PrimContext;[Lst/redline/core/PrimObject;)V";
+    private static final String CONTEXT = "st/redline/core/PrimContext";
+    private static final String STATIC_INVOKE = "_invoke_";  // see IndyBootstrap.
+
+    // when not -1 the block is invoked without a context and its arguments are JVM locals.
+    private int contextFreeArgumentCount = -1;
+    private String primitive;
+    private boolean clean = false;
 
     BlockBytecodeWriter(String className, String packageName, boolean verbose) {
         super(className, packageName, verbose);
@@ -25,15 +33,18 @@ public class BlockBytecodeWriter extends ClassBytecodeWriter implements Opcodes
         super.openInitializeMethod();
     }
 
+    // <init>(receiver, context, captured), see PrimObjectBlock.
     private void createInitializeMethodWithContext() {
-        mv = cv.visitMethod(ACC_PUBLIC, "<init>", "(Lst/redline/core/PrimContext;)V", null, null);
+        mv = cv.visitMethod(ACC_PUBLIC, "<init>", INIT_SIG, null, null);
         mv.visitCode();
         visitLine(0);
         mv.visitVarInsn(ALOAD, 0);
         mv.visitVarInsn(ALOAD, 1);
-        mv.visitMethodInsn(INVOKESPECIAL, superclass(), "<init>", "(Lst/redline/core/PrimContext;)V");
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitVarInsn(ALOAD, 3);
+        mv.visitMethodInsn(INVOKESPECIAL, superclass(), "<init>", INIT_SIG);
         mv.visitInsn(RETURN);
-        mv.visitMaxs(1, 3);
+        mv.visitMaxs(4, 4);
         mv.visitEnd();
     }
 
@@ -53,9 +64,139 @@ public class BlockBytecodeWriter extends ClassBytecodeWriter implements Opcodes
         openInvokeMethod();
     }
 
+    void contextFree(int argumentCount) {
+        contextFreeArgumentCount = argumentCount;
+    }
+
+    void clean() {
+        clean = true;
+    }
+
+    boolean isContextFree() {
+        return contextFreeArgumentCount != -1;
+    }
+
     void openInvokeMethod() {
+        if (isContextFree()) {
+            writeInvokeBridgeMethod();
+            writeArityInvokeBridgeMethod();
+            mv = cv.visitMethod(ACC_PUBLIC + ACC_STATIC, STATIC_INVOKE, staticInvokeSignature(contextFreeArgumentCount), null, null);
+        } else
+            mv = cv.visitMethod(ACC_PROTECTED, "invoke", INVOKE_SIG, null, null);
+        mv.visitCode();
+        pushReceiver();
+    }
+
+    // The body of a context free block is a static method taking the block, receiver and arguments in
+    // the same local slots as an instance method would, so IndyBootstrap can bind a call site directly
+    // to it. invoke(receiver, context) unpacks the context and calls it, so the block can still be
+    // evaluated, or invoked by perform0, with a context.
+    private void writeInvokeBridgeMethod() {
         mv = cv.visitMethod(ACC_PROTECTED, "invoke", INVOKE_SIG, null, null);
         mv.visitCode();
+        pushThis();
         pushReceiver();
+        for (int index = 0; index < contextFreeArgumentCount; index++) {
+            pushContext();
+            pushNumber(index);
+            mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT, "argumentAt", "(I)Lst/redline/core/PrimObject;");
+        }
+        pushContext();
+        mv.visitFieldInsn(GETFIELD, CONTEXT, "lookupClass", "Lst/redline/core/PrimObject;");
+        pushContext();
+        mv.visitFieldInsn(GETFIELD, CONTEXT, "selector", "Ljava/lang/String;");
+        invokeStaticInvoke();
+    }
+
+    // invokeN(receiver, arguments, foundInClass, selector) is used by perform.
+    private void writeArityInvokeBridgeMethod() {
+        mv = cv.visitMethod(ACC_PROTECTED, "invoke" + contextFreeArgumentCount, invokeSignature(contextFreeArgumentCount), null, null);
+        mv.visitCode();
+        for (int index = 0; index < contextFreeArgumentCount + 4; index++)
+            mv.visitVarInsn(ALOAD, index);
+        invokeStaticInvoke();
+    }
+
+    private void invokeStaticInvoke() {
+        mv.visitMethodInsn(INVOKESTATIC, fullyQualifiedClassName(), STATIC_INVOKE, staticInvokeSignature(contextFreeArgumentCount));
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(1, 3);
+        mv.visitEnd();
+    }
+
+    static String invokeSignature(int argumentCount) {
+        return "(" + argumentsSignature(argumentCount);
+    }
+
+    static String staticInvokeSignature(int argumentCount) {
+        return "(Lst/redline/core/PrimObjectBlock;" + argumentsSignature(argumentCount);
+    }
+
+    private static String argumentsSignature(int argumentCount) {
+        StringBuilder signature = new StringBuilder("Lst/redline/core/PrimObject;");
+        for (int index = 0; index < argumentCount; index++)
+            signature.append("Lst/redline/core/PrimObject;");
+        return signature.append("Lst/redline/core/PrimObject;Ljava/lang/String;)Lst/redline/core/PrimObject;").toString();
+    }
+
+    void primitive(String primitive) {
+        this.primitive = primitive;
+    }
+
+    void closeClass() {
+        closeMessageSendsMethod();
+        if (primitive != null)
+            writePrimitiveNumberMethod();
+        if (clean)
+            writeIsCleanMethod();
+        cv.visitEnd();
+    }
+
+    private void writeIsCleanMethod() {
+        mv = cv.visitMethod(ACC_PUBLIC, "isClean", "()Z", null, null);
+        mv.visitCode();
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(1, 1);
+        mv.visitEnd();
+    }
+
+    private void writePrimitiveNumberMethod() {
+        mv = cv.visitMethod(ACC_PUBLIC, "primitiveNumber", "()I", null, null);
+        mv.visitCode();
+        mv.visitLdcInsn(Integer.valueOf(primitive));
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(1, 1);
+        mv.visitEnd();
+    }
+
+    int firstFreeLocal() {
+        if (isContextFree())
+            return contextFreeArgumentCount + 4;
+        return super.firstFreeLocal();
+    }
+
+    // a block without a context creates no blocks that answer, so it isn't the home of any BlockReturn.
+    void answerBlockReturn() {
+        if (isContextFree())
+            mv.visitInsn(ATHROW);
+        else
+            super.answerBlockReturn();
+    }
+
+    // blocks created in a method or block are created by it so they return to the same home.
+    void pushBlockCreator() {
+        pushThis();
+    }
+
+    void pushBlockReceiver() {
+        pushOuterReceiver();
+    }
+
+    void pushArgument(int index) {
+        if (isContextFree())
+            mv.visitVarInsn(ALOAD, 2 + index);
+        else
+            super.pushArgument(index);
     }
 }
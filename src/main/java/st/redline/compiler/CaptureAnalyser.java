@@ -0,0 +1,167 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.compiler;
+
+// Scans a method, block or program to find what the blocks in it capture. A block captures the temporaries and
+// arguments of the method or block it is created in that it refers to (outer names), and only those, rather than
+// the whole context they are in (see PrimObjectBlock). A block only needs the receiver it is created with when it,
+// or a block in it, refers to self, super, instance or global variables, and only needs its home context when it,
+// or a block in it, answers from its home method.
+// A temporary captured by a block is boxed (see PrimBox) when it may change once captured, that is when a block
+// stores into it, when it is stored into after the first block capturing it is created or when it is stored into
+// inside an inlined loop, otherwise each block gets a copy of it.
+// Temporaries and arguments are resolved one level out (see Block outerTemporary), a block referring to those of
+// a method or block more than one level out refers to a variable of the receiver instead.
+
+import java.util.*;
+
+class CaptureAnalyser extends NoOpAnalyser {
+
+    private final VisitableNode node;
+    private final Set<String> outerNames;
+    private final Stack<Set<String>> scopes = new Stack<Set<String>>();
+    private final Set<String> temporaries = new HashSet<String>();
+    private final List<String> captured = new ArrayList<String>();
+    private final Map<String, Integer> firstCaptures = new HashMap<String, Integer>();
+    private final Map<String, Integer> lastStores = new HashMap<String, Integer>();
+    private final Set<String> storedByBlocks = new HashSet<String>();
+    private final Set<String> storedInLoops = new HashSet<String>();
+    private boolean needsReceiver = false;
+    private boolean needsHome = false;
+    private boolean analysed = false;
+    private int position = 0;
+    private int inlinedLoopDepth = 0;
+
+    CaptureAnalyser(Analyser analyser, VisitableNode node, Set<String> outerNames) {
+        super(analyser);
+        this.node = node;
+        this.outerNames = outerNames;
+    }
+
+    // Answers the outer names the block refers to, in the order first referred to.
+    List<String> captured() {
+        analyse();
+        return captured;
+    }
+
+    boolean needsReceiver() {
+        analyse();
+        return needsReceiver;
+    }
+
+    boolean needsHome() {
+        analyse();
+        return needsHome;
+    }
+
+    // Answers the temporaries of the method, block or program that are captured and may change once captured.
+    Set<String> boxedTemporaries() {
+        analyse();
+        Set<String> boxed = new HashSet<String>();
+        for (Map.Entry<String, Integer> capture : firstCaptures.entrySet()) {
+            String name = capture.getKey();
+            if (storedByBlocks.contains(name) || storedInLoops.contains(name)
+                || (lastStores.containsKey(name) && lastStores.get(name) > capture.getValue()))
+                boxed.add(name);
+        }
+        return boxed;
+    }
+
+    private void analyse() {
+        if (analysed)
+            return;
+        analysed = true;
+        node.accept(this);
+    }
+
+    public void visitBegin(Program program) {
+        scopes.push(new HashSet<String>());
+    }
+
+    public boolean skipBlockVisit(Block block) {
+        return false;
+    }
+
+    public void visitBegin(Block block, int line) {
+        if (!block.isInlined() || scopes.isEmpty())
+            scopes.push(new HashSet<String>());
+    }
+
+    public void visitEnd(Block block, int line) {
+        if (!block.isInlined())
+            scopes.pop();
+    }
+
+    public void visitBegin(SimpleExpression simpleExpression) {
+        if (simpleExpression.isInlinedLoop())
+            inlinedLoopDepth++;
+    }
+
+    public void visitEnd(SimpleExpression simpleExpression) {
+        if (simpleExpression.isInlinedLoop())
+            inlinedLoopDepth--;
+    }
+
+    public void visit(BlockArgument blockArgument, String value, int line) {
+        scopes.peek().add(value);
+    }
+
+    public void visit(Temporary temporary, String value, int line) {
+        scopes.peek().add(value);
+        if (scopes.size() == 1)
+            temporaries.add(value);
+    }
+
+    public void visit(Identifier identifier, String value, int line) {
+        position++;
+        boolean store = !identifier.isOnLoadSideOfExpression();
+        int depth = scopes.size() - 1;
+        int scope = scopeOf(value);
+        if (scope == -1) {
+            if (depth == 0 && outerNames.contains(value)) {
+                if (!captured.contains(value))
+                    captured.add(value);
+            } else
+                needsReceiver = true;
+        } else if (depth - scope > 1) {
+            needsReceiver = true;
+        } else if (scope == 0 && temporaries.contains(value)) {
+            if (depth == 1) {
+                if (!firstCaptures.containsKey(value))
+                    firstCaptures.put(value, position);
+                if (store)
+                    storedByBlocks.add(value);
+            } else if (store) {
+                lastStores.put(value, position);
+                if (inlinedLoopDepth > 0)
+                    storedInLoops.add(value);
+            }
+        }
+    }
+
+    private int scopeOf(String name) {
+        for (int index = scopes.size() - 1; index >= 0; index--)
+            if (scopes.get(index).contains(name))
+                return index;
+        return -1;
+    }
+
+    public void visitBegin(AnswerStatement answerStatement) {
+        needsHome = true;
+    }
+
+    public void visit(Self self, int line) {
+        needsReceiver = true;
+    }
+
+    public void visit(Super aSuper, int line) {
+        needsReceiver = true;
+    }
+
+    public void visit(JVM jvm, int line) {
+        needsReceiver = true;
+    }
+
+    public void visit(Primitive primitive, String keyword, int line, String digits) {
+        needsReceiver = true;
+    }
+}
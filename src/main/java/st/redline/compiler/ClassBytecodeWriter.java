@@ -8,9 +8,10 @@ import org.objectweb.asm.Opcodes;
 import st.redline.core.ClassPathUtilities;
 
 import java.io.PrintWriter;
-import java.math.BigDecimal;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.Handle;
 
@@ -18,6 +19,8 @@ public class ClassBytecodeWriter implements Opcodes {
 
     private static final String OBJECT = "st/redline/core/PrimObject";
     private static final String CONTEXT = "st/redline/core/PrimContext";
+    private static final String BLOCK = "st/redline/core/PrimObjectBlock";
+    private static final String BLOCK_RETURN = "st/redline/core/BlockReturn";
     private static final String SEND_MESSAGES = "_sendMessages_";
     private static final String SEND_MESSAGES_SIG = "(Lst/redline/core/PrimObject;Lst/redline/core/PrimContext;)Lst/redline/core/PrimObject;";
     private static final String RESULT = "sendMessagesResult";
@@ -36,15 +39,8 @@ public class ClassBytecodeWriter implements Opcodes {
 
     private final static Map<String, Integer> OPCODES = new HashMap<String, Integer>();
     
-    private final static int BYTECODE_VERSION;
-    static {
-        int compareTo17 = new BigDecimal(System.getProperty("java.specification.version")).compareTo(new BigDecimal("1.7"));
-        if (compareTo17 >= 0) {
-            BYTECODE_VERSION = V1_7;
-        } else {
-            BYTECODE_VERSION = V1_5;
-        }
-    }
+    // Sends, variables, literals and blocks are linked with invokedynamic (see IndyBootstrap), which needs Java 7.
+    private final static int BYTECODE_VERSION = V1_7;
 
     private final String className;
     private final String packageName;
@@ -54,6 +50,8 @@ public class ClassBytecodeWriter implements Opcodes {
     protected ClassVisitor cv;
     protected MethodVisitor mv;
     private String fullyQualifiedClassName;
+    private int localsAllocated = 0;
+    private final Set<Integer> boxedTemporaries = new HashSet<Integer>();
 
     ClassBytecodeWriter(String className, String packageName, boolean verbose) {
         this(className, packageName, verbose, null);
@@ -97,6 +95,22 @@ public class ClassBytecodeWriter implements Opcodes {
         return className.substring(0, index);
     }
 
+    String fullyQualifiedClassName() {
+        return fullyQualifiedClassName;
+    }
+
+    void contextFree(int argumentCount) {
+        // only blocks can be invoked without a context, see BlockBytecodeWriter.
+    }
+
+    void clean() {
+        // only blocks can be clean, see BlockBytecodeWriter.
+    }
+
+    void primitive(String primitive) {
+        // only blocks answer the primitive they start with, see BlockBytecodeWriter.
+    }
+
     void methodVisitor(MethodVisitor methodVisitor) {
         mv = methodVisitor;
     }
@@ -210,34 +224,54 @@ public class ClassBytecodeWriter implements Opcodes {
     void invokeObjectPerform(String selector, int argumentCount, boolean sendToSuper) {
         pushLiteral(selector);
         if (sendToSuper)
-            mv.visitMethodInsn(INVOKEVIRTUAL, OBJECT, "superPerform", "(Lst/redline/core/PrimContext;" + SIGNATURES[argumentCount].substring(1));
+            mv.visitInvokeDynamicInsn(
+                    "superPerform",
+                    "(Lst/redline/core/PrimObject;Lst/redline/core/PrimContext;" + SIGNATURES[argumentCount].substring(1),
+                    bootstrapHandle("superPerformBootstrap"));
         else
-            if (BYTECODE_VERSION == V1_7) {
-                mv.visitInvokeDynamicInsn(
-                        "perform",
-                        "(Lst/redline/core/PrimObject;" + SIGNATURES[argumentCount].substring(1),
-                        new Handle(
-                                H_INVOKESTATIC,
-                                "st/redline/core/IndyBootstrap",
-                                "performBootstrap",
-                                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;"));
-            } else {
-                mv.visitMethodInsn(INVOKEVIRTUAL, OBJECT, "perform", SIGNATURES[argumentCount]);
-            }
+            mv.visitInvokeDynamicInsn(
+                    "perform",
+                    "(Lst/redline/core/PrimObject;" + SIGNATURES[argumentCount].substring(1),
+                    bootstrapHandle("performBootstrap"));
+    }
+
+    // a binary send of one of ProgramAnalyser.ARITHMETIC_SELECTORS, linked to the primitive when both
+    // operands are SmallIntegers or Floats, otherwise sent as usual.
+    void invokeObjectArithmetic(String selector) {
+        pushLiteral(selector);
+        mv.visitInvokeDynamicInsn(
+                "arithmetic",
+                "(Lst/redline/core/PrimObject;" + SIGNATURES[1].substring(1),
+                bootstrapHandle("arithmeticBootstrap"));
+    }
+
+    private Handle bootstrapHandle(String name) {
+        return new Handle(
+                H_INVOKESTATIC,
+                "st/redline/core/IndyBootstrap",
+                name,
+                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;");
+    }
+
+    // the bootstrap of a site that is given a constant, a literal's value or a block's name.
+    private Handle bootstrapHandleWithValue(String name) {
+        return new Handle(
+                H_INVOKESTATIC,
+                "st/redline/core/IndyBootstrap",
+                name,
+                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;)Ljava/lang/invoke/CallSite;");
     }
 
     void invokeObjectCreate(String type, String value, int line) {
         visitLine(line);
-        pushLiteral(value);
-        mv.visitMethodInsn(INVOKESTATIC, OBJECT, type, "(Ljava/lang/Object;)Lst/redline/core/PrimObject;");
+        // the literal is created once, see IndyBootstrap.
+        mv.visitInvokeDynamicInsn(type, "()Lst/redline/core/PrimObject;", bootstrapHandleWithValue("literalBootstrap"), value);
     }
 
-    void invokeObjectCompileBlock(String name, int line) {
-        visitLine(line);
-        pushReceiver();
-        pushLiteral(name);
-        pushContext();
-        mv.visitMethodInsn(INVOKEVIRTUAL, OBJECT, "block", "(Ljava/lang/String;Lst/redline/core/PrimContext;)Lst/redline/core/PrimObject;");
+    // The block creator, receiver, context and captured variables are on the stack, see ProgramAnalyser.
+    void invokeObjectCompileBlock(String name) {
+        // the block is compiled once and the site then creates instances of it directly, see IndyBootstrap.
+        mv.visitInvokeDynamicInsn("block", "(Lst/redline/core/PrimObject;Lst/redline/core/PrimObject;Lst/redline/core/PrimContext;[Lst/redline/core/PrimObject;)Lst/redline/core/PrimObject;", bootstrapHandleWithValue("blockBootstrap"), name);
     }
 
     void invokeObjectString(String value, int line) {
@@ -256,46 +290,47 @@ public class ClassBytecodeWriter implements Opcodes {
         invokeObjectCreate("number", value, line);
     }
 
+    void invokeObjectLiteralArray(String value, int line) {
+        invokeObjectCreate("literalArray", value, line);
+    }
+
+    void invokeObjectFolded(String value, int line) {
+        invokeObjectCreate("folded", value, line);
+    }
+
     void invokeVariableAt(String name, int line) {
         visitLine(line);
         pushReceiver();
         pushLiteral(name);
-        mv.visitMethodInsn(INVOKEVIRTUAL, OBJECT, "variableAt", "(Ljava/lang/String;)Lst/redline/core/PrimObject;");
+        mv.visitInvokeDynamicInsn("variableAt", "(Lst/redline/core/PrimObject;Ljava/lang/String;)Lst/redline/core/PrimObject;", bootstrapHandle("variableBootstrap"));
     }
 
     void invokeVariablePutAt(String name, int line) {
         visitLine(line);
         pushLiteral(name);
         pushReceiver();
-        mv.visitMethodInsn(INVOKESTATIC, OBJECT, "variablePutAtIn", "(Lst/redline/core/PrimObject;Ljava/lang/String;Lst/redline/core/PrimObject;)Lst/redline/core/PrimObject;");
-    }
-
-    void invokeObjectArray(int size) {
-        pushNumber(size);
-        mv.visitMethodInsn(INVOKESTATIC, OBJECT, "array", "(I)Lst/redline/core/PrimObject;");
-    }
-
-    void invokeArrayPutAt(int index, int line) {
-        visitLine(line);
-        pushNumber(index);
-        mv.visitMethodInsn(INVOKESTATIC, OBJECT, "putAt", "(Lst/redline/core/PrimObject;Lst/redline/core/PrimObject;I)Lst/redline/core/PrimObject;");
+        mv.visitInvokeDynamicInsn("variablePutAt", "(Lst/redline/core/PrimObject;Ljava/lang/String;Lst/redline/core/PrimObject;)Lst/redline/core/PrimObject;", bootstrapHandle("variableBootstrap"));
     }
 
     void invokePrimitive(int line, String primitive) {
-        // TODO.JCL - cater for case where primitive fails - for now return primitive result.
+        // A primitive that fails answers null, which is left as the value of the primitive statement so the method
+        // carries on with the code after it, otherwise the result is answered.
         // Doing ARETURN here means there can be more than one ARETURN emitted, this is OK.
         visitLine(line);
         pushThis();
         pushReceiver();
         pushContext();
         mv.visitMethodInsn(INVOKEVIRTUAL, OBJECT, "p" + primitive, PRIMITIVE_SIG);
+        Label failed = new Label();
+        mv.visitInsn(DUP);
+        mv.visitJumpInsn(IFNULL, failed);
         mv.visitInsn(ARETURN);
+        mv.visitLabel(failed);
     }
 
-    public void invokeBlockAnswer(String blockReturnType) {
+    public void invokeBlockAnswer() {
         pushThis();
-        pushLiteral(blockReturnType);
-        mv.visitMethodInsn(INVOKESTATIC, OBJECT, "blockAnswer", "(Lst/redline/core/PrimObject;Lst/redline/core/PrimObjectBlock;Ljava/lang/String;)Lst/redline/core/PrimObject;");
+        mv.visitMethodInsn(INVOKESTATIC, OBJECT, "blockAnswer", "(Lst/redline/core/PrimObject;Lst/redline/core/PrimObjectBlock;)Lst/redline/core/PrimObject;");
     }
 
     void pop() {
@@ -315,37 +350,56 @@ public class ClassBytecodeWriter implements Opcodes {
         mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT, "argumentAtAt", "(II)Lst/redline/core/PrimObject;");
     }
 
-    void pushOuterArgument(int index) {
+    // a temporary captured by blocks that may change once captured is kept in a box, see CaptureAnalyser.
+    void boxTemporary(int index) {
+        boxedTemporaries.add(index);
         pushContext();
         pushNumber(index);
-        pushReceiver();
-        mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT, "argumentAtFrom", "(ILst/redline/core/PrimObject;)Lst/redline/core/PrimObject;");
+        mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT, "boxTemporaryAt", "(I)V");
+    }
+
+    boolean isBoxedTemporary(int index) {
+        return boxedTemporaries.contains(index);
     }
 
     void pushTemporary(int index) {
         pushContext();
         pushNumber(index);
-        mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT, "temporaryAt", "(I)Lst/redline/core/PrimObject;");
+        mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT, isBoxedTemporary(index) ? "boxedTemporaryAt" : "temporaryAt", "(I)Lst/redline/core/PrimObject;");
     }
 
-    void pushOuterTemporary(int index) {
+    // pushes the box of a boxed temporary rather than its value.
+    void pushTemporaryToCapture(int index) {
         pushContext();
         pushNumber(index);
-        pushReceiver();
-        mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT, "temporaryAtFrom", "(ILst/redline/core/PrimObject;)Lst/redline/core/PrimObject;");
+        mv.visitMethodInsn(INVOKEVIRTUAL, CONTEXT, "temporaryAt", "(I)Lst/redline/core/PrimObject;");
     }
 
     void storeTemporary(int index) {
         pushNumber(index);
         pushContext();
-        mv.visitMethodInsn(INVOKESTATIC, CONTEXT, "temporaryPutAtIn", "(Lst/redline/core/PrimObject;ILst/redline/core/PrimContext;)V");
+        mv.visitMethodInsn(INVOKESTATIC, CONTEXT, isBoxedTemporary(index) ? "boxedTemporaryPutAtIn" : "temporaryPutAtIn", "(Lst/redline/core/PrimObject;ILst/redline/core/PrimContext;)V");
     }
 
-    void storeOuterTemporary(int index) {
+    void pushCaptured(int index, boolean boxed) {
+        pushThis();
         pushNumber(index);
-        pushContext();
-        pushReceiver();
-        mv.visitMethodInsn(INVOKESTATIC, CONTEXT, "temporaryPutAtInFrom", "(Lst/redline/core/PrimObject;ILst/redline/core/PrimContext;Lst/redline/core/PrimObject;)V");
+        mv.visitMethodInsn(INVOKEVIRTUAL, BLOCK, boxed ? "boxedCapturedAt" : "capturedAt", "(I)Lst/redline/core/PrimObject;");
+    }
+
+    void storeCaptured(int index) {
+        pushNumber(index);
+        pushThis();
+        mv.visitMethodInsn(INVOKESTATIC, BLOCK, "boxedCapturedPutAtIn", "(Lst/redline/core/PrimObject;ILst/redline/core/PrimObjectBlock;)V");
+    }
+
+    void pushCapturedArray(int size) {
+        pushNumber(size);
+        mv.visitTypeInsn(ANEWARRAY, OBJECT);
+    }
+
+    void storeArrayElement() {
+        mv.visitInsn(AASTORE);
     }
 
     void pushOuterReceiver() {
@@ -369,6 +423,16 @@ public class ClassBytecodeWriter implements Opcodes {
         mv.visitVarInsn(ALOAD, 1);
     }
 
+    // the object a block is created by, which gives the block its home (see PrimObjectBlock).
+    void pushBlockCreator() {
+        pushReceiver();
+    }
+
+    // the receiver self refers to in blocks created here.
+    void pushBlockReceiver() {
+        pushReceiver();
+    }
+
     void pushContext() {
         mv.visitVarInsn(ALOAD, 2);
     }
@@ -403,7 +467,52 @@ public class ClassBytecodeWriter implements Opcodes {
         mv.visitLineNumber(line, l0);
     }
 
-    void setupTryForBlockReturn(SimpleExpression simpleExpression, String blockReturnType) {
+    // JVM locals for inlined loops (see ProgramAnalyser) follow the arguments of the message sends method.
+    int newLocal() {
+        return firstFreeLocal() + localsAllocated++;
+    }
+
+    int firstFreeLocal() {
+        return 3;
+    }
+
+    void pushLocal(int index) {
+        mv.visitVarInsn(ALOAD, index);
+    }
+
+    void storeLocal(int index) {
+        mv.visitVarInsn(ASTORE, index);
+    }
+
+    Object newLabel() {
+        return new Label();
+    }
+
+    void visitLabel(Object label) {
+        mv.visitLabel((Label) label);
+    }
+
+    void jump(Object label) {
+        mv.visitJumpInsn(GOTO, (Label) label);
+    }
+
+    // Pops the stack top when it is true (or false), otherwise leaves it for the code jumped to.
+    void popOrJumpUnless(boolean trueness, Object label) {
+        pushDuplicate();
+        popAndJumpUnless(trueness, label);
+        pop();
+    }
+
+    void popAndJumpUnless(boolean trueness, Object label) {
+        mv.visitMethodInsn(INVOKEVIRTUAL, OBJECT, trueness ? "isTrueObject" : "isFalseObject", "()Z");
+        mv.visitJumpInsn(IFEQ, (Label) label);
+    }
+
+    void answer() {
+        mv.visitInsn(ARETURN);
+    }
+
+    void setupTryForBlockReturn(SimpleExpression simpleExpression) {
         Label l0 = new Label();
         Label l1 = new Label();
         Label l2 = new Label();
@@ -413,11 +522,12 @@ public class ClassBytecodeWriter implements Opcodes {
         simpleExpression.label1(l1);
         simpleExpression.label2(l2);
 
-        mv.visitTryCatchBlock(l0, l1, l2, blockReturnType);
+        mv.visitTryCatchBlock(l0, l1, l2, BLOCK_RETURN);
         mv.visitLabel(l0);
     }
 
-    void setupCatchForBlockReturn(SimpleExpression simpleExpression, String blockReturnType) {
+    // A BlockReturn is answered when this context is its home, otherwise answerIn throws it on.
+    void setupCatchForBlockReturn(SimpleExpression simpleExpression) {
         Label l1 = (Label) simpleExpression.label1();
         Label l2 = (Label) simpleExpression.label2();
 
@@ -426,14 +536,19 @@ public class ClassBytecodeWriter implements Opcodes {
         mv.visitJumpInsn(GOTO, l3);
         mv.visitLabel(l2);
 
-        mv.visitFrame(Opcodes.F_SAME1, 0, null, 1, new Object[] {blockReturnType});
-        mv.visitMethodInsn(INVOKEVIRTUAL, blockReturnType, "answer", "()Lst/redline/core/PrimObject;");
-        mv.visitInsn(ARETURN);
+        mv.visitFrame(Opcodes.F_SAME1, 0, null, 1, new Object[] {BLOCK_RETURN});
+        answerBlockReturn();
 
         mv.visitLabel(l3);
         mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
     }
 
+    void answerBlockReturn() {
+        pushContext();
+        mv.visitMethodInsn(INVOKEVIRTUAL, BLOCK_RETURN, "answerIn", "(Lst/redline/core/PrimContext;)Lst/redline/core/PrimObject;");
+        mv.visitInsn(ARETURN);
+    }
+
     public void visitInsn(String opcode) {
         mv.visitInsn(opcodeValue(opcode));
     }
@@ -0,0 +1,70 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.compiler;
+
+// Scans a block to decide if it is clean, that is it refers to nothing outside itself. A clean block only refers
+// to its own arguments and temporaries and those of the blocks inlined in it, not self, super, instance variables,
+// globals or the temporaries and arguments of the method or block it is in. It doesn't answer from its home method
+// or create other blocks. A clean block doesn't need the context it is created in, so one instance of it is
+// shared by every evaluation (see PrimObject createBlockInstance and IndyBootstrap).
+
+import java.util.HashSet;
+import java.util.Set;
+
+class CleanBlockAnalyser extends NoOpAnalyser {
+
+    private final Block block;
+    private final Set<String> names = new HashSet<String>();
+    private boolean clean = true;
+
+    CleanBlockAnalyser(Analyser analyser, Block block) {
+        super(analyser);
+        this.block = block;
+    }
+
+    boolean isClean() {
+        block.accept(this);
+        return clean;
+    }
+
+    public boolean skipBlockVisit(Block block) {
+        return block != this.block && !block.isInlined();
+    }
+
+    public void visitBegin(Block block, int line) {
+        if (block != this.block && !block.isInlined())
+            clean = false;
+    }
+
+    public void visit(BlockArgument blockArgument, String value, int line) {
+        names.add(value);
+    }
+
+    public void visit(Temporary temporary, String value, int line) {
+        names.add(value);
+    }
+
+    public void visit(Identifier identifier, String value, int line) {
+        if (!names.contains(value))
+            clean = false;
+    }
+
+    public void visitBegin(AnswerStatement answerStatement) {
+        clean = false;
+    }
+
+    public void visit(Self self, int line) {
+        clean = false;
+    }
+
+    public void visit(Super aSuper, int line) {
+        clean = false;
+    }
+
+    public void visit(JVM jvm, int line) {
+        clean = false;
+    }
+
+    public void visit(Primitive primitive, String keyword, int line, String digits) {
+        clean = false;
+    }
+}
@@ -0,0 +1,72 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.compiler;
+
+// Scans a block to decide if its compiled form needs a PrimContext when invoked.
+// A block that only refers to its receiver, its own arguments, variables and the variables it captures
+// can take its arguments as JVM locals (see BlockBytecodeWriter), so sends to it don't allocate a context.
+// Blocks created in it capture only what they refer to (see CaptureAnalyser), so only blocks that answer
+// from their home method need the context.
+
+import java.util.HashSet;
+
+class ContextUsageAnalyser extends NoOpAnalyser {
+
+    static final int MAXIMUM_ARGUMENTS = 5;
+
+    private final Block block;
+    private int argumentCount = 0;
+    private boolean needsContext = false;
+    private int inlinedBlockDepth = 0;
+
+    ContextUsageAnalyser(Analyser analyser, Block block) {
+        super(analyser);
+        this.block = block;
+    }
+
+    boolean needsContext() {
+        block.accept(this);
+        return needsContext || argumentCount > MAXIMUM_ARGUMENTS;
+    }
+
+    int argumentCount() {
+        return argumentCount;
+    }
+
+    public boolean skipBlockVisit(Block block) {
+        return block != this.block && !block.isInlined();
+    }
+
+    public void visitBegin(Block block, int line) {
+        // nested blocks that answer are created with the context as their home, inlined blocks are not created.
+        if (block.isInlined())
+            inlinedBlockDepth++;
+        else if (block != this.block && new CaptureAnalyser(null, block, new HashSet<String>()).needsHome())
+            needsContext = true;
+    }
+
+    public void visitEnd(Block block, int line) {
+        if (block.isInlined())
+            inlinedBlockDepth--;
+    }
+
+    public void visitBegin(BlockArguments blockArguments, int argumentCount) {
+        if (inlinedBlockDepth == 0)
+            this.argumentCount = argumentCount;
+    }
+
+    public void visitBegin(Temporaries temporaries) {
+        needsContext = true;
+    }
+
+    public void visit(Super aSuper, int line) {
+        needsContext = true;
+    }
+
+    public void visit(JVM jvm, int line) {
+        needsContext = true;
+    }
+
+    public void visit(Primitive primitive, String keyword, int line, String digits) {
+        needsContext = true;
+    }
+}
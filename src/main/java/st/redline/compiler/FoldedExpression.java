@@ -0,0 +1,49 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.compiler;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Replaces a number literal and the arithmetic sent to it with number literal arguments, eg: 60 * 60 * 24.
+// The value is the numbers and selectors separated by spaces. The expression is evaluated once by the number
+// methods when first executed and the result is reused while those methods are unchanged (see IndyBootstrap).
+
+class FoldedExpression extends ValuePrimary {
+
+    static final List<String> FOLDED_SELECTORS = Arrays.asList("+", "-", "*", "/");
+
+    FoldedExpression(String value, int line) {
+        super(value, line);
+    }
+
+    // Answers the receiver with the leading messages that can be folded into it, which are removed from
+    // the messages, or answers the receiver when there are none.
+    static Primary fold(Primary receiver, List<BinarySelectorUnaryObjectDescription> messages) {
+        if (!(receiver instanceof Number) || ((Number) receiver).isInsideArray())
+            return receiver;
+        StringBuilder value = new StringBuilder(((Number) receiver).value());
+        int folded = 0;
+        while (folded < messages.size() && isFoldable(messages.get(folded))) {
+            BinarySelectorUnaryObjectDescription message = messages.get(folded++);
+            value.append(' ').append(message.binarySelector().value())
+                 .append(' ').append(((Number) message.unaryObjectDescription().primary()).value());
+        }
+        if (folded == 0)
+            return receiver;
+        messages.subList(0, folded).clear();
+        return new FoldedExpression(value.toString(), receiver.line());
+    }
+
+    static boolean isFoldable(BinarySelectorUnaryObjectDescription message) {
+        UnaryObjectDescription argument = message.unaryObjectDescription();
+        return message.binarySelector() != null
+                && FOLDED_SELECTORS.contains(message.binarySelector().value())
+                && argument != null
+                && argument.primary() instanceof Number
+                && argument.unarySelectors().isEmpty();
+    }
+
+    public void accept(NodeVisitor nodeVisitor) {
+        nodeVisitor.visit(this, value(), line());
+    }
+}
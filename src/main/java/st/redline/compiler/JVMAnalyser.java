@@ -228,6 +228,9 @@ public class JVMAnalyser implements AnalyserDelegate, Opcodes {
     public void visit(SymbolConstant symbolConstant, String value, int line) {
     }
 
+    public void visit(FoldedExpression foldedExpression, String value, int line) {
+    }
+
     public void visit(UnarySelectorMessageElement unarySelectorMessageElement, String value, int line) {
         writer.visitLine(line);
         writer.visitInsn(value.toUpperCase());
@@ -2,13 +2,22 @@
 package st.redline.compiler;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class KeywordExpression implements MessageExpression {
 
+    // Messages compiled inline when their block arguments are literal blocks, as other Smalltalks do.
+    // whileTrue: and whileFalse: are only inlined when their receiver is a literal block too.
+    static final List<String> INLINED_CONDITIONALS = Arrays.asList("ifTrue:", "ifFalse:", "ifTrue:ifFalse:", "ifFalse:ifTrue:", "and:", "or:");
+    static final List<String> INLINED_LOOPS = Arrays.asList("whileTrue:", "whileFalse:");
+    static final String INLINED_TO_DO = "to:do:";
+
     private final List<BinaryObjectDescription> binaryObjectDescriptions;
     private final StringBuffer keywords;
     private int line;
+    private boolean inlined = false;
+    private boolean analysedForInlining = false;
 
     KeywordExpression() {
         binaryObjectDescriptions = new ArrayList<BinaryObjectDescription>();
@@ -31,6 +40,61 @@ public class KeywordExpression implements MessageExpression {
         return binaryObjectDescriptions;
     }
 
+    int line() {
+        return line;
+    }
+
+    boolean isInlined() {
+        return inlined;
+    }
+
+    // Called by the SimpleExpression this is the message of, before it is visited. The receiver is null when
+    // the message is sent to the answer of unary or binary messages, so it is never inlined as a loop.
+    void analyseForInlining(Primary receiver) {
+        if (analysedForInlining)
+            return;
+        analysedForInlining = true;
+        if (isSuper(receiver))
+            return;
+        String selector = keywords();
+        if (INLINED_CONDITIONALS.contains(selector))
+            inlined = argumentsAreInlinableBlocks(0);
+        else if (INLINED_LOOPS.contains(selector))
+            inlined = receiver instanceof Block && ((Block) receiver).canBeInlined(0) && argumentsAreInlinableBlocks(0);
+        else if (INLINED_TO_DO.equals(selector))
+            // the loop variable is a JVM local, so blocks created within the loop body couldn't see it.
+            inlined = argumentIsInlinableBlock(1, 1) && !new NestedBlockFinder(literalBlock(1)).hasNestedBlocks();
+        if (!inlined)
+            return;
+        if (INLINED_LOOPS.contains(selector))
+            ((Block) receiver).inline();
+        for (int index = 0; index < binaryObjectDescriptions.size(); index++) {
+            Block block = literalBlock(index);
+            if (block != null)
+                block.inline();
+        }
+    }
+
+    private boolean isSuper(Primary receiver) {
+        return receiver instanceof Identifier && "super".equals(((Identifier) receiver).value());
+    }
+
+    private boolean argumentsAreInlinableBlocks(int argumentCount) {
+        for (int index = 0; index < binaryObjectDescriptions.size(); index++)
+            if (!argumentIsInlinableBlock(index, argumentCount))
+                return false;
+        return true;
+    }
+
+    private boolean argumentIsInlinableBlock(int index, int argumentCount) {
+        Block block = literalBlock(index);
+        return block != null && block.canBeInlined(argumentCount);
+    }
+
+    Block literalBlock(int index) {
+        return binaryObjectDescriptions.get(index).literalBlock();
+    }
+
     public void accept(NodeVisitor nodeVisitor) {
         String keywords = keywords();
         nodeVisitor.visitBegin(this, keywords, binaryObjectDescriptions.size(), line);
@@ -0,0 +1,29 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.compiler;
+
+// Finds if a block contains blocks that are not inlined, blocks inlined into it are searched too.
+
+class NestedBlockFinder extends NoOpAnalyser {
+
+    private final Block block;
+    private boolean found = false;
+
+    NestedBlockFinder(Block block) {
+        super(null);
+        this.block = block;
+    }
+
+    boolean hasNestedBlocks() {
+        block.accept(this);
+        return found;
+    }
+
+    public boolean skipBlockVisit(Block block) {
+        return block != this.block && !block.isInlined();
+    }
+
+    public void visitBegin(Block block, int line) {
+        if (block != this.block && !block.isInlined())
+            found = true;
+    }
+}
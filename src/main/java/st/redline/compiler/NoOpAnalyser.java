@@ -172,6 +172,9 @@ class NoOpAnalyser implements AnalyserDelegate {
     public void visit(SymbolConstant symbolConstant, String value, int line) {
     }
 
+    public void visit(FoldedExpression foldedExpression, String value, int line) {
+    }
+
     public void visit(UnarySelectorMessageElement unarySelectorMessageElement, String value, int line) {
     }
 
@@ -56,6 +56,7 @@ interface NodeVisitor {
     void visit(StringConstant stringConstant, String value, int index, boolean insideArray, int line);
     void visit(Symbol symbol, String value, int index, boolean insideArray, int line);
     void visit(SymbolConstant symbolConstant, String value, int line);
+    void visit(FoldedExpression foldedExpression, String value, int line);
     void visit(UnarySelectorMessageElement unarySelectorMessageElement, String value, int line);
     void visit(Primitive primitive, String keyword, int line, String digits);
 
@@ -6,12 +6,22 @@ import st.redline.core.RedlineException;
 import st.redline.core.SmalltalkEnvironment;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ProgramAnalyser implements AnalyserDelegate {
 
-    protected static int BLOCK_NUMBER = 0;
+    // blocks may be compiled on more than one thread, see BlockCompiler.
+    protected static final AtomicInteger BLOCK_NUMBER = new AtomicInteger();
+
+    // binary selectors sent through call sites specialised for numbers, see IndyBootstrap.
+    static final List<String> ARITHMETIC_SELECTORS = Arrays.asList("+", "-", "*", "/", "<", ">", "<=", ">=", "=", "~=");
 
     protected final Analyser analyser;
     protected final ClassBytecodeWriter writer;
@@ -21,9 +31,12 @@ public class ProgramAnalyser implements AnalyserDelegate {
     private Map<String, Integer> temporariesRegistry;
     private int temporariesIndex = 0;
     private boolean sendToSuper = false;
-    private boolean hasBlockWithAnswerExpression = false;
+    private final Stack<InlinedMessage> inlinedMessages = new Stack<InlinedMessage>();
+    private final Map<String, Integer> inlinedArgumentsRegistry = new HashMap<String, Integer>();
+    private int inlinedBlockDepth = 0;
     private String packageName;
     private String sourcePath;
+    private Program program;
 
     ProgramAnalyser(Analyser analyser, String className, String packageName, String sourcePath, boolean verbose) {
         this(analyser, new ClassBytecodeWriter(className, packageName, verbose), verbose, packageName, sourcePath);
@@ -62,9 +75,15 @@ public class ProgramAnalyser implements AnalyserDelegate {
     }
 
     public void visitBegin(Program program) {
+        this.program = program;
         writer.openClass();
     }
 
+    // the program, method or block the temporaries being compiled are in.
+    VisitableNode scope() {
+        return program;
+    }
+
     public void visitEnd(Program program) {
         writer.closeClass();
     }
@@ -86,6 +105,8 @@ public class ProgramAnalyser implements AnalyserDelegate {
     }
 
     public void visitEnd(Temporaries temporaries) {
+        for (String name : new CaptureAnalyser(analyser, scope(), new HashSet<String>()).boxedTemporaries())
+            writer.boxTemporary(temporariesRegistry.get(name));
     }
 
     public void visitBegin(Statements statements) {
@@ -98,6 +119,8 @@ public class ProgramAnalyser implements AnalyserDelegate {
     }
 
     public void visitEnd(AnswerStatement answerStatement) {
+        if (isInsideInlinedBlock())
+            writer.answer();
     }
 
     public void visit(ReferencedClass referencedClass, String value) {
@@ -118,21 +141,17 @@ public class ProgramAnalyser implements AnalyserDelegate {
     }
 
     public void visitBegin(SimpleExpression simpleExpression) {
-        hasBlockWithAnswerExpression = simpleExpression.hasBlockWithAnswerExpression();
-        if (hasBlockWithAnswerExpression) {
-            String blockReturnType = blockReturnType();
-            writer.setupTryForBlockReturn(simpleExpression, blockReturnType);
-            createBlockReturnType(blockReturnType);
+        if (simpleExpression.hasBlockWithAnswerExpression())
+            writer.setupTryForBlockReturn(simpleExpression);
+        if (simpleExpression.isInlinedLoop()) {
+            InlinedMessage loop = inlinedMessages.push(new InlinedMessage((KeywordExpression) simpleExpression.messageExpression(), simpleExpression.primary(), writer));
+            writer.visitLabel(loop.loop);
         }
     }
 
-    void createBlockReturnType(String blockReturnType) {
-        new BlockReturnTypeCreator(blockReturnType).create();
-    }
-
     public void visitEnd(SimpleExpression simpleExpression) {
-        if (hasBlockWithAnswerExpression)
-            writer.setupCatchForBlockReturn(simpleExpression, blockReturnType());
+        if (simpleExpression.hasBlockWithAnswerExpression())
+            writer.setupCatchForBlockReturn(simpleExpression);
         if (simpleExpression.isResultDuplicatedOnStack())
             writer.pushDuplicate();
         if (!simpleExpression.isResultLeftOnStack())
@@ -160,10 +179,59 @@ public class ProgramAnalyser implements AnalyserDelegate {
     }
 
     public void visitBegin(KeywordExpression keywordExpression, String selector, int argumentCount, int line) {
+        if (!keywordExpression.isInlined())
+            return;
+        InlinedMessage message = isLoop(selector) ? inlinedMessages.peek() : inlinedMessages.push(new InlinedMessage(keywordExpression, null, writer));
+        if (message.isConditional()) {
+            writer.popOrJumpUnless(message.trueness, message.next);
+        } else if (message.isLoop()) {
+            writer.popOrJumpUnless(message.trueness, message.next);
+        } else {
+            message.counter = writer.newLocal();
+            writer.pushDuplicate();
+            writer.storeLocal(message.counter);
+        }
     }
 
     public void visitEnd(KeywordExpression keywordExpression, String selector, int argumentCount, int line) {
-        invokeObjectPerform(selector, argumentCount, line);
+        if (!keywordExpression.isInlined()) {
+            invokeObjectPerform(selector, argumentCount, line);
+            return;
+        }
+        InlinedMessage message = inlinedMessages.pop();
+        if (message.isConditional()) {
+            if (argumentCount == 1) {
+                writer.visitLabel(message.next);
+                writer.popOrJumpUnless(!message.trueness, message.fallback);
+                pushPrimObjectField(message.valueWhenNotEvaluated(), line);
+                writer.jump(message.end);
+            }
+            // the receiver isn't a Boolean, which has its blocks compiled inline, so it is told it must be one.
+            writer.visitLabel(message.fallback);
+            invokeObjectPerform("mustBeBoolean", 0, line);
+            writer.visitLabel(message.end);
+        } else if (message.isLoop()) {
+            writer.visitLabel(message.next);
+            writer.popOrJumpUnless(!message.trueness, message.fallback);
+            writer.jump(message.exit);
+            // the condition block didn't answer a Boolean.
+            writer.visitLabel(message.fallback);
+            invokeObjectPerform("mustBeBoolean", 0, line);
+            writer.pop();
+            writer.visitLabel(message.exit);
+            pushPrimObjectField("NIL", line);
+        } else {
+            // the receiver is left on the stack as the answer.
+            writer.visitLabel(message.exit);
+        }
+    }
+
+    boolean isLoop(String selector) {
+        return KeywordExpression.INLINED_LOOPS.contains(selector);
+    }
+
+    boolean isInsideInlinedBlock() {
+        return inlinedBlockDepth > 0;
     }
 
     public void visitBegin(KeywordMessageElement keywordMessageElement, String selector, int argumentCount, int line) {
@@ -180,7 +248,6 @@ public class ProgramAnalyser implements AnalyserDelegate {
     }
 
     public void visitBegin(Array array) {
-        writer.invokeObjectArray(array.size());
     }
 
     public void visitEnd(Array array) {
@@ -193,10 +260,14 @@ public class ProgramAnalyser implements AnalyserDelegate {
     }
 
     public boolean skipBlockVisit(Block block) {
-        return true;
+        return !block.isInlined();
     }
 
     public void visitBegin(Block block, int line) {
+        if (block.isInlined()) {
+            inlinedBlockDepth++;
+            return;
+        }
         // NOTE: When asking a keyword expression is it contains a block with an answer expression,
         // we should also take that opportunity to mark the block node as being a method block or
         // not, then when we create the block, pass this into the block object.
@@ -204,11 +275,59 @@ public class ProgramAnalyser implements AnalyserDelegate {
         String blockClassName = createBlockName();
         String fullBlockClassName = createFullBlockName(blockClassName);
         block.analyser(createBlockAnalyser(blockClassName, block));
-        block.blockReturnType(blockReturnType());
         block.outerTemporariesRegistry(temporariesRegistry);
         block.outerArgumentsRegistry(argumentsRegistry);
+        CaptureAnalyser captures = new CaptureAnalyser(analyser, block, outerNames());
+        block.captured(captures.captured(), boxedNames(captures.captured()));
         smalltalkEnvironment().registerBlockToBeCompiled(block, fullBlockClassName);
-        writer.invokeObjectCompileBlock(fullBlockClassName, line);
+        writer.visitLine(line);
+        writer.pushBlockCreator();
+        if (captures.needsReceiver())
+            writer.pushBlockReceiver();
+        else
+            writer.pushNull();
+        if (captures.needsHome())
+            writer.pushContext();
+        else
+            writer.pushNull();
+        pushCaptured(captures.captured());
+        writer.invokeObjectCompileBlock(fullBlockClassName);
+    }
+
+    Set<String> outerNames() {
+        Set<String> names = new HashSet<String>();
+        if (temporariesRegistry != null)
+            names.addAll(temporariesRegistry.keySet());
+        if (argumentsRegistry != null)
+            names.addAll(argumentsRegistry.keySet());
+        return names;
+    }
+
+    Set<String> boxedNames(List<String> names) {
+        Set<String> boxed = new HashSet<String>();
+        for (String name : names)
+            if (!isArgument(name) && writer.isBoxedTemporary(temporariesRegistry.get(name)))
+                boxed.add(name);
+        return boxed;
+    }
+
+    // A temporary is captured as it is, a copy of its value or the box it is kept in, arguments are copied.
+    void pushCaptured(List<String> names) {
+        if (names.isEmpty()) {
+            writer.pushNull();
+            return;
+        }
+        writer.pushCapturedArray(names.size());
+        for (int index = 0; index < names.size(); index++) {
+            String name = names.get(index);
+            writer.pushDuplicate();
+            writer.pushNumber(index);
+            if (isArgument(name))
+                writer.pushArgument(argumentsRegistry.get(name));
+            else
+                writer.pushTemporaryToCapture(temporariesRegistry.get(name));
+            writer.storeArrayElement();
+        }
     }
 
     String createFullBlockName(String blockClassName) {
@@ -226,20 +345,38 @@ public class ProgramAnalyser implements AnalyserDelegate {
         return SmalltalkEnvironment.instance();
     }
 
-    String blockReturnType() {
-        return ClassPathUtilities.classNameToFullyQualifiedClassName(packageName, analyser.className() + "$MAnswer");
-    }
-
     String createBlockName() {
-        BLOCK_NUMBER++;
-        return analyser.className() + "$M" + BLOCK_NUMBER;
+        return analyser.className() + "$M" + BLOCK_NUMBER.incrementAndGet();
     }
 
     public void visitEnd(Block block, int line) {
+        if (!block.isInlined())
+            return;
+        inlinedBlockDepth--;
+        if (block.statements() == null)
+            pushPrimObjectField("NIL", line);
+        InlinedMessage message = inlinedMessages.peek();
+        if (message.receiver == block)
+            return;
+        if (message.isConditional()) {
+            writer.jump(message.end);
+        } else if (message.isLoop()) {
+            writer.pop();
+            writer.jump(message.loop);
+        } else {
+            writer.pop();
+            writer.pushLocal(message.counter);
+            writer.invokeObjectNumber("1", line);
+            invokeObjectArithmetic("+", line);
+            writer.storeLocal(message.counter);
+            writer.jump(message.loop);
+            inlinedArgumentsRegistry.remove(message.argument);
+        }
     }
 
     public void visitBegin(BlockArguments blockArguments, int argumentCount) {
-        initializeBlockArgumentsRegistration();
+        if (!isInsideInlinedBlock())
+            initializeBlockArgumentsRegistration();
     }
 
     void initializeBlockArgumentsRegistration() {
@@ -252,11 +389,34 @@ public class ProgramAnalyser implements AnalyserDelegate {
 
     public void visit(BlockArgument blockArgument, String value, int line) {
     //		System.out.println("visit(BLockArgument) " + value);
+        if (isInsideInlinedBlock()) {
+            // the argument of an inlined to:do: block is the loop counter.
+            InlinedMessage message = inlinedMessages.peek();
+            message.argument = value;
+            inlinedArgumentsRegistry.put(value, message.counter);
+            return;
+        }
         // todo.jcl - output a warning if registered twice?
         argumentsRegistry.put(value, argumentsIndex++);
     }
 
     public void visit(BinaryObjectDescription binaryObjectDescription) {
+        if (inlinedMessages.isEmpty() || !inlinedMessages.peek().isSecondArgument(binaryObjectDescription))
+            return;
+        InlinedMessage message = inlinedMessages.peek();
+        if (message.isConditional()) {
+            writer.visitLabel(message.next);
+            writer.popOrJumpUnless(!message.trueness, message.fallback);
+        } else {
+            // to:do: - the stop value is on the stack.
+            message.stop = writer.newLocal();
+            writer.storeLocal(message.stop);
+            writer.visitLabel(message.loop);
+            writer.pushLocal(message.counter);
+            writer.pushLocal(message.stop);
+            invokeObjectArithmetic("<=", message.line);
+            writer.popAndJumpUnless(true, message.exit);
+        }
     }
 
     public void visit(UnaryObjectDescription unaryObjectDescription) {
@@ -265,14 +425,16 @@ public class ProgramAnalyser implements AnalyserDelegate {
     public void visit(Identifier identifier, String value, int line) {
     //		System.out.println("visit(Identifier) " + identifier + " " + value);
         if (identifier.isOnLoadSideOfExpression()) {
-            if (isArgument(value))
+            if (isInlinedArgument(value))
+                writer.pushLocal(inlinedArgumentsRegistry.get(value));
+            else if (isArgument(value))
                 writer.pushArgument(argumentsRegistry.get(value));
             else if (isTemporary(value))
                 writer.pushTemporary(temporariesRegistry.get(value));
             else
                 writer.invokeVariableAt(value, line);
         } else {
-            if (isArgument(value))
+            if (isInlinedArgument(value) || isArgument(value))
                 throw new RedlineException("Can't store into an argument, only temporaries and variables.");
             else if (isTemporary(value))
                 writer.storeTemporary(temporariesRegistry.get(value));
@@ -281,6 +443,10 @@ public class ProgramAnalyser implements AnalyserDelegate {
         }
     }
 
+    boolean isInlinedArgument(String name) {
+        return inlinedArgumentsRegistry.containsKey(name);
+    }
+
     boolean isTemporary(String name) {
         return temporariesRegistry != null && temporariesRegistry.containsKey(name);
     }
@@ -290,9 +456,9 @@ public class ProgramAnalyser implements AnalyserDelegate {
     }
 
     public void visit(Number number, String value, int index, boolean insideArray, int line) {
-        writer.invokeObjectNumber(value, line);
-        if (insideArray)
-            writer.invokeArrayPutAt(index, line);
+        // elements of a literal array are created with the array, see visit(ArrayConstant).
+        if (!insideArray)
+            writer.invokeObjectNumber(value, line);
     }
 
     public void visit(Self self, int line) {
@@ -325,7 +491,7 @@ public class ProgramAnalyser implements AnalyserDelegate {
     }
 
     public void visit(ArrayConstant arrayConstant, int line) {
-        writer.visitLine(line);
+        writer.invokeObjectLiteralArray(arrayConstant.array() != null ? arrayConstant.array().literal() : "", line);
     }
 
     public void visit(UnarySelector unarySelector, String selector, int line) {
@@ -333,31 +499,35 @@ public class ProgramAnalyser implements AnalyserDelegate {
     }
 
     public void visit(BinarySelector binarySelector, String selector, int line) {
-        invokeObjectPerform(selector, 1, line);
+        if (!sendToSuper && ARITHMETIC_SELECTORS.contains(selector))
+            invokeObjectArithmetic(selector, line);
+        else
+            invokeObjectPerform(selector, 1, line);
     }
 
     public void visit(CharacterConstant characterConstant, String value, int index, boolean insideArray, int line) {
-        writer.invokeObjectCharacter(value, line);
-        if (insideArray)
-            writer.invokeArrayPutAt(index, line);
+        if (!insideArray)
+            writer.invokeObjectCharacter(value, line);
     }
 
     public void visit(StringConstant stringConstant, String value, int index, boolean insideArray, int line) {
-        writer.invokeObjectString(value, line);
-        if (insideArray)
-            writer.invokeArrayPutAt(index, line);
+        if (!insideArray)
+            writer.invokeObjectString(value, line);
     }
 
     public void visit(Symbol symbol, String value, int index, boolean insideArray, int line) {
-        writer.invokeObjectSymbol(value, line);
-        if (insideArray)
-            writer.invokeArrayPutAt(index, line);
+        if (!insideArray)
+            writer.invokeObjectSymbol(value, line);
     }
 
     public void visit(SymbolConstant symbolConstant, String value, int line) {
         writer.invokeObjectSymbol(value, line);
     }
 
+    public void visit(FoldedExpression foldedExpression, String value, int line) {
+        writer.invokeObjectFolded(value, line);
+    }
+
     public void visit(UnarySelectorMessageElement unarySelectorMessageElement, String selector, int line) {
         invokeObjectPerform(selector, 0, line);
     }
@@ -372,8 +542,65 @@ public class ProgramAnalyser implements AnalyserDelegate {
         sendToSuper = false;
     }
 
+    void invokeObjectArithmetic(String selector, int line) {
+        writer.visitLine(line);
+        writer.invokeObjectArithmetic(selector);
+    }
+
     void pushPrimObjectField(String field, int line) {
         writer.visitLine(line);
         writer.pushObjectStaticField(field);
     }
+
+    // A message compiled inline (see KeywordExpression), with the labels and locals its code jumps between.
+    static class InlinedMessage {
+
+        final KeywordExpression keywordExpression;
+        final String selector;
+        final Primary receiver;
+        final int line;
+        final boolean trueness;
+        final Object next;
+        final Object fallback;
+        final Object end;
+        final Object loop;
+        final Object exit;
+        int counter;
+        int stop;
+        String argument;
+
+        InlinedMessage(KeywordExpression keywordExpression, Primary receiver, ClassBytecodeWriter writer) {
+            this.keywordExpression = keywordExpression;
+            this.selector = keywordExpression.keywords();
+            this.receiver = receiver;
+            this.line = keywordExpression.line();
+            this.trueness = selector.startsWith("ifTrue:") || selector.equals("and:") || selector.equals("whileTrue:");
+            this.next = writer.newLabel();
+            this.fallback = writer.newLabel();
+            this.end = writer.newLabel();
+            this.loop = writer.newLabel();
+            this.exit = writer.newLabel();
+        }
+
+        boolean isConditional() {
+            return KeywordExpression.INLINED_CONDITIONALS.contains(selector);
+        }
+
+        boolean isLoop() {
+            return KeywordExpression.INLINED_LOOPS.contains(selector);
+        }
+
+        boolean isSecondArgument(BinaryObjectDescription binaryObjectDescription) {
+            return keywordExpression.binaryObjectDescriptions().size() == 2
+                   && keywordExpression.binaryObjectDescriptions().get(1) == binaryObjectDescription;
+        }
+
+        String valueWhenNotEvaluated() {
+            if (selector.equals("and:"))
+                return "FALSE";
+            if (selector.equals("or:"))
+                return "TRUE";
+            return "NIL";
+        }
+    }
 }
@@ -108,7 +108,51 @@ public class SimpleExpression implements Expression {
         this.l2 = l2;
     }
 
+    // Answers true when the message is compiled inline by the analysers, rather than sent.
+    boolean isInlined() {
+        analyseForInlining();
+        return messageExpression instanceof KeywordExpression && ((KeywordExpression) messageExpression).isInlined();
+    }
+
+    boolean isInlinedLoop() {
+        return isInlined() && KeywordExpression.INLINED_LOOPS.contains(((KeywordExpression) messageExpression).keywords());
+    }
+
+    void analyseForInlining() {
+        analyseForFolding();
+        // cascaded messages are sent to the receiver left on the stack, so are never inlined.
+        if (!messageElements.isEmpty())
+            return;
+        if (messageExpression instanceof KeywordExpression)
+            ((KeywordExpression) messageExpression).analyseForInlining(primary);
+        else if (trailingKeywordExpression(messageExpression) != null)
+            // sent to the answer of the unary or binary messages before it, eg: x > 0 ifTrue: [...].
+            trailingKeywordExpression(messageExpression).analyseForInlining(null);
+    }
+
+    static KeywordExpression trailingKeywordExpression(MessageExpression messageExpression) {
+        if (messageExpression instanceof UnaryExpression) {
+            MessageExpression next = ((UnaryExpression) messageExpression).messageExpression();
+            return next instanceof KeywordExpression ? (KeywordExpression) next : trailingKeywordExpression(next);
+        }
+        if (messageExpression instanceof BinaryExpression)
+            return ((BinaryExpression) messageExpression).keywordExpression();
+        return null;
+    }
+
+    // Folds the arithmetic on a number literal into a FoldedExpression, eg: 60 * 60 * 24.
+    void analyseForFolding() {
+        // cascaded messages are sent to the receiver of the last message, so are never folded.
+        if (!(messageExpression instanceof BinaryExpression) || !messageElements.isEmpty())
+            return;
+        BinaryExpression binaryExpression = (BinaryExpression) messageExpression;
+        primary = FoldedExpression.fold(primary, binaryExpression.binarySelectorUnaryObjectDescriptions());
+        if (binaryExpression.binarySelectorUnaryObjectDescriptions().isEmpty())
+            messageExpression = binaryExpression.keywordExpression();
+    }
+
     public void accept(NodeVisitor nodeVisitor) {
+        analyseForInlining();
         nodeVisitor.visitBegin(this);
         if (primary != null)
             primary.accept(nodeVisitor);
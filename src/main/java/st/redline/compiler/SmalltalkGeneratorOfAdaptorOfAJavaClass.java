@@ -278,7 +278,7 @@ public class SmalltalkGeneratorOfAdaptorOfAJavaClass
     		
     	}
     	// JAMES how do you test to see if a object is of a particular Smalltalk type
-    	else if(smalltalkObject.javaValue().getClass() == ArrayList.class)
+    	else if(smalltalkObject.javaValue() instanceof ArrayList)
     	{
     		ArrayList l = (ArrayList) smalltalkObject.javaValue();
     		ArrayList newList = new ArrayList(); 
@@ -701,13 +701,13 @@ public class SmalltalkGeneratorOfAdaptorOfAJavaClass
 			// type is primitive so map from Redline internal type to java type.
 			if (type.equals("I"))
 			{
-				sourceBuf.append("  JVM checkcast: 'java/math/BigDecimal'.\n");
-				sourceBuf.append("  JVM invokeVirtual: 'java/math/BigDecimal' method: 'intValue' matching: '()I'.\n");
+				sourceBuf.append("  JVM checkcast: 'java/lang/Number'.\n");
+				sourceBuf.append("  JVM invokeVirtual: 'java/lang/Number' method: 'intValue' matching: '()I'.\n");
 			}
 			else if (type.equals("J"))
 			{
-				sourceBuf.append("  JVM checkcast: 'java/math/BigDecimal'.\n");
-				sourceBuf.append("  JVM invokeVirtual: 'java/math/BigDecimal' method: 'longValue' matching: '()J'.\n");
+				sourceBuf.append("  JVM checkcast: 'java/lang/Number'.\n");
+				sourceBuf.append("  JVM invokeVirtual: 'java/lang/Number' method: 'longValue' matching: '()J'.\n");
 			}
 
 			else if (type.equals("Z"))
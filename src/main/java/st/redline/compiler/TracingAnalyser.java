@@ -292,6 +292,11 @@ public class TracingAnalyser implements AnalyserDelegate {
         delegate.visit(symbolConstant, value, line);
     }
 
+    public void visit(FoldedExpression foldedExpression, String value, int line) {
+        trace("visit(FoldedExpression) " + foldedExpression + " " + String.valueOf(value) + " " + line);
+        delegate.visit(foldedExpression, value, line);
+    }
+
     public void visit(UnarySelectorMessageElement unarySelectorMessageElement, String value, int line) {
         trace("visit(UnarySelectorMessageElement) " + unarySelectorMessageElement + " " + String.valueOf(value) + " " + line);
         delegate.visit(unarySelectorMessageElement, value, line);
@@ -1,7 +1,7 @@
 /* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
 package st.redline.core;
 
-import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -10,7 +10,9 @@ public class BaseSignatureBuilder {
 
     private static final Map<String, String> TYPE_MAP = new HashMap<String, String>();
     static {
-        TYPE_MAP.put(BigDecimal.class.getName(), "Integer");
+        TYPE_MAP.put(Long.class.getName(), "Integer");
+        TYPE_MAP.put(BigInteger.class.getName(), "Integer");
+        TYPE_MAP.put(Double.class.getName(), "Float");
         TYPE_MAP.put(String.class.getName(), "String");
     }
     private final ArrayList<PrimObject> args;
@@ -0,0 +1,130 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+// Compiles each block registered to be compiled (see SmalltalkEnvironment registerBlockToBeCompiled) once, the first
+// time it is needed. The first thread to need a block claims it with a future and compiles it, any other thread
+// needing the block at the same time waits on the future and is answered the same compiled block. The nodes of a
+// block are released when it is compiled, the compiled block is kept in PrimObject BLOCKS (see PrimObject block).
+// When the system property 'redline.blocks.precompile' is true the blocks still to be compiled after the program
+// has been loaded are compiled in the background on 'redline.blocks.precompileThreads' threads while the program runs
+// (see Stic), so they aren't compiled when they are first evaluated.
+
+import st.redline.compiler.Block;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+final class BlockCompiler {
+
+    static final boolean PRECOMPILE = Boolean.getBoolean("redline.blocks.precompile");
+    static final int PRECOMPILE_THREADS = Math.max(1, Integer.getInteger("redline.blocks.precompileThreads", Runtime.getRuntime().availableProcessors()));
+
+    private static final ConcurrentMap<String, FutureTask<PrimObject>> COMPILATIONS = new ConcurrentHashMap<String, FutureTask<PrimObject>>();
+
+    private BlockCompiler() {
+    }
+
+    static PrimObject compile(String name) {
+        FutureTask<PrimObject> compilation = COMPILATIONS.get(name);
+        if (compilation == null) {
+            FutureTask<PrimObject> claim = new FutureTask<PrimObject>(new Compilation(name));
+            compilation = COMPILATIONS.putIfAbsent(name, claim);
+            if (compilation == null) {
+                compilation = claim;
+                claim.run();
+            }
+        }
+        try {
+            return compilation.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RedlineException((Exception) cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw RedlineException.withCause(e);
+        }
+    }
+
+    static void precompileInBackground() {
+        if (!PRECOMPILE)
+            return;
+        final ClassLoader classLoader = SmalltalkEnvironment.classLoader();
+        Thread precompiler = new Thread(new Runnable() {
+            public void run() {
+                precompile(classLoader);
+            }
+        }, "redline-block-precompiler");
+        precompiler.setDaemon(true);
+        precompiler.start();
+    }
+
+    // Compiles the blocks waiting to be compiled, and the blocks registered while compiling them, until none are left.
+    // A block that fails to compile is left to fail again when it is evaluated.
+    static void precompile(final ClassLoader classLoader) {
+        ExecutorService pool = Executors.newFixedThreadPool(PRECOMPILE_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "redline-block-precompiler");
+                thread.setContextClassLoader(classLoader);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<String> names;
+            while (!(names = pendingNames()).isEmpty()) {
+                List<Callable<PrimObject>> compilations = new ArrayList<Callable<PrimObject>>();
+                for (final String name : names)
+                    compilations.add(new Callable<PrimObject>() {
+                        public PrimObject call() {
+                            return compile(name);
+                        }
+                    });
+                pool.invokeAll(compilations);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // A block registered again after it was compiled is answered as the block already compiled.
+    private static List<String> pendingNames() {
+        List<String> names = new ArrayList<String>();
+        for (String name : SmalltalkEnvironment.BLOCKS_TO_BE_COMPILED.keySet())
+            if (!PrimObject.BLOCKS.containsKey(name) && !COMPILATIONS.containsKey(name))
+                names.add(name);
+        return names;
+    }
+
+    static class Compilation implements Callable<PrimObject> {
+
+        private final String name;
+
+        Compilation(String name) {
+            this.name = name;
+        }
+
+        public PrimObject call() throws Exception {
+            // the block was compiled after the claim on it was looked for.
+            PrimObject block = PrimObject.BLOCKS.get(name);
+            if (block != null) {
+                COMPILATIONS.remove(name);
+                return block;
+            }
+            Block node = (Block) SmalltalkEnvironment.BLOCKS_TO_BE_COMPILED.remove(name);
+            if (node == null)
+                throw new IllegalStateException("Block to be compiled '" + name + "' not found.");
+            node.accept(node.analyser());
+            block = (PrimObject) SmalltalkEnvironment.exposedClassLoader().defineClass(node.classBytes()).newInstance();
+            PrimObject.BLOCKS.put(name, block);
+            COMPILATIONS.remove(name);
+            return block;
+        }
+    }
+}
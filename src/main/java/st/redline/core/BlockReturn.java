@@ -1,16 +1,34 @@
 /* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
 package st.redline.core;
 
+// Signals an answer from a block, ^ anObject, which returns from the method the block was created in. The
+// method activation is identified by its context, the home of the block (see PrimObjectBlock). Expressions
+// with such blocks catch the signal and answer it when their context is its home, otherwise it is thrown on.
+// The signal is only control flow, it has no stack trace. A new one is made for each answer so answers of the
+// same block on other threads, or from nested activations of its method, don't change it as it unwinds.
+
 public class BlockReturn extends RuntimeException {
 
-    private PrimObject answer = PrimObject.NIL;
+    private final PrimContext home;
+    private final PrimObject answer;
 
-    public BlockReturn(PrimObject answer) {
-        if (answer != null)
-            this.answer = answer;
+    public BlockReturn(PrimContext home, PrimObject answer) {
+        super(null, null, false, false);
+        this.home = home;
+        this.answer = answer != null ? answer : PrimObject.NIL;
     }
 
     public PrimObject answer() {
         return answer;
     }
+
+    public PrimContext home() {
+        return home;
+    }
+
+    public PrimObject answerIn(PrimContext context) {
+        if (context != home)
+            throw this;
+        return answer;
+    }
 }
@@ -0,0 +1,45 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+// Provides the SwitchPoints guarding references to globals and classes bound at variable sites (see IndyBootstrap).
+// A reference is resolved once for the receiver class and the site is bound to what it resolved to. Defining a
+// class, or importing a name, invalidates the SwitchPoint of the name so the sites referring to it resolve it again.
+// References by short name are resolved through imports, so defining a fully qualified name also invalidates its
+// short name.
+
+import java.lang.invoke.SwitchPoint;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class GlobalBindings {
+
+    private static final Map<String, SwitchPoint> SWITCH_POINTS = new HashMap<String, SwitchPoint>();
+
+    static synchronized SwitchPoint switchPointFor(String name) {
+        SwitchPoint switchPoint = SWITCH_POINTS.get(name);
+        if (switchPoint == null) {
+            switchPoint = new SwitchPoint();
+            SWITCH_POINTS.put(name, switchPoint);
+        }
+        return switchPoint;
+    }
+
+    public static void defined(String name) {
+        List<SwitchPoint> switchPoints = new ArrayList<SwitchPoint>();
+        synchronized (GlobalBindings.class) {
+            for (String key : new String[] {name, shortName(name)}) {
+                SwitchPoint switchPoint = SWITCH_POINTS.remove(key);
+                if (switchPoint != null)
+                    switchPoints.add(switchPoint);
+            }
+        }
+        if (!switchPoints.isEmpty())
+            SwitchPoint.invalidateAll(switchPoints.toArray(new SwitchPoint[switchPoints.size()]));
+    }
+
+    static String shortName(String name) {
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+}
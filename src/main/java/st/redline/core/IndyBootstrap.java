@@ -5,146 +5,705 @@ import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import st.redline.compiler.ClassBytecodeWriter;
-import static st.redline.core.PrimObject.CLASS_INDEX;
 
 /**
  * Boostrap and dispatch logic for invokedynamic call paths.
+ *
+ * Each call site is a polymorphic inline cache: every receiver class seen at the site adds a
+ * class guard in front of the site's fallback, up to POLYMORPHIC_DEPTH guards. After that the
+ * site is megamorphic and dispatches through PrimObject perform, which uses the global MethodCache.
+ * Each cached target is also guarded by the SwitchPoint of its lookup, so redefining a method
+ * only sends the sites that depended on it back to the fallback to be relinked.
+ * The depth can be set with the system property 'redline.indy.polymorphicDepth'.
+ * Methods compiled without a context are bound through their static body, otherwise through
+ * the arity specialised invoke of the method.
+ *
+ * Variable loads and stores are cached the same way, each receiver class seen adds a guard in front
+ * of a load or store of the slot the variable was resolved to, guarded by the SwitchPoint of the shape
+ * of the class, so adding variables or changing superclasses relinks them. The slots of instances made from a
+ * shape are loaded and stored as its fields (see PrimObjectShapes). Names that aren't variables
+ * are globals, the site is bound to the object the name resolved to until the name is defined again
+ * (see GlobalBindings). Inside a block those names are the variables and globals of the receiver the block
+ * was created with, so the site asks the block for them each time.
+ *
+ * Binary sends of the arithmetic and comparison selectors have their own sites. When both operands
+ * are SmallIntegers, or both Floats, the site is bound to the primitive the receiver's method is
+ * (see Primitives), guarded on the Java types of both operands and the SwitchPoint of the lookup.
+ * Any other operands are sent the message through an ordinary send site.
+ *
+ * Literals are created the first time their site runs and the site is then bound to the literal.
+ * Numbers, symbols and characters are shared, strings answer a copy of the literal each time.
+ * Literals created while bootstrapping are not bound, as the classes they are instances of may
+ * not exist yet.
+ *
+ * Blocks are compiled the first time their site runs (see PrimObject block) and the site is then
+ * bound to the constructor of the compiled block class, so each evaluation makes the block with a
+ * single allocation. Clean blocks, which refer to nothing outside themselves, are shared and the site
+ * is bound to the one instance. Method blocks are shared and are always answered through the fallback.
  */
 public class IndyBootstrap {
+    static final int POLYMORPHIC_DEPTH = Integer.getInteger("redline.indy.polymorphicDepth", 4);
+    static final String STATIC_INVOKE = "_invoke_";  // see BlockBytecodeWriter.
+
     static class SmalltalkCallSite extends MutableCallSite {
         public final MethodHandles.Lookup lookup;
+        final List<MethodCache.Entry> entries = new ArrayList<MethodCache.Entry>();
+        final boolean superSend;
+        MethodHandle fallback;
+        boolean megamorphic;
+        int selectorId = -1;
         public SmalltalkCallSite(MethodType methodType, MethodHandles.Lookup lookup) {
+            this(methodType, lookup, false);
+        }
+        public SmalltalkCallSite(MethodType methodType, MethodHandles.Lookup lookup, boolean superSend) {
             super(methodType);
             this.lookup = lookup;
+            this.superSend = superSend;
         }
     }
     
+    static class VariableCallSite extends MutableCallSite {
+        final List<Slot> slots = new ArrayList<Slot>();
+        final boolean store;
+        MethodHandle fallback;
+        boolean megamorphic;
+        public VariableCallSite(MethodType methodType, boolean store) {
+            super(methodType);
+            this.store = store;
+        }
+    }
+
+    static class Slot {
+        final PrimObject cls;
+        final int index;
+        final SwitchPoint switchPoint;
+        final Class shape;
+        final PrimObject global;
+        final SwitchPoint globalSwitchPoint;
+        final boolean outer;
+        Slot(PrimObject cls, int index, SwitchPoint switchPoint, Class shape) {
+            this(cls, index, switchPoint, shape, null, null, false);
+        }
+        Slot(PrimObject cls, int index, SwitchPoint switchPoint, PrimObject global, SwitchPoint globalSwitchPoint) {
+            this(cls, index, switchPoint, null, global, globalSwitchPoint, false);
+        }
+        // A variable of a block's outer receiver, which the block is asked for (see PrimObjectBlock variableAt).
+        Slot(PrimObject cls, SwitchPoint switchPoint) {
+            this(cls, 0, switchPoint, null, null, null, true);
+        }
+        Slot(PrimObject cls, int index, SwitchPoint switchPoint, Class shape, PrimObject global, SwitchPoint globalSwitchPoint, boolean outer) {
+            this.cls = cls;
+            this.index = index;
+            this.switchPoint = switchPoint;
+            this.shape = shape;
+            this.global = global;
+            this.globalSwitchPoint = globalSwitchPoint;
+            this.outer = outer;
+        }
+        boolean isValid() {
+            return !switchPoint.hasBeenInvalidated() && (globalSwitchPoint == null || !globalSwitchPoint.hasBeenInvalidated());
+        }
+    }
+
+    static class ArithmeticCallSite extends MutableCallSite {
+        final SmalltalkCallSite send;
+        final List<Special> specials = new ArrayList<Special>();
+        MethodHandle fallback;
+        public ArithmeticCallSite(MethodType methodType, SmalltalkCallSite send) {
+            super(methodType);
+            this.send = send;
+        }
+    }
+
+    // the method found for a selector when both operands are of the same number type, SmallInteger or Float.
+    static class Special {
+        final Class type;
+        final MethodCache.Entry entry;
+        Special(Class type, MethodCache.Entry entry) {
+            this.type = type;
+            this.entry = entry;
+        }
+    }
+
+    static class LiteralCallSite extends MutableCallSite {
+        final String type;
+        final String value;
+        public LiteralCallSite(MethodType methodType, String type, String value) {
+            super(methodType);
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    static class BlockCallSite extends MutableCallSite {
+        final String name;
+        public BlockCallSite(MethodType methodType, String name) {
+            super(methodType);
+            this.name = name;
+        }
+    }
+
     public static CallSite performBootstrap(MethodHandles.Lookup lookup, String name, MethodType methodType) throws Throwable {
-        SmalltalkCallSite site = new SmalltalkCallSite(methodType, lookup);
-        
+        return bootstrap(new SmalltalkCallSite(methodType, lookup), lookup, name, methodType);
+    }
+    
+    // Super sends pass the sending context, its lookupClass is the class defining the sending method.
+    // The site caches on the superclass of that class, so it is bound statically for a given method and
+    // is still correct if the defining class is given a new superclass.
+    public static CallSite superPerformBootstrap(MethodHandles.Lookup lookup, String name, MethodType methodType) throws Throwable {
+        return bootstrap(new SmalltalkCallSite(methodType, lookup, true), lookup, name, methodType);
+    }
+    
+    // Loads are named variableAt and take the receiver and variable name, stores are named variablePutAt
+    // and take the value, variable name and receiver.
+    public static CallSite variableBootstrap(MethodHandles.Lookup lookup, String name, MethodType methodType) throws Throwable {
+        VariableCallSite site = new VariableCallSite(methodType, "variablePutAt".equals(name));
+        MethodHandle target = lookup.findStatic(IndyBootstrap.class, name, methodType.insertParameterTypes(0, VariableCallSite.class));
+        target = target.bindTo(site);
+        site.fallback = target;
+        site.setTarget(target);
+
+        return site;
+    }
+
+    // Arithmetic sites take the receiver, argument and selector, as a send with one argument does.
+    public static CallSite arithmeticBootstrap(MethodHandles.Lookup lookup, String name, MethodType methodType) throws Throwable {
+        SmalltalkCallSite send = (SmalltalkCallSite) performBootstrap(lookup, "perform", methodType);
+        ArithmeticCallSite site = new ArithmeticCallSite(methodType, send);
+        MethodHandle target = lookup.findStatic(IndyBootstrap.class, name, methodType.insertParameterTypes(0, ArithmeticCallSite.class));
+        site.fallback = target.bindTo(site);
+        site.setTarget(MethodHandles.guardWithTest(NUMBERS_TEST, site.fallback, send.dynamicInvoker()));
+
+        return site;
+    }
+
+    // Literal sites are named for the kind of literal: number, string, symbol, character or literalArray.
+    // Sites named folded answer the result of arithmetic on number literals, see folded(LiteralCallSite).
+    public static CallSite literalBootstrap(MethodHandles.Lookup lookup, String name, MethodType methodType, String value) throws Throwable {
+        LiteralCallSite site = new LiteralCallSite(methodType, name, value);
+        site.setTarget(LITERAL.bindTo(site));
+
+        return site;
+    }
+
+    // Blocks take the object creating the block, the receiver and context it is created with and the
+    // variables it captures, the name of the block's class is the site's constant.
+    public static CallSite blockBootstrap(MethodHandles.Lookup lookup, String name, MethodType methodType, String blockName) throws Throwable {
+        BlockCallSite site = new BlockCallSite(methodType, blockName);
+        site.setTarget(BLOCK.bindTo(site));
+
+        return site;
+    }
+
+    private static CallSite bootstrap(SmalltalkCallSite site, MethodHandles.Lookup lookup, String name, MethodType methodType) throws Throwable {
         MethodHandle target = lookup.findStatic(IndyBootstrap.class, name, methodType.insertParameterTypes(0, SmalltalkCallSite.class));
         target = target.bindTo(site);
+        site.fallback = target;
         site.setTarget(target);
         
         return site;
     }
     
-    private static final MethodHandle APPLY;
     private static final MethodHandle TEST;
-    private static final MethodHandle[] PERFORMS;
+    private static final MethodHandle SHAPE_TEST;
+    private static final MethodHandle SUPER_TEST;
+    private static final MethodHandle[] INVOKES;
+    private static final MethodHandle PRIMITIVE_FAILED;
+    private static final MethodHandle[] MEGAMORPHIC_PERFORMS;
+    private static final MethodHandle[] MEGAMORPHIC_SUPER_PERFORMS;
+    private static final MethodHandle SLOT_AT;
+    private static final MethodHandle SLOT_AT_PUT;
+    private static final MethodHandle ANSWER_RECEIVER;
+    private static final MethodHandle MEGAMORPHIC_VARIABLE_AT;
+    private static final MethodHandle MEGAMORPHIC_VARIABLE_PUT_AT;
+    private static final MethodHandle LITERAL;
+    private static final MethodHandle LITERAL_COPY;
+    private static final MethodHandle BLOCK;
+    private static final MethodHandle MADE_BY_BLOCK;
+    private static final MethodHandle SMALL_INTEGERS_TEST;
+    private static final MethodHandle FLOATS_TEST;
+    private static final MethodHandle NUMBERS_TEST;
     static {
-        MethodHandle apply;
         MethodHandle test;
-        MethodHandle[] performs = new MethodHandle[6];
+        MethodHandle shapeTest;
+        MethodHandle superTest;
+        MethodHandle[] invokes = new MethodHandle[6];
+        MethodHandle[] megamorphicPerforms = new MethodHandle[6];
+        MethodHandle[] megamorphicSuperPerforms = new MethodHandle[6];
+        MethodHandle slotAt;
+        MethodHandle slotAtPut;
+        MethodHandle megamorphicVariableAt;
+        MethodHandle megamorphicVariablePutAt;
+        MethodHandle literal;
+        MethodHandle literalCopy;
+        MethodHandle block;
+        MethodHandle madeByBlock;
+        MethodHandle smallIntegersTest;
+        MethodHandle floatsTest;
+        MethodHandle primitiveFailed;
+        MethodHandle numbersTest;
         try {
-            apply = MethodHandles.lookup().findVirtual(PrimObject.class, "apply", MethodType.methodType(PrimObject.class, PrimObject.class, PrimObject.class, String.class, PrimObject[].class));
-            test = MethodHandles.lookup().findStatic(IndyBootstrap.class, "test", MethodType.methodType(boolean.class, PrimObject.class, Object.class, PrimObject.class));
-            performs[0] = MethodHandles.lookup().findStatic(IndyBootstrap.class, "perform", MethodType.methodType(PrimObject.class, SmalltalkCallSite.class, PrimObject.class, String.class));
-            performs[1] = MethodHandles.lookup().findStatic(IndyBootstrap.class, "perform", MethodType.methodType(PrimObject.class, SmalltalkCallSite.class, PrimObject.class, PrimObject.class, String.class));
-            performs[2] = MethodHandles.lookup().findStatic(IndyBootstrap.class, "perform", MethodType.methodType(PrimObject.class, SmalltalkCallSite.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
-            performs[3] = MethodHandles.lookup().findStatic(IndyBootstrap.class, "perform", MethodType.methodType(PrimObject.class, SmalltalkCallSite.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
-            performs[4] = MethodHandles.lookup().findStatic(IndyBootstrap.class, "perform", MethodType.methodType(PrimObject.class, SmalltalkCallSite.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
-            performs[5] = MethodHandles.lookup().findStatic(IndyBootstrap.class, "perform", MethodType.methodType(PrimObject.class, SmalltalkCallSite.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
+            test = MethodHandles.lookup().findStatic(IndyBootstrap.class, "test", MethodType.methodType(boolean.class, PrimObject.class, PrimObject.class));
+            shapeTest = MethodHandles.lookup().findStatic(IndyBootstrap.class, "shapeTest", MethodType.methodType(boolean.class, PrimObject.class, PrimObject.class, Class.class));
+            superTest = MethodHandles.lookup().findStatic(IndyBootstrap.class, "superTest", MethodType.methodType(boolean.class, PrimContext.class, PrimObject.class));
+            invokes[0] = MethodHandles.lookup().findVirtual(PrimObject.class, "invoke0", MethodType.methodType(PrimObject.class, PrimObject.class, PrimObject.class, String.class));
+            invokes[1] = MethodHandles.lookup().findVirtual(PrimObject.class, "invoke1", MethodType.methodType(PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
+            invokes[2] = MethodHandles.lookup().findVirtual(PrimObject.class, "invoke2", MethodType.methodType(PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
+            invokes[3] = MethodHandles.lookup().findVirtual(PrimObject.class, "invoke3", MethodType.methodType(PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
+            invokes[4] = MethodHandles.lookup().findVirtual(PrimObject.class, "invoke4", MethodType.methodType(PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
+            invokes[5] = MethodHandles.lookup().findVirtual(PrimObject.class, "invoke5", MethodType.methodType(PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
+            megamorphicPerforms[0] = MethodHandles.lookup().findVirtual(PrimObject.class, "perform", MethodType.methodType(PrimObject.class, String.class));
+            megamorphicPerforms[1] = MethodHandles.lookup().findVirtual(PrimObject.class, "perform", MethodType.methodType(PrimObject.class, PrimObject.class, String.class));
+            megamorphicPerforms[2] = MethodHandles.lookup().findVirtual(PrimObject.class, "perform", MethodType.methodType(PrimObject.class, PrimObject.class, PrimObject.class, String.class));
+            megamorphicPerforms[3] = MethodHandles.lookup().findVirtual(PrimObject.class, "perform", MethodType.methodType(PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
+            megamorphicPerforms[4] = MethodHandles.lookup().findVirtual(PrimObject.class, "perform", MethodType.methodType(PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
+            megamorphicPerforms[5] = MethodHandles.lookup().findVirtual(PrimObject.class, "perform", MethodType.methodType(PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
+            megamorphicSuperPerforms[0] = MethodHandles.lookup().findVirtual(PrimObject.class, "superPerform", MethodType.methodType(PrimObject.class, PrimContext.class, String.class));
+            megamorphicSuperPerforms[1] = MethodHandles.lookup().findVirtual(PrimObject.class, "superPerform", MethodType.methodType(PrimObject.class, PrimContext.class, PrimObject.class, String.class));
+            megamorphicSuperPerforms[2] = MethodHandles.lookup().findVirtual(PrimObject.class, "superPerform", MethodType.methodType(PrimObject.class, PrimContext.class, PrimObject.class, PrimObject.class, String.class));
+            megamorphicSuperPerforms[3] = MethodHandles.lookup().findVirtual(PrimObject.class, "superPerform", MethodType.methodType(PrimObject.class, PrimContext.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
+            megamorphicSuperPerforms[4] = MethodHandles.lookup().findVirtual(PrimObject.class, "superPerform", MethodType.methodType(PrimObject.class, PrimContext.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
+            megamorphicSuperPerforms[5] = MethodHandles.lookup().findVirtual(PrimObject.class, "superPerform", MethodType.methodType(PrimObject.class, PrimContext.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class));
+            slotAt = MethodHandles.lookup().findStatic(IndyBootstrap.class, "slotAt", MethodType.methodType(PrimObject.class, PrimObject.class, int.class));
+            slotAtPut = MethodHandles.lookup().findStatic(IndyBootstrap.class, "slotAtPut", MethodType.methodType(PrimObject.class, PrimObject.class, int.class, PrimObject.class));
+            megamorphicVariableAt = MethodHandles.lookup().findVirtual(PrimObject.class, "variableAt", MethodType.methodType(PrimObject.class, String.class));
+            megamorphicVariablePutAt = MethodHandles.lookup().findStatic(PrimObject.class, "variablePutAtIn", MethodType.methodType(PrimObject.class, PrimObject.class, String.class, PrimObject.class));
+            literal = MethodHandles.lookup().findStatic(IndyBootstrap.class, "literal", MethodType.methodType(PrimObject.class, LiteralCallSite.class));
+            literalCopy = MethodHandles.lookup().findVirtual(PrimObject.class, "literalCopy", MethodType.methodType(PrimObject.class));
+            block = MethodHandles.lookup().findStatic(IndyBootstrap.class, "block", MethodType.methodType(PrimObject.class, BlockCallSite.class, PrimObject.class, PrimObject.class, PrimContext.class, PrimObject[].class));
+            madeByBlock = MethodHandles.lookup().findStatic(IndyBootstrap.class, "madeByBlock", MethodType.methodType(PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, PrimContext.class, PrimObject[].class));
+            smallIntegersTest = MethodHandles.lookup().findStatic(IndyBootstrap.class, "smallIntegersTest", MethodType.methodType(boolean.class, PrimObject.class, PrimObject.class));
+            floatsTest = MethodHandles.lookup().findStatic(IndyBootstrap.class, "floatsTest", MethodType.methodType(boolean.class, PrimObject.class, PrimObject.class));
+            primitiveFailed = MethodHandles.lookup().findStatic(IndyBootstrap.class, "primitiveFailed", MethodType.methodType(boolean.class, PrimObject.class));
+            numbersTest = MethodHandles.lookup().findStatic(IndyBootstrap.class, "numbersTest", MethodType.methodType(boolean.class, PrimObject.class, PrimObject.class));
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
-        APPLY = apply;
         TEST = test;
-        PERFORMS = performs;
+        SHAPE_TEST = shapeTest;
+        SUPER_TEST = superTest;
+        INVOKES = invokes;
+        MEGAMORPHIC_PERFORMS = megamorphicPerforms;
+        MEGAMORPHIC_SUPER_PERFORMS = megamorphicSuperPerforms;
+        SLOT_AT = slotAt;
+        SLOT_AT_PUT = slotAtPut;
+        ANSWER_RECEIVER = MethodHandles.dropArguments(MethodHandles.identity(PrimObject.class), 0, PrimObject.class, String.class);
+        MEGAMORPHIC_VARIABLE_AT = megamorphicVariableAt;
+        MEGAMORPHIC_VARIABLE_PUT_AT = megamorphicVariablePutAt;
+        LITERAL = literal;
+        LITERAL_COPY = literalCopy;
+        BLOCK = block;
+        MADE_BY_BLOCK = madeByBlock;
+        SMALL_INTEGERS_TEST = MethodHandles.dropArguments(smallIntegersTest, 2, String.class);
+        FLOATS_TEST = MethodHandles.dropArguments(floatsTest, 2, String.class);
+        PRIMITIVE_FAILED = primitiveFailed;
+        NUMBERS_TEST = MethodHandles.dropArguments(numbersTest, 2, String.class);
     }
     
-    private static PrimObject findMethod(PrimObject cls, String selector) {
-        while (!cls.includesSelector(selector))
-            cls = cls.superclass();
-        PrimObject method = cls.methodFor(selector);
-        
-        return method;
+    private static MethodCache.Entry link(SmalltalkCallSite site, PrimObject cls, String selector, int args) {
+        if (site.selectorId == -1)
+            site.selectorId = Selectors.idOf(selector);
+        MethodCache.Entry entry = MethodCache.lookup(cls, site.selectorId, selector);
+        synchronized (site) {
+            if (site.megamorphic)
+                return entry;
+            for (Iterator<MethodCache.Entry> iterator = site.entries.iterator(); iterator.hasNext();) {
+                MethodCache.Entry cached = iterator.next();
+                if (cached.cls == cls || !cached.isValid())
+                    iterator.remove();
+            }
+            if (site.entries.size() < POLYMORPHIC_DEPTH) {
+                site.entries.add(entry);
+                relink(site, args);
+            } else {
+                site.megamorphic = true;
+                site.entries.clear();
+                site.setTarget(site.superSend ? MEGAMORPHIC_SUPER_PERFORMS[args] : MEGAMORPHIC_PERFORMS[args]);
+            }
+        }
+        return entry;
     }
     
-    private static boolean test(PrimObject self, Object classModifications, PrimObject expectedCls) {
-        return PrimObjectClass.CLASS_MODIFICATIONS == classModifications && self.attributes[CLASS_INDEX] == expectedCls;
+    private static boolean test(PrimObject self, PrimObject expectedCls) {
+        return self.cls == expectedCls;
     }
     
-    private static void bind(SmalltalkCallSite site, PrimObject method, Object classModifications, PrimObject cls, int args) {
-        // bind method and class
-        MethodHandle target = MethodHandles.insertArguments(APPLY, 1, method, cls);
-        
-        // reorder and group arguments
-        target = target.asCollector(PrimObject[].class, args);
-        switch (args) {
-            case 0: break;
-            case 1:
-                target = MethodHandles.permuteArguments(target, site.type(), new int[]{0, 2, 1});
-                break;
-            case 2:
-                target = MethodHandles.permuteArguments(target, site.type(), new int[]{0, 3, 1, 2});
-                break;
-            case 3:
-                target = MethodHandles.permuteArguments(target, site.type(), new int[]{0, 4, 1, 2, 3});
-                break;
-            case 4:
-                target = MethodHandles.permuteArguments(target, site.type(), new int[]{0, 5, 1, 2, 3, 4});
-                break;
-            case 5:
-                target = MethodHandles.permuteArguments(target, site.type(), new int[]{0, 6, 1, 2, 3, 4, 5});
-                break;
-        }
+    // Instances of a class with a shape are guarded on the shape too, as indexed instances have attributes instead.
+    private static boolean shapeTest(PrimObject self, PrimObject expectedCls, Class expectedShape) {
+        return self.cls == expectedCls && self.getClass() == expectedShape;
+    }
+    
+    private static boolean superTest(PrimContext context, PrimObject expectedCls) {
+        return context.lookupClass.superclass() == expectedCls;
+    }
+    
+    private static void relink(SmalltalkCallSite site, int args) {
+        MethodHandle target = site.fallback;
+        for (MethodCache.Entry entry : site.entries)
+            target = bind(site, entry, args, target);
+        site.setTarget(target);
+    }
+    
+    private static MethodHandle bind(SmalltalkCallSite site, MethodCache.Entry entry, int args, MethodHandle next) {
+        // bind method and the class it was found in, the arity specialised invoke takes the arguments as they are
+        MethodHandle target = invoker(entry.method, args).bindTo(entry.method);
+        target = MethodHandles.insertArguments(target, args + 1, entry.foundInClass);
+        if (site.superSend)
+            target = MethodHandles.dropArguments(target, 1, PrimContext.class);
         
-        // add class modification and type guard
-        MethodHandle test = MethodHandles.insertArguments(TEST, 1, classModifications, cls);
-        test = MethodHandles.permuteArguments(test, site.type().changeReturnType(boolean.class), new int[]{0});
-        MethodHandle fail = PERFORMS[args].bindTo(site);
-        target = MethodHandles.guardWithTest(test, target, fail);
+        // invalidation of the lookup sends the site back to the fallback to be relinked
+        target = entry.switchPoint.guardWithTest(target, site.fallback);
         
-        site.setTarget(target);
+        // add type guard in front of the classes already cached
+        MethodHandle test = MethodHandles.insertArguments(site.superSend ? SUPER_TEST : TEST, 1, entry.cls);
+        test = MethodHandles.permuteArguments(test, site.type().changeReturnType(boolean.class), new int[]{site.superSend ? 1 : 0});
+        return MethodHandles.guardWithTest(test, target, next);
+    }
+    
+    private static MethodHandle invoker(PrimObject method, int args) {
+        // a method that is just a primitive with a direct form is bound to the primitive, and compiled
+        // blocks that don't need a context have a static body the site can be bound to directly.
+        if (method instanceof PrimObjectBlock) {
+            MethodHandle primitive = Primitives.handleFor(((PrimObjectBlock) method).primitiveNumber(), args);
+            if (primitive != null)
+                return primitiveInvoker(primitive, args);
+            try {
+                return MethodHandles.publicLookup().findStatic(method.getClass(), STATIC_INVOKE, INVOKES[args].type().changeParameterType(0, PrimObjectBlock.class));
+            } catch (NoSuchMethodException e) {
+                // not compiled as context free.
+            } catch (IllegalAccessException e) {
+                // not a generated block.
+            }
+        }
+        return INVOKES[args];
+    }
+    
+    static MethodHandle primitiveInvoker(MethodHandle primitive, int args) {
+        // take the same arguments as the method's invoke: the method, receiver, arguments, foundInClass and selector.
+        MethodHandle target = MethodHandles.dropArguments(primitive, 0, PrimObject.class);
+        target = MethodHandles.dropArguments(target, args + 2, PrimObject.class, String.class);
+        // when the primitive fails invoke the method, which runs its code after the primitive.
+        return unlessPrimitiveFails(target, INVOKES[args]);
+    }
+
+    // Answers a handle that answers the result of primitive, or when the primitive fails, answering null,
+    // the result of otherwise, which takes the same arguments.
+    private static MethodHandle unlessPrimitiveFails(MethodHandle primitive, MethodHandle otherwise) {
+        MethodHandle answer = MethodHandles.dropArguments(MethodHandles.identity(PrimObject.class), 1, otherwise.type().parameterList());
+        MethodHandle failed = MethodHandles.dropArguments(otherwise, 0, PrimObject.class);
+        return MethodHandles.foldArguments(MethodHandles.guardWithTest(PRIMITIVE_FAILED, failed, answer), primitive);
+    }
+
+    private static boolean primitiveFailed(PrimObject result) {
+        return result == null;
     }
     
-    public static PrimObject perform(SmalltalkCallSite site, PrimObject self, String selector) throws Throwable {
-        PrimObject cls = self.attributes[CLASS_INDEX];
-        Object classModifications = PrimObjectClass.CLASS_MODIFICATIONS;
-        PrimObject method = findMethod(cls, selector);
-        bind(site, method, classModifications, cls, 0);
-        return self.apply(method, cls, selector);
+    public static PrimObject perform(SmalltalkCallSite site, PrimObject self, String selector) {
+        PrimObject cls = self.cls;
+        MethodCache.Entry entry = link(site, cls, selector, 0);
+        return entry.method.invoke0(self, entry.foundInClass, selector);
     }
     
     public static PrimObject perform(SmalltalkCallSite site, PrimObject self, PrimObject arg1, String selector) {
-        PrimObject cls = self.attributes[CLASS_INDEX];
-        Object classModifications = PrimObjectClass.CLASS_MODIFICATIONS;
-        PrimObject method = findMethod(cls, selector);
-        bind(site, method, classModifications, cls, 1);
-        return self.apply(method, cls, selector, arg1);
+        PrimObject cls = self.cls;
+        MethodCache.Entry entry = link(site, cls, selector, 1);
+        return entry.method.invoke1(self, arg1, entry.foundInClass, selector);
     }
     
     public static PrimObject perform(SmalltalkCallSite site, PrimObject self, PrimObject arg1, PrimObject arg2, String selector) {
-        PrimObject cls = self.attributes[CLASS_INDEX];
-        Object classModifications = PrimObjectClass.CLASS_MODIFICATIONS;
-        PrimObject method = findMethod(cls, selector);
-        bind(site, method, classModifications, cls, 2);
-        return self.apply(method, cls, selector, arg1, arg2);
+        PrimObject cls = self.cls;
+        MethodCache.Entry entry = link(site, cls, selector, 2);
+        return entry.method.invoke2(self, arg1, arg2, entry.foundInClass, selector);
     }
     
     public static PrimObject perform(SmalltalkCallSite site, PrimObject self, PrimObject arg1, PrimObject arg2, PrimObject arg3, String selector) {
-        PrimObject cls = self.attributes[CLASS_INDEX];
-        Object classModifications = PrimObjectClass.CLASS_MODIFICATIONS;
-        PrimObject method = findMethod(cls, selector);
-        bind(site, method, classModifications, cls, 3);
-        return self.apply(method, cls, selector, arg1, arg2, arg3);
+        PrimObject cls = self.cls;
+        MethodCache.Entry entry = link(site, cls, selector, 3);
+        return entry.method.invoke3(self, arg1, arg2, arg3, entry.foundInClass, selector);
     }
     
     public static PrimObject perform(SmalltalkCallSite site, PrimObject self, PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, String selector) {
-        PrimObject cls = self.attributes[CLASS_INDEX];
-        Object classModifications = PrimObjectClass.CLASS_MODIFICATIONS;
-        PrimObject method = findMethod(cls, selector);
-        bind(site, method, classModifications, cls, 4);
-        return self.apply(method, cls, selector, arg1, arg2, arg3, arg4);
+        PrimObject cls = self.cls;
+        MethodCache.Entry entry = link(site, cls, selector, 4);
+        return entry.method.invoke4(self, arg1, arg2, arg3, arg4, entry.foundInClass, selector);
     }
     
     public static PrimObject perform(SmalltalkCallSite site, PrimObject self, PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, PrimObject arg5, String selector) {
-        PrimObject cls = self.attributes[CLASS_INDEX];
-        Object classModifications = PrimObjectClass.CLASS_MODIFICATIONS;
-        PrimObject method = findMethod(cls, selector);
-        bind(site, method, classModifications, cls, 5);
-        return self.apply(method, cls, selector, arg1, arg2, arg3, arg4, arg5);
+        PrimObject cls = self.cls;
+        MethodCache.Entry entry = link(site, cls, selector, 5);
+        return entry.method.invoke5(self, arg1, arg2, arg3, arg4, arg5, entry.foundInClass, selector);
+    }
+    
+    public static PrimObject superPerform(SmalltalkCallSite site, PrimObject self, PrimContext context, String selector) {
+        PrimObject cls = context.lookupClass.superclass();
+        MethodCache.Entry entry = link(site, cls, selector, 0);
+        return entry.method.invoke0(self, entry.foundInClass, selector);
+    }
+    
+    public static PrimObject superPerform(SmalltalkCallSite site, PrimObject self, PrimContext context, PrimObject arg1, String selector) {
+        PrimObject cls = context.lookupClass.superclass();
+        MethodCache.Entry entry = link(site, cls, selector, 1);
+        return entry.method.invoke1(self, arg1, entry.foundInClass, selector);
+    }
+    
+    public static PrimObject superPerform(SmalltalkCallSite site, PrimObject self, PrimContext context, PrimObject arg1, PrimObject arg2, String selector) {
+        PrimObject cls = context.lookupClass.superclass();
+        MethodCache.Entry entry = link(site, cls, selector, 2);
+        return entry.method.invoke2(self, arg1, arg2, entry.foundInClass, selector);
+    }
+    
+    public static PrimObject superPerform(SmalltalkCallSite site, PrimObject self, PrimContext context, PrimObject arg1, PrimObject arg2, PrimObject arg3, String selector) {
+        PrimObject cls = context.lookupClass.superclass();
+        MethodCache.Entry entry = link(site, cls, selector, 3);
+        return entry.method.invoke3(self, arg1, arg2, arg3, entry.foundInClass, selector);
+    }
+    
+    public static PrimObject superPerform(SmalltalkCallSite site, PrimObject self, PrimContext context, PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, String selector) {
+        PrimObject cls = context.lookupClass.superclass();
+        MethodCache.Entry entry = link(site, cls, selector, 4);
+        return entry.method.invoke4(self, arg1, arg2, arg3, arg4, entry.foundInClass, selector);
+    }
+    
+    public static PrimObject superPerform(SmalltalkCallSite site, PrimObject self, PrimContext context, PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, PrimObject arg5, String selector) {
+        PrimObject cls = context.lookupClass.superclass();
+        MethodCache.Entry entry = link(site, cls, selector, 5);
+        return entry.method.invoke5(self, arg1, arg2, arg3, arg4, arg5, entry.foundInClass, selector);
+    }
+    
+    private static void linkVariable(VariableCallSite site, PrimObject self, PrimObject cls, String name) {
+        // only classes have variables and a shape to guard on.
+        if (!(cls instanceof PrimObjectClass))
+            return;
+        PrimObjectClass aClass = (PrimObjectClass) cls;
+        SwitchPoint switchPoint = aClass.shapeSwitchPoint();
+        int index = aClass.indexOfVariable(name);
+        Slot slot;
+        if (index != 0)
+            slot = new Slot(cls, index, switchPoint, PrimObjectShapes.isShape(self.getClass()) ? self.getClass() : null);
+        else if (self instanceof PrimObjectBlock)
+            // a block's other variables are those of the receiver it was created with, resolved by that
+            // receiver's class and imports, which differ from block to block.
+            slot = new Slot(cls, switchPoint);
+        else if (site.store)
+            return;  // the store fails, there is nothing to link.
+        else {
+            // resolved through the imports of the receiver's class, which the class guard keeps the same.
+            SwitchPoint globalSwitchPoint = GlobalBindings.switchPointFor(name);
+            slot = new Slot(cls, index, switchPoint, self.resolveObject(name), globalSwitchPoint);
+        }
+        synchronized (site) {
+            if (site.megamorphic)
+                return;
+            for (Iterator<Slot> iterator = site.slots.iterator(); iterator.hasNext();) {
+                Slot cached = iterator.next();
+                if (cached.cls == cls || !cached.isValid())
+                    iterator.remove();
+            }
+            if (site.slots.size() < POLYMORPHIC_DEPTH) {
+                site.slots.add(slot);
+                relinkVariable(site);
+            } else {
+                site.megamorphic = true;
+                site.slots.clear();
+                site.setTarget(site.store ? MEGAMORPHIC_VARIABLE_PUT_AT : MEGAMORPHIC_VARIABLE_AT);
+            }
+        }
+    }
+    
+    private static void relinkVariable(VariableCallSite site) {
+        MethodHandle target = site.fallback;
+        for (Slot slot : site.slots)
+            target = bindVariable(site, slot, target);
+        site.setTarget(target);
+    }
+    
+    private static MethodHandle bindVariable(VariableCallSite site, Slot slot, MethodHandle next) {
+        MethodHandle target;
+        if (slot.outer)
+            target = site.store ? MEGAMORPHIC_VARIABLE_PUT_AT : MEGAMORPHIC_VARIABLE_AT;
+        else if (site.store && slot.shape != null)
+            target = MethodHandles.foldArguments(ANSWER_RECEIVER, MethodHandles.permuteArguments(
+                    MethodHandles.dropArguments(PrimObjectShapes.setterFor(slot.shape, slot.index), 2, String.class),
+                    MethodType.methodType(void.class, PrimObject.class, String.class, PrimObject.class), 2, 0, 1));
+        else if (site.store)
+            target = MethodHandles.dropArguments(MethodHandles.insertArguments(SLOT_AT_PUT, 1, slot.index), 1, String.class);
+        else if (slot.shape != null)
+            target = MethodHandles.dropArguments(PrimObjectShapes.getterFor(slot.shape, slot.index), 1, String.class);
+        else if (slot.index != 0)
+            target = MethodHandles.dropArguments(MethodHandles.insertArguments(SLOT_AT, 1, slot.index), 1, String.class);
+        else {
+            target = MethodHandles.dropArguments(MethodHandles.constant(PrimObject.class, slot.global), 0, PrimObject.class, String.class);
+            target = slot.globalSwitchPoint.guardWithTest(target, site.fallback);
+        }
+        target = slot.switchPoint.guardWithTest(target, site.fallback);
+        MethodHandle test = slot.shape != null ? MethodHandles.insertArguments(SHAPE_TEST, 1, slot.cls, slot.shape) : MethodHandles.insertArguments(TEST, 1, slot.cls);
+        test = MethodHandles.permuteArguments(test, site.type().changeReturnType(boolean.class), new int[]{site.store ? 2 : 0});
+        return MethodHandles.guardWithTest(test, target, next);
+    }
+    
+    private static PrimObject slotAt(PrimObject self, int index) {
+        return self.slotAt(index);
+    }
+    
+    private static PrimObject slotAtPut(PrimObject object, int index, PrimObject receiver) {
+        receiver.slotAtPut(index, object);
+        return receiver;
+    }
+    
+    public static PrimObject variableAt(VariableCallSite site, PrimObject self, String name) {
+        linkVariable(site, self, self.cls, name);
+        return self.variableAt(name);
+    }
+    
+    public static PrimObject variablePutAt(VariableCallSite site, PrimObject object, String name, PrimObject receiver) {
+        linkVariable(site, receiver, receiver.cls, name);
+        return PrimObject.variablePutAtIn(object, name, receiver);
+    }
+    
+    private static boolean smallIntegersTest(PrimObject self, PrimObject arg) {
+        return self instanceof PrimSmallInteger && arg instanceof PrimSmallInteger;
+    }
+
+    private static boolean floatsTest(PrimObject self, PrimObject arg) {
+        return self instanceof PrimFloat && arg instanceof PrimFloat;
+    }
+
+    private static boolean numbersTest(PrimObject self, PrimObject arg) {
+        return smallIntegersTest(self, arg) || floatsTest(self, arg);
+    }
+
+    private static void linkArithmetic(ArithmeticCallSite site, PrimObject self, String selector) {
+        PrimObject cls = self.cls;
+        // numbers created while bootstrapping have no class.
+        if (!(cls instanceof PrimObjectClass))
+            return;
+        Special special = new Special(self.getClass(), MethodCache.lookup(cls, selector));
+        synchronized (site) {
+            for (Iterator<Special> iterator = site.specials.iterator(); iterator.hasNext();) {
+                Special cached = iterator.next();
+                if (cached.type == special.type || !cached.entry.isValid())
+                    iterator.remove();
+            }
+            site.specials.add(special);
+            MethodHandle target = MethodHandles.guardWithTest(NUMBERS_TEST, site.fallback, site.send.dynamicInvoker());
+            for (Special cached : site.specials)
+                target = bindArithmetic(site, cached, target);
+            site.setTarget(target);
+        }
+    }
+
+    private static MethodHandle bindArithmetic(ArithmeticCallSite site, Special special, MethodHandle next) {
+        // the operation is done by the primitive when the method is one, otherwise the message is sent.
+        MethodHandle target = site.send.dynamicInvoker();
+        if (special.entry.method instanceof PrimObjectBlock) {
+            MethodHandle primitive = Primitives.handleFor(((PrimObjectBlock) special.entry.method).primitiveNumber(), 1);
+            if (primitive != null)
+                target = unlessPrimitiveFails(MethodHandles.dropArguments(primitive, 2, String.class), target);
+        }
+        target = special.entry.switchPoint.guardWithTest(target, site.fallback);
+        return MethodHandles.guardWithTest(special.type == PrimFloat.class ? FLOATS_TEST : SMALL_INTEGERS_TEST, target, next);
+    }
+
+    public static PrimObject arithmetic(ArithmeticCallSite site, PrimObject self, PrimObject arg, String selector) {
+        linkArithmetic(site, self, selector);
+        return perform(site.send, self, arg, selector);
+    }
+
+    public static PrimObject literal(LiteralCallSite site) {
+        if (site.type.equals("folded"))
+            return folded(site);
+        PrimObject literal = createLiteral(site.type, site.value);
+        if (PrimObject.BOOTSTRAPPING)
+            return literal;
+        if (site.type.equals("string")) {
+            site.setTarget(LITERAL_COPY.bindTo(literal));
+            return literal.literalCopy();
+        }
+        site.setTarget(MethodHandles.constant(PrimObject.class, literal));
+        return literal;
+    }
+    
+    public static PrimObject block(BlockCallSite site, PrimObject creator, PrimObject receiver, PrimContext context, PrimObject[] captured) {
+        PrimObject block = creator.block(receiver, context, captured, site.name);
+        if (((PrimObjectBlock) block).isClean())
+            site.setTarget(MethodHandles.dropArguments(MethodHandles.constant(PrimObject.class, block), 0, site.type().parameterList()));
+        else if (!block.isMethodBlock())
+            site.setTarget(blockFactory(block.getClass(), creator));
+        return block;
+    }
+
+    // Answers a handle typed (PrimObject creator, PrimObject receiver, PrimContext context, PrimObject[] captured)PrimObject
+    // that makes an instance of blockClass. A block made by another block is given that block's home (see PrimObjectBlock made).
+    private static MethodHandle blockFactory(Class blockClass, PrimObject creator) {
+        MethodHandle factory;
+        try {
+            factory = MethodHandles.publicLookup().findConstructor(blockClass, MethodType.methodType(void.class, PrimObject.class, PrimContext.class, PrimObject[].class));
+        } catch (Exception e) {
+            throw RedlineException.withCause(e);
+        }
+        factory = MethodHandles.dropArguments(factory.asType(MethodType.methodType(PrimObject.class, PrimObject.class, PrimContext.class, PrimObject[].class)), 0, PrimObject.class);
+        if (creator instanceof PrimObjectBlock)
+            factory = MethodHandles.foldArguments(MADE_BY_BLOCK, factory);
+        return factory;
+    }
+
+    private static PrimObject madeByBlock(PrimObject block, PrimObject creator, PrimObject receiver, PrimContext context, PrimObject[] captured) {
+        return ((PrimObjectBlock) creator).made(block);
+    }
+
+    private static PrimObject createLiteral(String type, String value) {
+        if (type.equals("number"))
+            return PrimObject.number((Object) value);
+        if (type.equals("string"))
+            return PrimObject.string(value);
+        if (type.equals("symbol"))
+            return PrimObject.symbol(value);
+        if (type.equals("character"))
+            return PrimObject.character(value);
+        if (type.equals("literalArray"))
+            return PrimObject.literalArray(value);
+        throw new IllegalStateException("Unknown literal type '" + type + "'.");
+    }
+
+    // Folded arithmetic is evaluated by sending its messages and the result is answered as a constant while
+    // the methods sent are the unchanged number primitives. A method being changed relinks the site, and when
+    // one isn't a primitive the expression is evaluated, and its messages sent, every time.
+    private static PrimObject folded(LiteralCallSite site) {
+        String[] expression = site.value.split(" ");
+        PrimObject result = PrimObject.number((Object) expression[0]);
+        List<SwitchPoint> switchPoints = PrimObject.BOOTSTRAPPING ? null : new ArrayList<SwitchPoint>();
+        for (int index = 1; index < expression.length; index += 2) {
+            if (switchPoints != null) {
+                MethodCache.Entry entry = primitiveEntry(result, expression[index]);
+                if (entry != null)
+                    switchPoints.add(entry.switchPoint);
+                else
+                    switchPoints = null;
+            }
+            result = result.perform(PrimObject.number((Object) expression[index + 1]), expression[index]);
+        }
+        if (switchPoints == null)
+            return result;
+        MethodHandle target = MethodHandles.constant(PrimObject.class, result);
+        for (SwitchPoint switchPoint : switchPoints)
+            target = switchPoint.guardWithTest(target, LITERAL.bindTo(site));
+        site.setTarget(target);
+        return result;
+    }
+
+    private static MethodCache.Entry primitiveEntry(PrimObject self, String selector) {
+        PrimObject cls = self.cls;
+        if (!(cls instanceof PrimObjectClass))
+            return null;
+        MethodCache.Entry entry = MethodCache.lookup(cls, selector);
+        if (entry.method instanceof PrimObjectBlock
+                && Primitives.handleFor(((PrimObjectBlock) entry.method).primitiveNumber(), 1) != null)
+            return entry;
+        return null;
     }
 }
@@ -0,0 +1,185 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+// Counts the instances of each class made by basic new and new: (see PrimObject p70 and p71) when the system
+// property 'redline.census' is true. Every instance is counted when it is made, and one in every
+// 'redline.census.sampleRate' instances of a class is followed with a phantom reference until it is collected,
+// so the live instances and bytes of a class are estimated as its live samples times the sample rate.
+// Bytes are the approximate shallow size of an instance and its attributes, with compressed references,
+// the objects its slots and Java value refer to are counted against their own classes.
+// The census is answered by SmalltalkImage current instanceCensus (see p241) and published as the MBean
+// 'st.redline:type=InstanceCensus'.
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class InstanceCensus implements InstanceCensusMBean {
+
+    static final boolean ENABLED = Boolean.getBoolean("redline.census");
+    static final int SAMPLE_RATE = Math.max(1, Integer.getInteger("redline.census.sampleRate", 64));
+    static final String OBJECT_NAME = "st.redline:type=InstanceCensus";
+
+    private static final int HEADER_BYTES = 12;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int OBJECT_BYTES = HEADER_BYTES + 2 + 3 * REFERENCE_BYTES;  // flags, javaValue, cls, attributes.
+    private static final int ARRAY_BYTES = HEADER_BYTES + 4;
+
+    private static final List<Tally> TALLIES = new CopyOnWriteArrayList<Tally>();
+    private static final ReferenceQueue<PrimObject> COLLECTED = new ReferenceQueue<PrimObject>();
+    private static final Set<Sample> SAMPLES = Collections.newSetFromMap(new ConcurrentHashMap<Sample, Boolean>());
+
+    static {
+        if (ENABLED)
+            register();
+    }
+
+    static class Tally {
+        final PrimObjectClass cls;
+        final AtomicLong made = new AtomicLong();
+        final AtomicLong liveSamples = new AtomicLong();
+        final AtomicLong liveSampleBytes = new AtomicLong();
+        Tally(PrimObjectClass cls) {
+            this.cls = cls;
+        }
+        long live() {
+            return liveSamples.get() * SAMPLE_RATE;
+        }
+        long bytes() {
+            return liveSampleBytes.get() * SAMPLE_RATE;
+        }
+        String name() {
+            String fqn = cls instanceof PrimObjectMetaclass ? ((PrimObjectMetaclass) cls).fqn() : null;
+            return fqn != null ? fqn : String.valueOf(cls);
+        }
+    }
+
+    static class Sample extends PhantomReference<PrimObject> {
+        final Tally tally;
+        final long bytes;
+        Sample(PrimObject instance, Tally tally, long bytes) {
+            super(instance, COLLECTED);
+            this.tally = tally;
+            this.bytes = bytes;
+        }
+    }
+
+    static void made(PrimObjectClass cls, PrimObject instance) {
+        Tally tally = tallyOf(cls);
+        if (tally.made.getAndIncrement() % SAMPLE_RATE != 0)
+            return;
+        long bytes = bytesOf(instance);
+        tally.liveSamples.incrementAndGet();
+        tally.liveSampleBytes.addAndGet(bytes);
+        SAMPLES.add(new Sample(instance, tally, bytes));
+        expunge();
+    }
+
+    private static Tally tallyOf(PrimObjectClass cls) {
+        Tally tally = cls.censusTally;
+        if (tally != null)
+            return tally;
+        synchronized (cls) {
+            if (cls.censusTally == null) {
+                cls.censusTally = new Tally(cls);
+                TALLIES.add(cls.censusTally);
+            }
+            return cls.censusTally;
+        }
+    }
+
+    static long bytesOf(PrimObject instance) {
+        if (instance.attributes != null)
+            return aligned(OBJECT_BYTES) + aligned(ARRAY_BYTES + instance.attributes.length * REFERENCE_BYTES);
+        int fields = Math.max(0, instance.slotLimit() - PrimObjectShapes.FIRST_SLOT_INDEX);
+        return aligned(OBJECT_BYTES + fields * REFERENCE_BYTES);
+    }
+
+    // Answers an Array with an Array of the class, live instances, live bytes and instances made for each tally.
+    static PrimObject census() {
+        List<Tally> tallies = tallies();
+        PrimObject census = PrimObject.array(tallies.size());
+        List<PrimObject> entries = (List<PrimObject>) census.javaValue();
+        for (int i = 0; i < tallies.size(); i++) {
+            Tally tally = tallies.get(i);
+            PrimObject entry = PrimObject.array(4);
+            List<PrimObject> elements = (List<PrimObject>) entry.javaValue();
+            elements.set(1, tally.cls);
+            elements.set(2, PrimObject.number(tally.live()));
+            elements.set(3, PrimObject.number(tally.bytes()));
+            elements.set(4, PrimObject.number(tally.made.get()));
+            entries.set(i + 1, entry);
+        }
+        return census;
+    }
+
+    private static long aligned(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private static void expunge() {
+        Reference<? extends PrimObject> collected;
+        while ((collected = COLLECTED.poll()) != null) {
+            Sample sample = (Sample) collected;
+            SAMPLES.remove(sample);
+            sample.tally.liveSamples.decrementAndGet();
+            sample.tally.liveSampleBytes.addAndGet(-sample.bytes);
+        }
+    }
+
+    // Answers the tallies of the classes with instances, most live bytes first.
+    static List<Tally> tallies() {
+        expunge();
+        List<Tally> tallies = new ArrayList<Tally>(TALLIES);
+        Collections.sort(tallies, new Comparator<Tally>() {
+            public int compare(Tally first, Tally second) {
+                long difference = second.bytes() - first.bytes();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        return tallies;
+    }
+
+    private static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new InstanceCensus(), new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            throw RedlineException.withCause(e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public int getSampleRate() {
+        return SAMPLE_RATE;
+    }
+
+    public long getLiveInstances() {
+        long live = 0;
+        for (Tally tally : tallies())
+            live += tally.live();
+        return live;
+    }
+
+    public long getLiveBytes() {
+        long bytes = 0;
+        for (Tally tally : tallies())
+            bytes += tally.bytes();
+        return bytes;
+    }
+
+    public String[] getCensus() {
+        List<String> census = new ArrayList<String>();
+        for (Tally tally : tallies())
+            census.add(tally.name() + " live: " + tally.live() + " bytes: " + tally.bytes() + " made: " + tally.made.get());
+        return census.toArray(new String[census.size()]);
+    }
+}
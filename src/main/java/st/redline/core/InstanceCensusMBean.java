@@ -0,0 +1,18 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+// The census of instances by class published through JMX, see InstanceCensus.
+
+public interface InstanceCensusMBean {
+
+    boolean isEnabled();
+
+    int getSampleRate();
+
+    long getLiveInstances();
+
+    long getLiveBytes();
+
+    // a line for each class with instances, most live bytes first.
+    String[] getCensus();
+}
@@ -0,0 +1,60 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+// Holds the elements of a literal array, eg: #(1 $a 'b' #c). A literal array is created once where it is
+// compiled and answered by every evaluation (see IndyBootstrap), so its elements can't be changed.
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+class LiteralArrayList extends ArrayList<PrimObject> {
+
+    LiteralArrayList(List<PrimObject> elements) {
+        super(elements);
+    }
+
+    private IllegalStateException unchangeable() {
+        return new IllegalStateException("A literal array can't be changed.");
+    }
+
+    public PrimObject set(int index, PrimObject element) {
+        throw unchangeable();
+    }
+
+    public boolean add(PrimObject element) {
+        throw unchangeable();
+    }
+
+    public void add(int index, PrimObject element) {
+        throw unchangeable();
+    }
+
+    public boolean addAll(Collection<? extends PrimObject> elements) {
+        throw unchangeable();
+    }
+
+    public boolean addAll(int index, Collection<? extends PrimObject> elements) {
+        throw unchangeable();
+    }
+
+    public PrimObject remove(int index) {
+        throw unchangeable();
+    }
+
+    public boolean remove(Object element) {
+        throw unchangeable();
+    }
+
+    public boolean removeAll(Collection<?> elements) {
+        throw unchangeable();
+    }
+
+    public boolean retainAll(Collection<?> elements) {
+        throw unchangeable();
+    }
+
+    public void clear() {
+        throw unchangeable();
+    }
+}
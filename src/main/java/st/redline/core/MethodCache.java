@@ -0,0 +1,76 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+// Provides a global cache of method lookups keyed by receiver class and selector.
+// Lookups are first looked for in the dispatch table of the receiver class, indexed by selector id,
+// the global cache is the fallback for selectors outside the dispatch table and non class receivers.
+// Each entry remembers the method found, the class it was found in and the SwitchPoint guarding
+// the lookup (see PrimObjectClass). An entry whose SwitchPoint has been invalidated is treated as a miss.
+// Lookups that fail are cached too, as negative entries answering the doesNotUnderstand method.
+// Entries are immutable and replaced wholesale, so the cache is read and written without locking.
+
+import java.lang.invoke.SwitchPoint;
+
+class MethodCache {
+
+    static final int SIZE = 4096;  // must be a power of two.
+
+    private static final Entry[] ENTRIES = new Entry[SIZE];
+
+    static Entry lookup(PrimObject cls, String selector) {
+        return lookup(cls, Selectors.idOf(selector), selector);
+    }
+
+    static Entry lookup(PrimObject cls, int selectorId, String selector) {
+        Entry entry = cls.dispatchEntry(selectorId);
+        if (entry != null && entry.isValid())
+            return entry;
+        int index = indexOf(cls, selector);
+        entry = ENTRIES[index];
+        if (entry == null || !entry.matches(cls, selector)) {
+            entry = new Entry(cls, selector);
+            ENTRIES[index] = entry;
+        }
+        cls.dispatchEntry(selectorId, entry);
+        return entry;
+    }
+
+    static int indexOf(PrimObject cls, String selector) {
+        return (System.identityHashCode(cls) ^ selector.hashCode()) & (SIZE - 1);
+    }
+
+    static class Entry {
+
+        final PrimObject cls;
+        final String selector;
+        final SwitchPoint switchPoint;
+        final PrimObject foundInClass;
+        final PrimObject method;
+
+        Entry(PrimObject cls, String selector) {
+            this.cls = cls;
+            this.selector = selector;
+            // get the SwitchPoint before walking so a concurrent change invalidates this entry.
+            this.switchPoint = cls.lookupSwitchPoint(selector);
+            PrimObject aClass = cls;
+            while (!aClass.includesSelector(selector))
+                aClass = aClass.superclass();
+            this.foundInClass = aClass;
+            this.method = aClass.methodFor(selector);
+        }
+
+        boolean matches(PrimObject cls, String selector) {
+            return this.cls == cls
+                    && (this.selector == selector || this.selector.equals(selector))
+                    && isValid();
+        }
+
+        boolean isValid() {
+            return !switchPoint.hasBeenInvalidated();
+        }
+
+        boolean isUnderstood() {
+            return method != PrimObject.BASIC_DOES_NOT_UNDERSTAND;
+        }
+    }
+}
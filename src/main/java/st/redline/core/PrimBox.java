@@ -0,0 +1,16 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+// Holds a temporary that is captured by a block and can be changed after it is captured, so the method or block
+// the temporary is in and the blocks capturing it share the one variable. The box is kept in the temporary's slot
+// of its context (see PrimContext boxTemporaryAt) and in the captured variables of the blocks (see PrimObjectBlock).
+// Temporaries that don't change once captured are copied into the blocks instead.
+
+final class PrimBox extends PrimObject {
+
+    PrimObject value;
+
+    PrimBox(PrimObject value) {
+        this.value = value;
+    }
+}
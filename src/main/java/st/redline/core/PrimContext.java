@@ -1,7 +1,6 @@
 /* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
 package st.redline.core;
 
-import java.math.BigDecimal;
 import java.util.ArrayList;
 
 public class PrimContext {
@@ -31,14 +30,6 @@ public class PrimContext {
         context.temporaryAtPut(index, object);
     }
 
-    public static void temporaryPutAtInFrom(PrimObject object, int index, PrimContext context, PrimObject receiver) {
-        ((PrimObjectBlock) receiver).outerContext().temporaryAtPut(index, object);
-    }
-
-    public PrimObject outerReceiver(PrimObject receiver) {
-        return ((PrimObjectBlock) receiver).outerContext().receiver;
-    }
-
     public void temporaryAtPut(int index, PrimObject object) {
         temporaries[index] = object;
     }
@@ -47,8 +38,18 @@ public class PrimContext {
         return temporaries[index];
     }
 
-    public PrimObject temporaryAtFrom(int index, PrimObject receiver) {
-        return ((PrimObjectBlock) receiver).outerContext().temporaryAt(index);
+    // A temporary captured by a block that may change it, or change after it is captured, is kept in a box
+    // shared with the block, see PrimBox.
+    public void boxTemporaryAt(int index) {
+        temporaries[index] = new PrimBox(temporaries[index]);
+    }
+
+    public PrimObject boxedTemporaryAt(int index) {
+        return ((PrimBox) temporaries[index]).value;
+    }
+
+    public static void boxedTemporaryPutAtIn(PrimObject object, int index, PrimContext context) {
+        ((PrimBox) context.temporaries[index]).value = object;
     }
 
     public PrimObject argumentAt(int index) {
@@ -59,12 +60,8 @@ public class PrimContext {
         return ((ArrayList<PrimObject>) argumentAt(argumentIndex).javaValue()).get(elementIndex);
     }
 
-    public PrimObject argumentAtFrom(int index, PrimObject receiver) {
-        return ((PrimObjectBlock) receiver).outerContext().argumentAt(index);
-    }
-
     public int intArgumentAt(int index) {
-        return ((BigDecimal) argumentAt(index).javaValue()).intValue();
+        return ((Number) argumentAt(index).javaValue()).intValue();
     }
 
     public void temporariesInit(int size) {
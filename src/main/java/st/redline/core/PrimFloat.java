@@ -0,0 +1,60 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+// Provides the Float instances, held as a primitive double so the arithmetic primitives
+// (see Primitives) don't unbox. Arithmetic between a Float and any other number answers a Float.
+// Floats are immutable.
+
+public class PrimFloat extends PrimObject {
+
+    private static PrimObject floatClass = null;
+
+    final double value;
+
+    PrimFloat(double value) {
+        this.value = value;
+        PrimObject cls = floatClass();
+        if (cls != null)
+            cls(cls);
+    }
+
+    private static PrimObject floatClass() {
+        PrimObject cls = floatClass;
+        if (cls == null && !BOOTSTRAPPING)
+            floatClass = cls = PrimObjectMetaclass.METACLASS.resolveObject("Float");
+        return cls;
+    }
+
+    public double value() {
+        return value;
+    }
+
+    public Object javaValue() {
+        return Double.valueOf(value);
+    }
+
+    public PrimObject javaValue(Object javaValue) {
+        throw new IllegalStateException("Float " + value + " can't be changed.");
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof PrimFloat))
+            return false;
+        return value == ((PrimFloat) o).value;
+    }
+
+    public int hashCode() {
+        // equal numbers hash alike, so -0.0 hashes as 0.0 and an integral Float as the SmallInteger it equals.
+        long integral = (long) value;
+        if (integral == value)
+            return (int) (integral ^ (integral >>> 32));
+        long bits = Double.doubleToLongBits(value);
+        return (int) (bits ^ (bits >>> 32));
+    }
+
+    public String toString() {
+        return Double.toString(value).replace('E', 'e');
+    }
+}
@@ -0,0 +1,85 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+// Provides the Fraction instances, exact rationals held as a BigInteger numerator and denominator.
+// Fractions are always normalised: the denominator is positive and greater than one and shares no
+// factor with the numerator, so a result that is a whole number is answered as an Integer instead
+// (see PrimObject.fraction). Fractions are immutable.
+
+import java.math.BigInteger;
+
+public class PrimFraction extends PrimObject {
+
+    private static PrimObject fractionClass = null;
+
+    final BigInteger numerator;
+    final BigInteger denominator;
+
+    PrimFraction(BigInteger numerator, BigInteger denominator) {
+        this.numerator = numerator;
+        this.denominator = denominator;
+        PrimObject cls = fractionClass();
+        if (cls != null)
+            cls(cls);
+    }
+
+    private static PrimObject fractionClass() {
+        PrimObject cls = fractionClass;
+        if (cls == null && !BOOTSTRAPPING)
+            fractionClass = cls = PrimObjectMetaclass.METACLASS.resolveObject("Fraction");
+        return cls;
+    }
+
+    public BigInteger numerator() {
+        return numerator;
+    }
+
+    public BigInteger denominator() {
+        return denominator;
+    }
+
+    // Answers the nearest double, ties to even, as dividing the numerator by the denominator exactly would.
+    double doubleValue() {
+        BigInteger magnitude = numerator.abs();
+        // scale so the quotient has 55 or 56 bits, more than a double holds, so it can be rounded.
+        int scale = 55 - magnitude.bitLength() + denominator.bitLength();
+        BigInteger[] division = scale >= 0
+            ? magnitude.shiftLeft(scale).divideAndRemainder(denominator)
+            : magnitude.divideAndRemainder(denominator.shiftLeft(-scale));
+        BigInteger quotient = division[0];
+        // drop the bits a double can't hold, more of them when the result is subnormal.
+        int dropped = Math.max(quotient.bitLength() - 53, scale - 1074);
+        BigInteger mantissa = quotient.shiftRight(dropped);
+        int half = quotient.subtract(mantissa.shiftLeft(dropped)).compareTo(BigInteger.ONE.shiftLeft(dropped - 1));
+        if (half > 0 || (half == 0 && (division[1].signum() != 0 || mantissa.testBit(0))))
+            mantissa = mantissa.add(BigInteger.ONE);
+        double value = Math.scalb(mantissa.doubleValue(), dropped - scale);
+        return numerator.signum() < 0 ? -value : value;
+    }
+
+    // Java code is given the nearest double.
+    public Object javaValue() {
+        return Double.valueOf(doubleValue());
+    }
+
+    public PrimObject javaValue(Object javaValue) {
+        throw new IllegalStateException("Fraction " + this + " can't be changed.");
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof PrimFraction))
+            return false;
+        PrimFraction other = (PrimFraction) o;
+        return numerator.equals(other.numerator) && denominator.equals(other.denominator);
+    }
+
+    public int hashCode() {
+        return numerator.hashCode() * 31 + denominator.hashCode();
+    }
+
+    public String toString() {
+        return numerator + "/" + denominator;
+    }
+}
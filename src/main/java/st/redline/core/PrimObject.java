@@ -5,6 +5,8 @@ package st.redline.core;
 // - perform a message
 // - hold a java value object
 // - hold 'n' + 1 primitive objects, one is class object
+// The class is held in its own field. The other slots are held in an attributes array, slot 1 first, except for
+// the instances of Smalltalk classes which are made from a class with a field for each slot (see PrimObjectShapes).
 // Typically you don't create instances of PrimObject directly, instead you ask
 // a PrimObjectClass for an instance of the class it represents by sending it the 'new' message.
 // A PrimObjectClass instance is obtained via its MetaClass, see PrimObjectMetaclass.
@@ -12,15 +14,16 @@ package st.redline.core;
 import st.redline.bootstrap.AtSelectorPutMethod;
 import st.redline.bootstrap.CreateSubclassMethod;
 import st.redline.bootstrap.InstanceVariableNamesMethod;
-import st.redline.compiler.Block;
 import st.redline.compiler.SmalltalkGeneratorOfAdaptorOfAJavaClass;
 
+import java.lang.invoke.SwitchPoint;
 import java.lang.reflect.Constructor;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
-public class PrimObject {
+public class PrimObject implements Cloneable {
 
     public static final ThreadLocal<Stack<String>> PACKAGE_REGISTRY = new ThreadLocal<Stack<String>>();
     public static final ThreadLocal<Map<String, PrimObjectMetaclass>> EIGENCLASS_REGISTRY = new ThreadLocal<Map<String, PrimObjectMetaclass>>();
@@ -37,24 +40,27 @@ public class PrimObject {
     public static PrimObject TRUE = null;
     public static PrimObject FALSE = null;
 
-    static final int DEFAULT_ATTRIBUTE_COUNT = 1;  // default attribute is class
+    static final int DEFAULT_ATTRIBUTE_COUNT = 1;  // default attribute is class, held in cls not attributes
     static final int CLASS_INDEX = 0;
+    static final int FIRST_ATTRIBUTE_INDEX = CLASS_INDEX + 1;  // the slot held in attributes[0]
     static final PrimObject BASIC_DOES_NOT_UNDERSTAND = new PrimBasicDoesNotUnderstand();
     static final PrimObject PRIM_NIL = new PrimObject();
+    static final PrimObject[] NO_ARGUMENTS = new PrimObject[0];
+    static final SwitchPoint NEVER_INVALIDATED = new SwitchPoint();
 
     static boolean BOOTSTRAPPING = false;
 
     boolean trueness = false;
     boolean falseness = false;
     Object javaValue = null;
+    PrimObject cls;
     PrimObject[] attributes;
 
     public PrimObject() {
-        this(0);
     }
 
     PrimObject(int basicSize) {
-        attributes = new PrimObject[basicSize + DEFAULT_ATTRIBUTE_COUNT];
+        attributes = new PrimObject[basicSize];
         initialize();
     }
 
@@ -114,36 +120,30 @@ public class PrimObject {
         return null;
     }
 
-    public PrimObject block(String name, PrimContext context) {
+    // The block takes the receiver and context it is created with, if it needs them, and the variables
+    // it captures (see PrimObjectBlock).
+    public PrimObject block(PrimObject receiver, PrimContext context, PrimObject[] captured, String name) {
         // NOTE: When asking a keyword expression is it contains a block with an answer expression,
         // we should also take that opportunity to mark the block node as being a method block or
         // not, then when we create the block, pass this into the block object.
         // This flag will be used during createBlockInstance().
-        if (BLOCKS.containsKey(name))
-            return createBlockInstance(BLOCKS.get(name), context);
-        Block block = (Block) SmalltalkEnvironment.BLOCKS_TO_BE_COMPILED.remove(name);
+        PrimObject block = BLOCKS.get(name);
         if (block == null)
-            throw new IllegalStateException("Block to be compiled '" + name + "' not found.");
-        block.accept(block.analyser());
-        try {
-            PrimObject newblock = (PrimObject) exposedClassLoader().defineClass(block.classBytes()).newInstance();
-            BLOCKS.put(name, newblock);
-            return createBlockInstance(newblock, context);
-        } catch (Exception e) {
-            throw new RedlineException(e);
-        }
+            block = BlockCompiler.compile(name);
+        return createBlockInstance(block, receiver, context, captured);
     }
 
     public static SmalltalkEnvironment smalltalkEnvironment() {
         return SmalltalkEnvironment.instance();
     }
 
-    static PrimObject createBlockInstance(PrimObject block, PrimContext context) {
-        if (block.isMethodBlock())
+    // A clean block is answered as the instance compiled with it, see PrimObjectBlock isClean.
+    static PrimObject createBlockInstance(PrimObject block, PrimObject receiver, PrimContext context, PrimObject[] captured) {
+        if (block.isMethodBlock() || ((PrimObjectBlock) block).isClean())
             return block;
         try {
-            Constructor constructor = block.getClass().getConstructor(PrimContext.class);
-            return (PrimObjectBlock) constructor.newInstance(context);
+            Constructor constructor = block.getClass().getConstructor(PrimObject.class, PrimContext.class, PrimObject[].class);
+            return (PrimObjectBlock) constructor.newInstance(receiver, context, captured);
         } catch (Exception e) {
             throw new RedlineException(e);
         }
@@ -160,20 +160,104 @@ public class PrimObject {
         return object;
     }
 
+    // Literal arrays are created once where they are compiled (see IndyBootstrap) from their elements encoded
+    // by the compiler (see Array.literal), the array answered can't be changed.
+    public static PrimObject literalArray(Object javaValue) {
+        String literal = (String) javaValue;
+        List<PrimObject> array = new ArrayList<PrimObject>();
+        array.add(BOOTSTRAPPING ? PRIM_NIL : NIL); // we add NIL at index 0 because smalltalk indexes start at 1.
+        int index = 0;
+        while (index < literal.length()) {
+            char kind = literal.charAt(index);
+            int separator = literal.indexOf(':', index);
+            int end = separator + 1 + Integer.parseInt(literal.substring(index + 1, separator));
+            array.add(literalElement(kind, literal.substring(separator + 1, end)));
+            index = end;
+        }
+        return instanceOf("Array").with(new LiteralArrayList(array));
+    }
+
+    private static PrimObject literalElement(char kind, String value) {
+        switch (kind) {
+            case 'n': return number((Object) value);
+            case 's': return string(value);
+            case 'y': return symbol(value);
+            case 'c': return character(value);
+            case 'a': return literalArray(value);
+        }
+        throw new IllegalStateException("Unknown kind of literal array element '" + kind + "'.");
+    }
+
+    // Evaluates arithmetic folded by the compiler, the numbers and binary selectors separated by spaces.
+    // IndyBootstrap answers the result as a constant while the number methods sent are unchanged.
+    public static PrimObject folded(Object javaValue) {
+        String[] expression = ((String) javaValue).split(" ");
+        PrimObject result = number((Object) expression[0]);
+        for (int index = 1; index < expression.length; index += 2)
+            result = result.perform(number((Object) expression[index + 1]), expression[index]);
+        return result;
+    }
+
     public static PrimObject string(Object javaValue) {
         return instanceOf("String").with(javaValue);
     }
 
     public static PrimObject number(Object javaValue) {
-        return instanceOf("Integer").with(new BigDecimal((String) javaValue));
+        String value = (String) javaValue;
+        int radix = value.indexOf('r');
+        if (radix != -1)
+            return number(new BigInteger(value.substring(radix + 1), Integer.parseInt(value.substring(0, radix))));
+        if (value.indexOf('.') != -1)
+            return number(Double.parseDouble(value));
+        if (value.indexOf('e') != -1) {
+            // an exponent without a fraction part is exact, 1e3 is an Integer and 1e-3 a Fraction.
+            BigDecimal exact = new BigDecimal(value);
+            if (exact.scale() <= 0)
+                return number(exact.toBigIntegerExact());
+            return fraction(exact.unscaledValue(), BigInteger.TEN.pow(exact.scale()));
+        }
+        try {
+            return number(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return number(new BigInteger(value));
+        }
     }
 
-    public static PrimObject number(BigDecimal javaValue) {
-        return instanceOf("Integer").with(javaValue);
+    public static PrimObject number(Integer javaValue) {
+        return number(javaValue.longValue());
     }
 
-    public static PrimObject number(Integer javaValue) {
-        return instanceOf("Integer").with(new BigDecimal(javaValue));
+    public static PrimObject number(long javaValue) {
+        return PrimSmallInteger.valueOf(javaValue);
+    }
+
+    // answers a SmallInteger when the value fits in a long, otherwise a LargePositiveInteger or LargeNegativeInteger.
+    public static PrimObject number(BigInteger javaValue) {
+        if (javaValue.bitLength() < 64)
+            return PrimSmallInteger.valueOf(javaValue.longValue());
+        return instanceOf(javaValue.signum() < 0 ? "LargeNegativeInteger" : "LargePositiveInteger").with(javaValue);
+    }
+
+    public static PrimObject number(double javaValue) {
+        return new PrimFloat(javaValue);
+    }
+
+    // answers the normalised Fraction, or an Integer when the denominator divides the numerator.
+    public static PrimObject fraction(BigInteger numerator, BigInteger denominator) {
+        if (denominator.signum() == 0)
+            throw new ArithmeticException("Division by zero.");
+        if (denominator.signum() < 0) {
+            numerator = numerator.negate();
+            denominator = denominator.negate();
+        }
+        BigInteger gcd = numerator.gcd(denominator);
+        if (!gcd.equals(BigInteger.ONE)) {
+            numerator = numerator.divide(gcd);
+            denominator = denominator.divide(gcd);
+        }
+        if (denominator.equals(BigInteger.ONE))
+            return number(numerator);
+        return new PrimFraction(numerator, denominator);
     }
 
     public static PrimObject character(Object javaValue) {
@@ -189,8 +273,25 @@ public class PrimObject {
         return primObject;
     }
 
-    public static PrimObject blockAnswer(PrimObject answer, PrimObjectBlock block, String blockReturnType) {
-        return block.answer(answer, blockReturnType);
+    // String literals are created once where they are compiled (see IndyBootstrap), each evaluation answers
+    // a copy of that literal so changing the string answered doesn't change the literal.
+    PrimObject literalCopy() {
+        return shallowCopy();
+    }
+
+    PrimObject shallowCopy() {
+        try {
+            PrimObject copy = (PrimObject) clone();
+            if (attributes != null)
+                copy.attributes = attributes.clone();
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new RedlineException(e);
+        }
+    }
+
+    public static PrimObject blockAnswer(PrimObject answer, PrimObjectBlock block) {
+        return block.answer(answer);
     }
 
     public PrimObject with(Object value) {
@@ -219,10 +320,11 @@ public class PrimObject {
 
     public static void dump(Object object) {
         System.out.println("Dump: " + object);
-        for (int i = 0; i < ((PrimObject) object).attributes.length; i++) {
-            System.out.print(i + " " + ((PrimObject) object).attributes[i]);
-            if (((PrimObject) object).attributes[i].javaValue() != null)
-                System.out.println(" -> " + ((PrimObject) object).attributes[i].javaValue());
+        System.out.println(CLASS_INDEX + " " + ((PrimObject) object).cls());
+        for (int i = DEFAULT_ATTRIBUTE_COUNT; i < ((PrimObject) object).slotLimit(); i++) {
+            System.out.print(i + " " + ((PrimObject) object).slotAt(i));
+            if (((PrimObject) object).slotAt(i).javaValue() != null)
+                System.out.println(" -> " + ((PrimObject) object).slotAt(i).javaValue());
             else
                 System.out.println();
         }
@@ -231,7 +333,7 @@ public class PrimObject {
     public PrimObject variableAt(String name) {
         int index = cls().indexOfVariable(name);
         if (index != 0)
-            return attributes[index];
+            return slotAt(index);
         return resolveObject(name);
     }
 
@@ -242,7 +344,7 @@ public class PrimObject {
     PrimObject variableAtPut(String name, PrimObject object) {
         int index = cls().indexOfVariable(name);
         if (index != 0) {
-            attributes[index] = object;
+            slotAtPut(index, object);
             return this;
         }
         throw new IllegalStateException("Slot for '" + name + "' not found.");
@@ -255,68 +357,112 @@ public class PrimObject {
     public static PrimObject putAt(PrimObject receiver, PrimObject object, int index) {
     //		System.out.println("putAt() " + receiver + " put: " + object + " at: " + index);
         // re-order arguments, convert int to object and send proper message.
-        receiver.perform(number(String.valueOf(index)), object, "at:put:");
+        receiver.perform(number(index), object, "at:put:");
         return receiver;
     }
 
     public PrimObject p9(PrimObject receiver, PrimContext context) {
-        BigDecimal result = ((BigDecimal) receiver.javaValue()).multiply((BigDecimal) context.argumentAt(0).javaValue());
-        return number(result);
+        return Primitives.multiply(receiver, context.argumentAt(0));
     }
 
     public PrimObject p10(PrimObject receiver, PrimContext context) {
-        BigDecimal result = ((BigDecimal) receiver.javaValue()).divide((BigDecimal) context.argumentAt(0).javaValue());
-        return number(result);
+        return Primitives.divide(receiver, context.argumentAt(0));
     }
 
     public PrimObject p21(PrimObject receiver, PrimContext context) {
-        BigDecimal result = ((BigDecimal) receiver.javaValue()).add((BigDecimal) context.argumentAt(0).javaValue());
-        return number(result);
+        return Primitives.add(receiver, context.argumentAt(0));
     }
 
     public PrimObject p22(PrimObject receiver, PrimContext context) {
-        BigDecimal result = ((BigDecimal) receiver.javaValue()).subtract((BigDecimal) context.argumentAt(0).javaValue());
-        return number(result);
+        return Primitives.subtract(receiver, context.argumentAt(0));
     }
 
     public PrimObject p23(PrimObject receiver, PrimContext context) {
-        int result = ((BigDecimal) receiver.javaValue()).compareTo((BigDecimal) context.argumentAt(0).javaValue());
-        return result < 0 ? PrimObject.TRUE : PrimObject.FALSE;
+        return Primitives.lessThan(receiver, context.argumentAt(0));
     }
 
     public PrimObject p24(PrimObject receiver, PrimContext context) {
-        int result = ((BigDecimal) receiver.javaValue()).compareTo((BigDecimal) context.argumentAt(0).javaValue());
-        return result > 0 ? PrimObject.TRUE : PrimObject.FALSE;
+        return Primitives.greaterThan(receiver, context.argumentAt(0));
     }
 
     public PrimObject p25(PrimObject receiver, PrimContext context) {
-        int result = ((BigDecimal) receiver.javaValue()).compareTo((BigDecimal) context.argumentAt(0).javaValue());
-        return result <= 0 ? PrimObject.TRUE : PrimObject.FALSE;
+        return Primitives.lessThanOrEqual(receiver, context.argumentAt(0));
     }
 
     public PrimObject p26(PrimObject receiver, PrimContext context) {
-        int result = ((BigDecimal) receiver.javaValue()).compareTo((BigDecimal) context.argumentAt(0).javaValue());
-        return result >= 0 ? PrimObject.TRUE : PrimObject.FALSE;
+        return Primitives.greaterThanOrEqual(receiver, context.argumentAt(0));
     }
 
     public PrimObject p27(PrimObject receiver, PrimContext context) {
-        int result = ((BigDecimal) receiver.javaValue()).compareTo((BigDecimal) context.argumentAt(0).javaValue());
-        return result == 0 ? PrimObject.TRUE : PrimObject.FALSE;
+        return Primitives.equal(receiver, context.argumentAt(0));
     }
 
     public PrimObject p28(PrimObject receiver, PrimContext context) {
-        int result = ((BigDecimal) receiver.javaValue()).compareTo((BigDecimal) context.argumentAt(0).javaValue());
-        return result != 0 ? PrimObject.TRUE : PrimObject.FALSE;
+        return Primitives.notEqual(receiver, context.argumentAt(0));
     }
 
     public PrimObject p29(PrimObject receiver, PrimContext context) {
-        BigDecimal result = ((BigDecimal) receiver.javaValue()).multiply((BigDecimal) context.argumentAt(0).javaValue());
-        return number(result);
+        return Primitives.multiply(receiver, context.argumentAt(0));
     }
 
     public PrimObject p30(PrimObject receiver, PrimContext context) {
-        BigDecimal result = ((BigDecimal) receiver.javaValue()).divide((BigDecimal) context.argumentAt(0).javaValue());
-        return number(result);
+        return Primitives.divide(receiver, context.argumentAt(0));
+    }
+
+    public PrimObject p40(PrimObject receiver, PrimContext context) {
+        return Primitives.asFloat(receiver);
+    }
+
+    public PrimObject p41(PrimObject receiver, PrimContext context) {
+        return Primitives.add(receiver, context.argumentAt(0));
+    }
+
+    public PrimObject p42(PrimObject receiver, PrimContext context) {
+        return Primitives.subtract(receiver, context.argumentAt(0));
+    }
+
+    public PrimObject p43(PrimObject receiver, PrimContext context) {
+        return Primitives.lessThan(receiver, context.argumentAt(0));
+    }
+
+    public PrimObject p44(PrimObject receiver, PrimContext context) {
+        return Primitives.greaterThan(receiver, context.argumentAt(0));
+    }
+
+    public PrimObject p45(PrimObject receiver, PrimContext context) {
+        return Primitives.lessThanOrEqual(receiver, context.argumentAt(0));
+    }
+
+    public PrimObject p46(PrimObject receiver, PrimContext context) {
+        return Primitives.greaterThanOrEqual(receiver, context.argumentAt(0));
+    }
+
+    public PrimObject p47(PrimObject receiver, PrimContext context) {
+        return Primitives.equal(receiver, context.argumentAt(0));
+    }
+
+    public PrimObject p48(PrimObject receiver, PrimContext context) {
+        return Primitives.notEqual(receiver, context.argumentAt(0));
+    }
+
+    public PrimObject p49(PrimObject receiver, PrimContext context) {
+        return Primitives.multiply(receiver, context.argumentAt(0));
+    }
+
+    public PrimObject p50(PrimObject receiver, PrimContext context) {
+        return Primitives.divide(receiver, context.argumentAt(0));
+    }
+
+    public PrimObject p51(PrimObject receiver, PrimContext context) {
+        return Primitives.truncated(receiver);
+    }
+
+    public PrimObject p55(PrimObject receiver, PrimContext context) {
+        return Primitives.sqrt(receiver);
+    }
+
+    public PrimObject p58(PrimObject receiver, PrimContext context) {
+        return Primitives.ln(receiver);
     }
 
     public PrimObject p60(PrimObject receiver, PrimContext context) {
@@ -333,8 +479,10 @@ public class PrimObject {
 
     public PrimObject p70(PrimObject receiver, PrimContext context) {
         PrimObjectMetaclass aClass = (PrimObjectMetaclass) receiver;
-        PrimObject newInstance = new PrimObject(aClass.primInstanceSize());
+        PrimObject newInstance = PrimObjectShapes.newInstance(aClass.primInstanceSize());
         newInstance.cls(aClass);
+        if (InstanceCensus.ENABLED)
+            InstanceCensus.made(aClass, newInstance);
         return newInstance;
     }
 
@@ -343,11 +491,13 @@ public class PrimObject {
         PrimObjectMetaclass aClass = (PrimObjectMetaclass) receiver;
         PrimObject newInstance = new PrimObject(aClass.primInstanceSize() + size);
         newInstance.cls(aClass);
+        if (InstanceCensus.ENABLED)
+            InstanceCensus.made(aClass, newInstance);
         return newInstance;
     }
 
     public PrimObject p75(PrimObject receiver, PrimContext context) {
-        return number(new BigDecimal(receiver.hashCode()));
+        return Primitives.hash(receiver);
     }
 
     public PrimObject p81(PrimObject receiver, PrimContext context) {
@@ -362,12 +512,12 @@ public class PrimObject {
 
     public PrimObject p110(PrimObject receiver, PrimContext context) {
         // ==
-        return receiver.equals(context.argumentAt(0)) ? PrimObject.TRUE : PrimObject.FALSE;
+        return Primitives.identical(receiver, context.argumentAt(0));
     }
 
     public PrimObject p111(PrimObject receiver, PrimContext context) {
         // class
-        return receiver.cls();
+        return Primitives.classOf(receiver);
     }
 
     public PrimObject p128(PrimObject receiver, PrimContext context) {
@@ -430,29 +580,17 @@ public class PrimObject {
 
     public PrimObject p136(PrimObject receiver, PrimContext context) {
         // at: (take into account class required data offset.
-        int offset = context.intArgumentAt(0);
-        if (receiver.attributes.length < offset)
-            throw new IllegalStateException("Receiver can't handle at: " + offset + ". Only " + receiver.attributes.length + " slots.");
-        if (offset == 0)
-            throw new IllegalStateException("at:put given index of zero.");
-        return receiver.attributes[offset];
+        return Primitives.at(receiver, context.argumentAt(0));
     }
 
     public PrimObject p137(PrimObject receiver, PrimContext context) {
         // at:put:
-        int offset = context.intArgumentAt(0);
-        if (receiver.attributes.length < offset)
-            throw new IllegalStateException("Receiver can't handle at: " + offset + ". Only " + receiver.attributes.length + " slots.");
-        if (offset == 0)
-            throw new IllegalStateException("at:put given index of zero.");
-        PrimObject object = context.argumentAt(1);
-        receiver.attributes[offset] = object;
-        return object;
+        return Primitives.atPut(receiver, context.argumentAt(0), context.argumentAt(1));
     }
 
     public PrimObject p138(PrimObject receiver, PrimContext context) {
         // size (take into account class required data offset.
-        return number(new BigDecimal(receiver.attributes.length + 1));
+        return Primitives.size(receiver);
     }
 
     public PrimObject p210(PrimObject receiver, PrimContext context) {
@@ -538,7 +676,7 @@ public class PrimObject {
         // answer the size of the ArrayedCollection
         if (receiver.javaValue() == null)
             return number(0);
-        return number(new BigDecimal(((ArrayList) receiver.javaValue()).size() - 1));
+        return number(((ArrayList) receiver.javaValue()).size() - 1);
     }
 
     public PrimObject p221(PrimObject receiver, PrimContext context) {
@@ -574,11 +712,7 @@ public class PrimObject {
     public PrimObject p225(PrimObject receiver, PrimContext context) {
         // canUnderstand:
         String selector = (String) context.argumentAt(0).javaValue();
-        PrimObject aClass = receiver;
-        boolean included = false;
-        while (aClass.cls() != null && (included = aClass.includesSelector(selector)) == false)
-            aClass = aClass.superclass();
-        return included ? PrimObject.TRUE : PrimObject.FALSE;
+        return MethodCache.lookup(receiver, selector).isUnderstood() ? PrimObject.TRUE : PrimObject.FALSE;
     }
 
     public PrimObject p226(PrimObject receiver, PrimContext context) {
@@ -621,6 +755,59 @@ public class PrimObject {
         return anObject;
     }
 
+    public PrimObject p231(PrimObject receiver, PrimContext context) {
+        // printString of a number.
+        return Primitives.printString(receiver);
+    }
+
+    public PrimObject p232(PrimObject receiver, PrimContext context) {
+        return Primitives.numeratorOf(receiver);
+    }
+
+    public PrimObject p233(PrimObject receiver, PrimContext context) {
+        return Primitives.denominatorOf(receiver);
+    }
+
+    public PrimObject p235(PrimObject receiver, PrimContext context) {
+        // Interval do: aBlock
+        return Primitives.intervalDo(receiver, context.argumentAt(0));
+    }
+
+    public PrimObject p236(PrimObject receiver, PrimContext context) {
+        // Interval reverseDo: aBlock
+        return Primitives.intervalReverseDo(receiver, context.argumentAt(0));
+    }
+
+    public PrimObject p237(PrimObject receiver, PrimContext context) {
+        // Interval collect: aBlock
+        return Primitives.intervalCollect(receiver, context.argumentAt(0));
+    }
+
+    public PrimObject p238(PrimObject receiver, PrimContext context) {
+        // Interval inject: thisValue into: binaryBlock
+        return Primitives.intervalInjectInto(receiver, context.argumentAt(0), context.argumentAt(1));
+    }
+
+    public PrimObject p239(PrimObject receiver, PrimContext context) {
+        // Number to: stop do: aBlock
+        return Primitives.toDo(receiver, context.argumentAt(0), context.argumentAt(1));
+    }
+
+    public PrimObject p240(PrimObject receiver, PrimContext context) {
+        // Interval size
+        return Primitives.intervalSize(receiver);
+    }
+
+    public PrimObject p241(PrimObject receiver, PrimContext context) {
+        // SmalltalkImage instanceCensus
+        return InstanceCensus.census();
+    }
+
+    public PrimObject p234(PrimObject receiver, PrimContext context) {
+        // Fraction numerator: anInteger denominator: anInteger
+        return Primitives.numeratorDenominator(receiver, context.argumentAt(0), context.argumentAt(1));
+    }
+
     public PrimObject p500(PrimObject receiver, PrimContext context) {
       // Behavior>>selectors
       PrimObject object = null;
@@ -651,6 +838,7 @@ public class PrimObject {
         String adaptorClassName = SmalltalkGeneratorOfAdaptorOfAJavaClass.fullyQualifiedNameOfSmalltalkClassToUseToAdaptJavaClass(fullyQualifiedJavaClassName);
         PrimObject adaptorClass = resolveObject(adaptorClassName);
         CLASSES.put(fullyQualifiedJavaClassName, adaptorClass);
+        GlobalBindings.defined(fullyQualifiedJavaClassName);
         synchronized (PrimObject.class) {
             ADAPTOR_CLASSES.add(adaptorClass);
         }
@@ -704,64 +892,76 @@ public class PrimObject {
         return null;
     }
 
-    // NOTE: Having perform bundle arguments and call perform0 simplifies the call process in the compiler.
-    // A future optimisation will be to remove this bundling, as creating an array and setting values is
-    // expensive (compared to not doing it).
+    // NOTE: Sends are arity specialised. perform looks the method up and calls the invokeN entry point
+    // matching the number of arguments, so arguments are not bundled into an array. A context is only
+    // created when the method invoked needs one (see invoke0 etc).
 
     public PrimObject perform(String selector) {
-        return perform0(selector);
+        MethodCache.Entry entry = MethodCache.lookup(cls, selector);
+        return entry.method.invoke0(this, entry.foundInClass, selector);
     }
 
     public PrimObject superPerform(PrimContext context, String selector) {
-        return perform0s(context, selector);
+        MethodCache.Entry entry = MethodCache.lookup(context.lookupClass.superclass(), selector);
+        return entry.method.invoke0(this, entry.foundInClass, selector);
     }
 
     public PrimObject perform(PrimObject arg1, String selector) {
-        return perform0(selector, arg1);
+        MethodCache.Entry entry = MethodCache.lookup(cls, selector);
+        return entry.method.invoke1(this, arg1, entry.foundInClass, selector);
     }
 
     public PrimObject perform(PrimObject arg1, PrimObject selector) {
-        return perform0((String) selector.javaValue(), arg1);
+        return perform(arg1, (String) selector.javaValue());
     }
 
     public PrimObject superPerform(PrimContext context, PrimObject arg1, String selector) {
-        return perform0s(context, selector, arg1);
+        MethodCache.Entry entry = MethodCache.lookup(context.lookupClass.superclass(), selector);
+        return entry.method.invoke1(this, arg1, entry.foundInClass, selector);
     }
 
     public PrimObject perform(PrimObject arg1, PrimObject arg2, String selector) {
-        return perform0(selector, arg1, arg2);
+        MethodCache.Entry entry = MethodCache.lookup(cls, selector);
+        return entry.method.invoke2(this, arg1, arg2, entry.foundInClass, selector);
     }
 
     public PrimObject superPerform(PrimContext context, PrimObject arg1, PrimObject arg2, String selector) {
-        return perform0s(context, selector, arg1, arg2);
+        MethodCache.Entry entry = MethodCache.lookup(context.lookupClass.superclass(), selector);
+        return entry.method.invoke2(this, arg1, arg2, entry.foundInClass, selector);
     }
 
     public PrimObject perform(PrimObject arg1, PrimObject arg2, PrimObject arg3, String selector) {
-        return perform0(selector, arg1, arg2, arg3);
+        MethodCache.Entry entry = MethodCache.lookup(cls, selector);
+        return entry.method.invoke3(this, arg1, arg2, arg3, entry.foundInClass, selector);
     }
 
     public PrimObject superPerform(PrimContext context, PrimObject arg1, PrimObject arg2, PrimObject arg3, String selector) {
-        return perform0s(context, selector, arg1, arg2, arg3);
+        MethodCache.Entry entry = MethodCache.lookup(context.lookupClass.superclass(), selector);
+        return entry.method.invoke3(this, arg1, arg2, arg3, entry.foundInClass, selector);
     }
 
     public PrimObject perform(PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, String selector) {
-        return perform0(selector, arg1, arg2, arg3, arg4);
+        MethodCache.Entry entry = MethodCache.lookup(cls, selector);
+        return entry.method.invoke4(this, arg1, arg2, arg3, arg4, entry.foundInClass, selector);
     }
 
     public PrimObject superPerform(PrimContext context, PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, String selector) {
-        return perform0s(context, selector, arg1, arg2, arg3, arg4);
+        MethodCache.Entry entry = MethodCache.lookup(context.lookupClass.superclass(), selector);
+        return entry.method.invoke4(this, arg1, arg2, arg3, arg4, entry.foundInClass, selector);
     }
 
     public PrimObject perform(PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, PrimObject arg5, String selector) {
-        return perform0(selector, arg1, arg2, arg3, arg4, arg5);
+        MethodCache.Entry entry = MethodCache.lookup(cls, selector);
+        return entry.method.invoke5(this, arg1, arg2, arg3, arg4, arg5, entry.foundInClass, selector);
     }
 
     public PrimObject superPerform(PrimContext context, PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, PrimObject arg5, String selector) {
-        return perform0s(context, selector, arg1, arg2, arg3, arg4, arg5);
+        MethodCache.Entry entry = MethodCache.lookup(context.lookupClass.superclass(), selector);
+        return entry.method.invoke5(this, arg1, arg2, arg3, arg4, arg5, entry.foundInClass, selector);
     }
 
     PrimObject perform0(String selector, PrimObject ... arguments) {
-        return perform0(attributes[CLASS_INDEX], selector, arguments);
+        return perform0(cls, selector, arguments);
     }
 
     PrimObject perform0s(PrimContext context, String selector, PrimObject ... arguments) {
@@ -773,11 +973,29 @@ public class PrimObject {
             attributes[i] = PRIM_NIL;
     }
 
+    // Slots are numbered from the class, CLASS_INDEX, the slots after it are held in attributes unless
+    // this is an instance of a shape, which overrides these to use its fields (see PrimObjectShapes).
+    protected PrimObject slotAt(int index) {
+        if (attributes != null)
+            return attributes[index - FIRST_ATTRIBUTE_INDEX];
+        if (index < slotLimit())
+            return PRIM_NIL;  // a slot that isn't a variable, which a shape has no field for.
+        throw new IllegalStateException("Receiver has no slot " + index + ".");
+    }
+
+    protected void slotAtPut(int index, PrimObject object) {
+        if (attributes == null)
+            throw new IllegalStateException("Receiver has no slot " + index + ".");
+        attributes[index - FIRST_ATTRIBUTE_INDEX] = object;
+    }
+
+    protected int slotLimit() {
+        return attributes != null ? attributes.length + DEFAULT_ATTRIBUTE_COUNT : DEFAULT_ATTRIBUTE_COUNT;
+    }
+
     PrimObject perform0(PrimObject foundInClass, String selector, PrimObject ... arguments) {
-        PrimObject cls = foundInClass;
-        while (!cls.includesSelector(selector))
-            cls = cls.superclass();
-        return apply(cls.methodFor(selector), cls, selector, arguments);
+        MethodCache.Entry entry = MethodCache.lookup(foundInClass, selector);
+        return apply(entry.method, entry.foundInClass, selector, arguments);
     }
 
     PrimObject apply(PrimObject method, PrimObject foundInClass, String selector, PrimObject ... arguments) {
@@ -788,6 +1006,33 @@ public class PrimObject {
         return this;
     }
 
+    // Arity specialised entry points used when sending a message. By default the arguments are put into
+    // a new context and invoke is called. Compiled methods that don't need a context override these.
+
+    protected PrimObject invoke0(PrimObject receiver, PrimObject foundInClass, String selector) {
+        return invoke(receiver, new PrimContext(receiver, foundInClass, selector, NO_ARGUMENTS));
+    }
+
+    protected PrimObject invoke1(PrimObject receiver, PrimObject arg1, PrimObject foundInClass, String selector) {
+        return invoke(receiver, new PrimContext(receiver, foundInClass, selector, new PrimObject[] {arg1}));
+    }
+
+    protected PrimObject invoke2(PrimObject receiver, PrimObject arg1, PrimObject arg2, PrimObject foundInClass, String selector) {
+        return invoke(receiver, new PrimContext(receiver, foundInClass, selector, new PrimObject[] {arg1, arg2}));
+    }
+
+    protected PrimObject invoke3(PrimObject receiver, PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject foundInClass, String selector) {
+        return invoke(receiver, new PrimContext(receiver, foundInClass, selector, new PrimObject[] {arg1, arg2, arg3}));
+    }
+
+    protected PrimObject invoke4(PrimObject receiver, PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, PrimObject foundInClass, String selector) {
+        return invoke(receiver, new PrimContext(receiver, foundInClass, selector, new PrimObject[] {arg1, arg2, arg3, arg4}));
+    }
+
+    protected PrimObject invoke5(PrimObject receiver, PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, PrimObject arg5, PrimObject foundInClass, String selector) {
+        return invoke(receiver, new PrimContext(receiver, foundInClass, selector, new PrimObject[] {arg1, arg2, arg3, arg4, arg5}));
+    }
+
     boolean includesSelector(String selector) {
         return true;
     }
@@ -796,6 +1041,20 @@ public class PrimObject {
         return BASIC_DOES_NOT_UNDERSTAND;
     }
 
+    SwitchPoint lookupSwitchPoint(String selector) {
+        return NEVER_INVALIDATED;
+    }
+
+    void addDependentSwitchPoint(String selector, SwitchPoint switchPoint) {
+    }
+
+    MethodCache.Entry dispatchEntry(int selectorId) {
+        return null;
+    }
+
+    void dispatchEntry(int selectorId, MethodCache.Entry entry) {
+    }
+
     public PrimObject superclass() {
         return this;
     }
@@ -810,11 +1069,11 @@ public class PrimObject {
     }
 
     public PrimObject cls() {
-        return attributes[CLASS_INDEX];
+        return cls;
     }
 
     PrimObject cls(PrimObject aClass) {
-        attributes[CLASS_INDEX] = aClass;
+        cls = aClass;
         return this;
     }
 }
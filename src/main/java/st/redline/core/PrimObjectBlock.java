@@ -2,28 +2,36 @@
 package st.redline.core;
 
 // Adds block functionality
-
-import java.lang.reflect.InvocationTargetException;
+//
+// A block holds only what the compiler found it refers to (see CaptureAnalyser): the receiver of the method
+// or block it is created in, if it refers to self, super or variables, the home context, if it answers from
+// its home method, and the temporaries and arguments of the method or block it is created in that it refers to.
+// Those that don't change once captured are copies, the others are boxes shared with the method or block
+// (see PrimBox), so a block kept by a callback only keeps the objects it uses.
 
 public class PrimObjectBlock extends PrimObject {
 
     static PrimObject blockClosure;
 
     private boolean methodBlock = false;
-    private PrimContext outerContext;
+    private PrimObject outerReceiver;
+    private PrimContext homeContext;
+    private PrimObject[] captured;
 
     public PrimObjectBlock() {
-        this(0, null);
+        this(null, null, null);
     }
 
     public PrimObjectBlock(PrimContext outerContext) {
-        this(0, outerContext);
+        this(outerContext != null ? outerContext.receiver : null, outerContext, null);
     }
 
-    PrimObjectBlock(int basicSize, PrimContext outerContext) {
-        super(basicSize);
+    public PrimObjectBlock(PrimObject outerReceiver, PrimContext homeContext, PrimObject[] captured) {
+        super(0);
         cls(resolveBlockClosure());
-        this.outerContext = outerContext;
+        this.outerReceiver = outerReceiver;
+        this.homeContext = homeContext;
+        this.captured = captured;
     }
 
     PrimObject resolveBlockClosure() {
@@ -36,30 +44,38 @@ public class PrimObjectBlock extends PrimObject {
     }
 
     public PrimObject outerReceiver() {
-        return outerContext.receiver;
+        return outerReceiver;
+    }
+
+    public PrimObject capturedAt(int index) {
+        return captured[index];
+    }
+
+    public PrimObject boxedCapturedAt(int index) {
+        return ((PrimBox) captured[index]).value;
+    }
+
+    public static void boxedCapturedPutAtIn(PrimObject object, int index, PrimObjectBlock block) {
+        ((PrimBox) block.captured[index]).value = object;
     }
 
     public PrimObject variableAt(String name) {
         int index = cls().indexOfVariable(name);
         if (index != 0)
-            return attributes[index];
-        return outerContext.receiver.variableAt(name);
+            return slotAt(index);
+        return outerReceiver.variableAt(name);
     }
 
     PrimObject variableAtPut(String name, PrimObject object) {
         int index = cls().indexOfVariable(name);
         if (index != 0) {
-            attributes[index] = object;
+            slotAtPut(index, object);
             return this;
         }
-        outerContext.receiver.variableAtPut(name, object);
+        outerReceiver.variableAtPut(name, object);
         return this;
     }
 
-    public PrimContext outerContext() {
-        return outerContext;
-    }
-
     public void markAsMethodBlock() {
         methodBlock = true;
     }
@@ -72,28 +88,37 @@ public class PrimObjectBlock extends PrimObject {
         return !isMethodBlock();
     }
 
-    public PrimObject answer(PrimObject answer, String blockReturnType) {
+    // Answers the primitive the block invokes before anything else, 0 if none. Overridden by compiled
+    // blocks, a method that is just a primitive can be bound directly to it (see IndyBootstrap).
+    public int primitiveNumber() {
+        return 0;
+    }
+
+    // Answers true if the block refers to nothing outside itself. Overridden by compiled blocks the compiler
+    // found clean (see CleanBlockAnalyser), one instance of each is shared as it captures nothing.
+    public boolean isClean() {
+        return false;
+    }
+
+    public PrimObject answer(PrimObject answer) {
         if (notMethodBlock())
-            throwAnswer(answer, blockReturnType);
+            throwAnswer(answer);
         return answer;
     }
 
-    public void throwAnswer(PrimObject answer, String blockReturnType) {
-        try {
-            throw (BlockReturn) classLoader()
-                                    .loadClass(blockReturnType)
-                                    .getConstructor(PrimObject.class)
-                                    .newInstance(answer);
-        } catch (InstantiationException e) {
-            throw new RedlineException(e);
-        } catch (IllegalAccessException e) {
-            throw new RedlineException(e);
-        } catch (InvocationTargetException e) {
-            throw new RedlineException(e);
-        } catch (NoSuchMethodException e) {
-            throw new RedlineException(e);
-        } catch (ClassNotFoundException e) {
-            throw new RedlineException(e);
-        }
+    public void throwAnswer(PrimObject answer) {
+        throw new BlockReturn(homeContext, answer);
+    }
+
+    // The home of a block created by a method is the method's context, a block created by another block
+    // has the same home as that block. Blocks that don't answer from their home are created without one.
+    public PrimObject block(PrimObject receiver, PrimContext context, PrimObject[] captured, String name) {
+        return made(super.block(receiver, context, captured, name));
+    }
+
+    PrimObject made(PrimObject block) {
+        if (notMethodBlock() && !block.isMethodBlock() && ((PrimObjectBlock) block).homeContext != null)
+            ((PrimObjectBlock) block).homeContext = homeContext;
+        return block;
     }
 }
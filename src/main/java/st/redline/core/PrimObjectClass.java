@@ -1,7 +1,11 @@
 /* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
 package st.redline.core;
 
+import java.lang.invoke.SwitchPoint;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLongFieldUpdater;
@@ -16,11 +20,31 @@ public class PrimObjectClass extends PrimObject {
 
     static final int DEFAULT_ATTRIBUTE_COUNT = 1;  // for superclass
     static final int SUPERCLASS_INDEX = CLASS_INDEX + 1;
-    static volatile Object CLASS_MODIFICATIONS = new Object();  // for guarding caches against class mutation
+    static final Object SWITCH_POINTS_LOCK = new Object();
+    static final int DISPATCH_TABLE_LIMIT = Integer.getInteger("redline.dispatchTableLimit", 4096);
 
     HashMap<String, Integer> variableIndexes;
     int nextVariableIndex;
 
+    // Cached lookups of a selector are guarded by a SwitchPoint. Every class visited while looking up
+    // a selector records that SwitchPoint, so redefining the selector in one of those classes, or
+    // changing one of their superclasses, invalidates only the lookups that depended on it.
+    Map<String, SwitchPoint> lookupSwitchPoints;
+    Map<String, List<SwitchPoint>> dependentSwitchPoints;
+
+    // Variable slots resolved for this class (see IndyBootstrap) are guarded by its shape SwitchPoint, which is
+    // recorded by this class and its superclasses, so adding a variable to any of them or changing one of their
+    // superclasses invalidates the slots.
+    private SwitchPoint shapeSwitchPoint;
+    private final List<SwitchPoint> dependentShapeSwitchPoints = new ArrayList<SwitchPoint>();
+
+    // Lookups made on this class indexed by selector id (see Selectors), each guarded as above.
+    // The table grows as selectors are sent, selector ids at or over the limit use the global MethodCache.
+    private volatile MethodCache.Entry[] dispatchTable = new MethodCache.Entry[0];
+
+    // The count of the instances of this class when the census is enabled (see InstanceCensus).
+    volatile InstanceCensus.Tally censusTally;
+
     PrimObjectClass() {
         this(0);
     }
@@ -30,6 +54,8 @@ public class PrimObjectClass extends PrimObject {
         javaValue = new HashMap<String, PrimObject>();
         variableIndexes = new HashMap<String, Integer>();
         nextVariableIndex = basicSize + DEFAULT_ATTRIBUTE_COUNT;
+        lookupSwitchPoints = new HashMap<String, SwitchPoint>();
+        dependentSwitchPoints = new HashMap<String, List<SwitchPoint>>();
     }
 
     public void addVariableNamed(String name) {
@@ -37,7 +63,7 @@ public class PrimObjectClass extends PrimObject {
         if (hasVariableNamed(name))
             throw new IllegalStateException("Variable '" + name + "' already defined.");
         variableIndexes().put(name, nextVariableIndex);
-        CLASS_MODIFICATIONS = new Object();
+        invalidateShape();
     }
 
     boolean hasVariableNamed(String name) {
@@ -99,14 +125,111 @@ public class PrimObjectClass extends PrimObject {
     }
 
     public PrimObject superclass() {
-        return attributes[SUPERCLASS_INDEX];
+        return attributes[SUPERCLASS_INDEX - FIRST_ATTRIBUTE_INDEX];
     }
 
     PrimObject superclass(PrimObject superclass) {
-        attributes[SUPERCLASS_INDEX] = superclass;
+        attributes[SUPERCLASS_INDEX - FIRST_ATTRIBUTE_INDEX] = superclass;
+        invalidateAllSelectors();
+        invalidateShape();
         return this;
     }
 
+    MethodCache.Entry dispatchEntry(int selectorId) {
+        MethodCache.Entry[] table = dispatchTable;
+        if (selectorId < table.length)
+            return table[selectorId];
+        return null;
+    }
+
+    void dispatchEntry(int selectorId, MethodCache.Entry entry) {
+        if (selectorId >= DISPATCH_TABLE_LIMIT)
+            return;
+        MethodCache.Entry[] table = dispatchTable;
+        if (selectorId >= table.length) {
+            MethodCache.Entry[] grown = new MethodCache.Entry[Math.min(DISPATCH_TABLE_LIMIT, Math.max(selectorId + 1, table.length * 2))];
+            System.arraycopy(table, 0, grown, 0, table.length);
+            table = grown;
+        }
+        table[selectorId] = entry;
+        dispatchTable = table;
+    }
+
+    SwitchPoint lookupSwitchPoint(String selector) {
+        synchronized (SWITCH_POINTS_LOCK) {
+            SwitchPoint switchPoint = lookupSwitchPoints.get(selector);
+            if (switchPoint != null && !switchPoint.hasBeenInvalidated())
+                return switchPoint;
+            switchPoint = new SwitchPoint();
+            lookupSwitchPoints.put(selector, switchPoint);
+            PrimObject aClass = this;
+            aClass.addDependentSwitchPoint(selector, switchPoint);
+            while (!aClass.includesSelector(selector)) {
+                aClass = aClass.superclass();
+                aClass.addDependentSwitchPoint(selector, switchPoint);
+            }
+            return switchPoint;
+        }
+    }
+
+    void addDependentSwitchPoint(String selector, SwitchPoint switchPoint) {
+        List<SwitchPoint> dependents = dependentSwitchPoints.get(selector);
+        if (dependents == null) {
+            dependents = new ArrayList<SwitchPoint>();
+            dependentSwitchPoints.put(selector, dependents);
+        }
+        for (Iterator<SwitchPoint> iterator = dependents.iterator(); iterator.hasNext();)
+            if (iterator.next().hasBeenInvalidated())
+                iterator.remove();
+        dependents.add(switchPoint);
+    }
+
+    public void invalidateSelector(String selector) {
+        synchronized (SWITCH_POINTS_LOCK) {
+            List<SwitchPoint> dependents = dependentSwitchPoints.remove(selector);
+            if (dependents != null)
+                SwitchPoint.invalidateAll(dependents.toArray(new SwitchPoint[dependents.size()]));
+        }
+    }
+
+    void invalidateAllSelectors() {
+        synchronized (SWITCH_POINTS_LOCK) {
+            List<SwitchPoint> dependents = new ArrayList<SwitchPoint>();
+            for (List<SwitchPoint> switchPoints : dependentSwitchPoints.values())
+                dependents.addAll(switchPoints);
+            dependentSwitchPoints.clear();
+            if (!dependents.isEmpty())
+                SwitchPoint.invalidateAll(dependents.toArray(new SwitchPoint[dependents.size()]));
+        }
+    }
+
+    SwitchPoint shapeSwitchPoint() {
+        synchronized (SWITCH_POINTS_LOCK) {
+            if (shapeSwitchPoint != null && !shapeSwitchPoint.hasBeenInvalidated())
+                return shapeSwitchPoint;
+            shapeSwitchPoint = new SwitchPoint();
+            for (PrimObject aClass = this; aClass instanceof PrimObjectClass; aClass = aClass.superclass())
+                ((PrimObjectClass) aClass).addDependentShapeSwitchPoint(shapeSwitchPoint);
+            return shapeSwitchPoint;
+        }
+    }
+
+    void addDependentShapeSwitchPoint(SwitchPoint switchPoint) {
+        for (Iterator<SwitchPoint> iterator = dependentShapeSwitchPoints.iterator(); iterator.hasNext();)
+            if (iterator.next().hasBeenInvalidated())
+                iterator.remove();
+        dependentShapeSwitchPoints.add(switchPoint);
+    }
+
+    void invalidateShape() {
+        synchronized (SWITCH_POINTS_LOCK) {
+            if (dependentShapeSwitchPoints.isEmpty())
+                return;
+            SwitchPoint.invalidateAll(dependentShapeSwitchPoints.toArray(new SwitchPoint[dependentShapeSwitchPoints.size()]));
+            dependentShapeSwitchPoints.clear();
+        }
+    }
+
     public Set<String> selectors() {
       return methods().keySet();
     }
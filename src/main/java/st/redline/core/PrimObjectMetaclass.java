@@ -86,7 +86,7 @@ public class PrimObjectMetaclass extends PrimObjectClass {
     }
 
     public PrimObject name() {
-        return attributes[NAME_INDEX];
+        return attributes[NAME_INDEX - FIRST_ATTRIBUTE_INDEX];
     }
 
     PrimObjectMetaclass name(String name) {
@@ -94,7 +94,7 @@ public class PrimObjectMetaclass extends PrimObjectClass {
     }
 
     PrimObjectMetaclass name(PrimObject name) {
-        attributes[NAME_INDEX] = name;
+        attributes[NAME_INDEX - FIRST_ATTRIBUTE_INDEX] = name;
         return this;
     }
 
@@ -143,8 +143,10 @@ public class PrimObjectMetaclass extends PrimObjectClass {
         if (imports.containsKey(name)) {
             if (!imports.get(name).equals(packageName))
                 throw new IllegalStateException("'" + name + "' already registered to package: '" + imports.get(name) + "'.");
-        } else
+        } else {
             imports.put(name, packageName);
+            GlobalBindings.defined(name);
+        }
     }
 
     protected PrimObject _sendMessages_(PrimObject receiver, PrimContext context) {
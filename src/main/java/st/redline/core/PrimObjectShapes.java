@@ -0,0 +1,198 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+// Creates the JVM classes the instances of Smalltalk classes are made from (see PrimObject p70). An instance
+// of a class whose instances are 'n' slots in size is made from a generated subclass of PrimObject with a
+// field for each of its instance variables, the slots 2 to 'n', instead of an attributes array:
+//
+//     public final class PrimObjectShape3 extends PrimObject {
+//         public PrimObject slot2;
+//         public PrimObject slot3;
+//         ...
+//     }
+//
+// One class is generated for each size when first needed and shared by every class with instances of that size,
+// instances are copies of a prototype of the class with every slot nil.
+// Variable sites load and store the fields directly (see IndyBootstrap). Instances larger than the largest shape,
+// set with the system property 'redline.shapes.maxSize', and indexed instances have an attributes array instead.
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+final class PrimObjectShapes implements Opcodes {
+
+    static final int MAX_SHAPE_SIZE = Integer.getInteger("redline.shapes.maxSize", 32);
+    static final int FIRST_SLOT_INDEX = PrimObjectClass.SUPERCLASS_INDEX + 1;
+
+    private static final String OBJECT = "st/redline/core/PrimObject";
+    private static final String OBJECT_SIG = "Lst/redline/core/PrimObject;";
+    private static final String SHAPE = "st/redline/core/PrimObjectShape";
+    private static final ShapeClassLoader CLASS_LOADER = new ShapeClassLoader(PrimObject.class.getClassLoader());
+    private static final PrimObject[] PROTOTYPES = new PrimObject[MAX_SHAPE_SIZE + 1];
+
+    private PrimObjectShapes() {
+    }
+
+    static PrimObject newInstance(int size) {
+        if (size > MAX_SHAPE_SIZE)
+            return new PrimObject(size);
+        PrimObject prototype = PROTOTYPES[size];
+        if (prototype == null)
+            prototype = prototypeFor(size);
+        return prototype.shallowCopy();
+    }
+
+    static boolean isShape(Class aClass) {
+        return aClass.getClassLoader() == CLASS_LOADER;
+    }
+
+    // Answers a handle that loads the field of the slot at index from an instance of shape,
+    // typed (PrimObject)PrimObject.
+    static MethodHandle getterFor(Class shape, int index) {
+        try {
+            MethodHandle getter = MethodHandles.publicLookup().findGetter(shape, fieldName(index), PrimObject.class);
+            return getter.asType(MethodType.methodType(PrimObject.class, PrimObject.class));
+        } catch (Exception e) {
+            throw RedlineException.withCause(e);
+        }
+    }
+
+    // Answers a handle that stores into the field of the slot at index of an instance of shape,
+    // typed (PrimObject receiver, PrimObject object)void.
+    static MethodHandle setterFor(Class shape, int index) {
+        try {
+            MethodHandle setter = MethodHandles.publicLookup().findSetter(shape, fieldName(index), PrimObject.class);
+            return setter.asType(MethodType.methodType(void.class, PrimObject.class, PrimObject.class));
+        } catch (Exception e) {
+            throw RedlineException.withCause(e);
+        }
+    }
+
+    private static synchronized PrimObject prototypeFor(int size) {
+        if (PROTOTYPES[size] != null)
+            return PROTOTYPES[size];
+        try {
+            Class shape = CLASS_LOADER.defineClass(createClass(size));
+            PROTOTYPES[size] = (PrimObject) shape.getConstructor(PrimObject.class).newInstance(PrimObject.PRIM_NIL);
+            return PROTOTYPES[size];
+        } catch (Exception e) {
+            throw RedlineException.withCause(e);
+        }
+    }
+
+    private static String fieldName(int index) {
+        return "slot" + index;
+    }
+
+    private static byte[] createClass(int size) {
+        String className = SHAPE + size;
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES + ClassWriter.COMPUTE_MAXS);
+        writer.visit(V1_7, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, className, null, OBJECT, null);
+        for (int index = FIRST_SLOT_INDEX; index <= size; index++)
+            writer.visitField(ACC_PUBLIC, fieldName(index), OBJECT_SIG, null, null).visitEnd();
+        createConstructor(writer, className, size);
+        if (size >= FIRST_SLOT_INDEX) {
+            createSlotAt(writer, className, size);
+            createSlotAtPut(writer, className, size);
+        }
+        createSlotLimit(writer, size);
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    // Each slot starts as the object given, PRIM_NIL, see prototypeFor.
+    private static void createConstructor(ClassWriter writer, String className, int size) {
+        MethodVisitor mv = writer.visitMethod(ACC_PUBLIC, "<init>", "(" + OBJECT_SIG + ")V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, OBJECT, "<init>", "()V");
+        for (int index = FIRST_SLOT_INDEX; index <= size; index++) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitFieldInsn(PUTFIELD, className, fieldName(index), OBJECT_SIG);
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void createSlotAt(ClassWriter writer, String className, int size) {
+        MethodVisitor mv = writer.visitMethod(ACC_PROTECTED, "slotAt", "(I)" + OBJECT_SIG, null, null);
+        mv.visitCode();
+        Label[] labels = labels(size);
+        Label outside = new Label();
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitTableSwitchInsn(FIRST_SLOT_INDEX, size, outside, labels);
+        for (int index = FIRST_SLOT_INDEX; index <= size; index++) {
+            mv.visitLabel(labels[index - FIRST_SLOT_INDEX]);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, fieldName(index), OBJECT_SIG);
+            mv.visitInsn(ARETURN);
+        }
+        mv.visitLabel(outside);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitMethodInsn(INVOKESPECIAL, OBJECT, "slotAt", "(I)" + OBJECT_SIG);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void createSlotAtPut(ClassWriter writer, String className, int size) {
+        MethodVisitor mv = writer.visitMethod(ACC_PROTECTED, "slotAtPut", "(I" + OBJECT_SIG + ")V", null, null);
+        mv.visitCode();
+        Label[] labels = labels(size);
+        Label outside = new Label();
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitTableSwitchInsn(FIRST_SLOT_INDEX, size, outside, labels);
+        for (int index = FIRST_SLOT_INDEX; index <= size; index++) {
+            mv.visitLabel(labels[index - FIRST_SLOT_INDEX]);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitFieldInsn(PUTFIELD, className, fieldName(index), OBJECT_SIG);
+            mv.visitInsn(RETURN);
+        }
+        mv.visitLabel(outside);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitMethodInsn(INVOKESPECIAL, OBJECT, "slotAtPut", "(I" + OBJECT_SIG + ")V");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void createSlotLimit(ClassWriter writer, int size) {
+        MethodVisitor mv = writer.visitMethod(ACC_PROTECTED, "slotLimit", "()I", null, null);
+        mv.visitCode();
+        mv.visitLdcInsn(size + PrimObject.DEFAULT_ATTRIBUTE_COUNT);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static Label[] labels(int size) {
+        Label[] labels = new Label[size - FIRST_SLOT_INDEX + 1];
+        for (int i = 0; i < labels.length; i++)
+            labels[i] = new Label();
+        return labels;
+    }
+
+    // Shapes are defined by their own loader, they are the same whichever loader compiled the classes using them.
+    static class ShapeClassLoader extends ClassLoader {
+
+        ShapeClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class defineClass(byte[] classBytes) {
+            return defineClass(null, classBytes, 0, classBytes.length);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+// Provides the SmallInteger instances, integers that fit in a long.
+// The value is held as a primitive so the arithmetic primitives (see Primitives) work on longs
+// without unboxing, results that overflow a long are promoted to a LargePositiveInteger or
+// LargeNegativeInteger holding a BigInteger (see PrimObject.number(BigInteger)).
+// SmallIntegers are immutable, two with the same value are equal and identical (==).
+// Once the SmallInteger class is known the values from CACHE_LOW to CACHE_HIGH are preallocated and
+// valueOf answers those instances, so counters, indexes and sizes in that range don't allocate.
+// A CACHE_HIGH below CACHE_LOW, or a range too large for an array, turns the cache off.
+
+public class PrimSmallInteger extends PrimObject {
+
+    static final int CACHE_LOW = Integer.getInteger("redline.smallIntegerCache.low", -1024);
+    static final int CACHE_HIGH = Integer.getInteger("redline.smallIntegerCache.high", 65535);
+    static final int CACHE_SIZE = cacheSize(CACHE_LOW, CACHE_HIGH);
+
+    static PrimObject smallIntegerClass = null;
+    static volatile PrimSmallInteger[] cache = null;
+
+    final long value;
+
+    PrimSmallInteger(long value) {
+        this.value = value;
+        PrimObject cls = smallIntegerClass();
+        if (cls != null)
+            cls(cls);
+    }
+
+    static PrimSmallInteger valueOf(long value) {
+        if (CACHE_SIZE > 0 && value >= CACHE_LOW && value <= CACHE_HIGH) {
+            PrimSmallInteger[] cached = cache();
+            if (cached != null)
+                return cached[(int) (value - CACHE_LOW)];
+        }
+        return new PrimSmallInteger(value);
+    }
+
+    private static PrimSmallInteger[] cache() {
+        PrimSmallInteger[] cached = cache;
+        if (cached == null && smallIntegerClass() != null)
+            cached = preallocate();
+        return cached;
+    }
+
+    private static synchronized PrimSmallInteger[] preallocate() {
+        if (cache == null) {
+            PrimSmallInteger[] cached = new PrimSmallInteger[CACHE_SIZE];
+            for (int i = 0; i < cached.length; i++)
+                cached[i] = new PrimSmallInteger(CACHE_LOW + i);
+            cache = cached;
+        }
+        return cache;
+    }
+
+    static int cacheSize(int low, int high) {
+        long size = (long) high - low + 1;
+        return size > 0 && size < Integer.MAX_VALUE ? (int) size : 0;
+    }
+
+    private static PrimObject smallIntegerClass() {
+        PrimObject cls = smallIntegerClass;
+        if (cls == null && !BOOTSTRAPPING)
+            smallIntegerClass = cls = PrimObjectMetaclass.METACLASS.resolveObject("SmallInteger");
+        return cls;
+    }
+
+    public long value() {
+        return value;
+    }
+
+    public Object javaValue() {
+        return Long.valueOf(value);
+    }
+
+    public PrimObject javaValue(Object javaValue) {
+        throw new IllegalStateException("SmallInteger " + value + " can't be changed.");
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof PrimSmallInteger))
+            return false;
+        return value == ((PrimSmallInteger) o).value;
+    }
+
+    public int hashCode() {
+        return (int) (value ^ (value >>> 32));
+    }
+
+    public String toString() {
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,491 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+// Provides primitives that take their arguments directly rather than from a context.
+// The matching pN methods of PrimObject delegate to these. When a send is linked to a method that
+// starts with one of these primitives, IndyBootstrap binds the call site straight to its handle.
+// A primitive fails by answering null, the method then carries on with the Smalltalk code after
+// the primitive (see ClassBytecodeWriter invokePrimitive). The arithmetic and comparison primitives
+// fail when an operand isn't a number, and division fails when an exact divisor is zero.
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static st.redline.core.PrimObject.fraction;
+import static st.redline.core.PrimObject.number;
+
+class Primitives {
+
+    private static final Map<Integer, MethodHandle> HANDLES = new HashMap<Integer, MethodHandle>();
+    static {
+        register(21, "add", 1);
+        register(22, "subtract", 1);
+        register(23, "lessThan", 1);
+        register(24, "greaterThan", 1);
+        register(25, "lessThanOrEqual", 1);
+        register(26, "greaterThanOrEqual", 1);
+        register(27, "equal", 1);
+        register(28, "notEqual", 1);
+        register(29, "multiply", 1);
+        register(30, "divide", 1);
+        register(40, "asFloat", 0);
+        register(41, "add", 1);
+        register(42, "subtract", 1);
+        register(43, "lessThan", 1);
+        register(44, "greaterThan", 1);
+        register(45, "lessThanOrEqual", 1);
+        register(46, "greaterThanOrEqual", 1);
+        register(47, "equal", 1);
+        register(48, "notEqual", 1);
+        register(49, "multiply", 1);
+        register(50, "divide", 1);
+        register(51, "truncated", 0);
+        register(55, "sqrt", 0);
+        register(58, "ln", 0);
+        register(60, "at", 1);
+        register(61, "atPut", 2);
+        register(62, "size", 0);
+        register(75, "hash", 0);
+        register(110, "identical", 1);
+        register(111, "classOf", 0);
+        register(136, "at", 1);
+        register(137, "atPut", 2);
+        register(138, "size", 0);
+        register(231, "printString", 0);
+        register(232, "numeratorOf", 0);
+        register(233, "denominatorOf", 0);
+        register(234, "numeratorDenominator", 2);
+    }
+
+    private static void register(int primitive, String name, int argumentCount) {
+        Class[] parameterTypes = new Class[argumentCount + 1];
+        for (int i = 0; i < parameterTypes.length; i++)
+            parameterTypes[i] = PrimObject.class;
+        try {
+            HANDLES.put(primitive, MethodHandles.lookup().findStatic(Primitives.class, name, MethodType.methodType(PrimObject.class, parameterTypes)));
+        } catch (NoSuchMethodException e) {
+            throw new RedlineException(e);
+        } catch (IllegalAccessException e) {
+            throw new RedlineException(e);
+        }
+    }
+
+    // answers a handle taking the receiver and arguments, or null when there is no direct form of the primitive.
+    static MethodHandle handleFor(int primitive, int argumentCount) {
+        MethodHandle handle = HANDLES.get(primitive);
+        if (handle != null && handle.type().parameterCount() == argumentCount + 1)
+            return handle;
+        return null;
+    }
+
+    // SmallInteger arithmetic is done on longs, results that overflow are redone with BigIntegers which
+    // answers a LargePositiveInteger or LargeNegativeInteger (see PrimObject.number(BigInteger)).
+    // The overflow checks are those of Math.addExact and friends, written out as we still run on Java 7.
+    // Otherwise the argument and receiver are coerced to the more general of the two: Integer, Fraction
+    // then Float.
+    static PrimObject add(PrimObject receiver, PrimObject aNumber) {
+        if (receiver instanceof PrimSmallInteger && aNumber instanceof PrimSmallInteger) {
+            long x = ((PrimSmallInteger) receiver).value;
+            long y = ((PrimSmallInteger) aNumber).value;
+            long result = x + y;
+            if (((x ^ result) & (y ^ result)) >= 0)
+                return number(result);
+        }
+        if (!areNumbers(receiver, aNumber))
+            return null;
+        if (receiver instanceof PrimFloat || aNumber instanceof PrimFloat)
+            return number(doubleValue(receiver) + doubleValue(aNumber));
+        if (receiver instanceof PrimFraction || aNumber instanceof PrimFraction)
+            return fraction(numerator(receiver).multiply(denominator(aNumber)).add(numerator(aNumber).multiply(denominator(receiver))),
+                    denominator(receiver).multiply(denominator(aNumber)));
+        return number(bigInteger(receiver).add(bigInteger(aNumber)));
+    }
+
+    static PrimObject subtract(PrimObject receiver, PrimObject aNumber) {
+        if (receiver instanceof PrimSmallInteger && aNumber instanceof PrimSmallInteger) {
+            long x = ((PrimSmallInteger) receiver).value;
+            long y = ((PrimSmallInteger) aNumber).value;
+            long result = x - y;
+            if (((x ^ y) & (x ^ result)) >= 0)
+                return number(result);
+        }
+        if (!areNumbers(receiver, aNumber))
+            return null;
+        if (receiver instanceof PrimFloat || aNumber instanceof PrimFloat)
+            return number(doubleValue(receiver) - doubleValue(aNumber));
+        if (receiver instanceof PrimFraction || aNumber instanceof PrimFraction)
+            return fraction(numerator(receiver).multiply(denominator(aNumber)).subtract(numerator(aNumber).multiply(denominator(receiver))),
+                    denominator(receiver).multiply(denominator(aNumber)));
+        return number(bigInteger(receiver).subtract(bigInteger(aNumber)));
+    }
+
+    static PrimObject multiply(PrimObject receiver, PrimObject aNumber) {
+        if (receiver instanceof PrimSmallInteger && aNumber instanceof PrimSmallInteger) {
+            long x = ((PrimSmallInteger) receiver).value;
+            long y = ((PrimSmallInteger) aNumber).value;
+            long result = x * y;
+            if (((Math.abs(x) | Math.abs(y)) >>> 31) == 0)
+                return number(result);
+            if ((y == 0 || result / y == x) && !(x == Long.MIN_VALUE && y == -1))
+                return number(result);
+        }
+        if (!areNumbers(receiver, aNumber))
+            return null;
+        if (receiver instanceof PrimFloat || aNumber instanceof PrimFloat)
+            return number(doubleValue(receiver) * doubleValue(aNumber));
+        if (receiver instanceof PrimFraction || aNumber instanceof PrimFraction)
+            return fraction(numerator(receiver).multiply(numerator(aNumber)), denominator(receiver).multiply(denominator(aNumber)));
+        return number(bigInteger(receiver).multiply(bigInteger(aNumber)));
+    }
+
+    // dividing integers answers an Integer when exact, otherwise a Fraction.
+    static PrimObject divide(PrimObject receiver, PrimObject aNumber) {
+        if (receiver instanceof PrimSmallInteger && aNumber instanceof PrimSmallInteger) {
+            long x = ((PrimSmallInteger) receiver).value;
+            long y = ((PrimSmallInteger) aNumber).value;
+            if (y != 0 && x % y == 0 && !(x == Long.MIN_VALUE && y == -1))
+                return number(x / y);
+        }
+        if (!areNumbers(receiver, aNumber))
+            return null;
+        if (receiver instanceof PrimFloat || aNumber instanceof PrimFloat)
+            return number(doubleValue(receiver) / doubleValue(aNumber));
+        if (numerator(aNumber).signum() == 0)
+            return null;
+        return fraction(numerator(receiver).multiply(denominator(aNumber)), denominator(receiver).multiply(numerator(aNumber)));
+    }
+
+    // Comparisons with a Float are done with the double operators, so any comparison with NaN answers false
+    // and only ~= answers true, compare is only used for exact numbers.
+    static PrimObject lessThan(PrimObject receiver, PrimObject aNumber) {
+        if (!areNumbers(receiver, aNumber))
+            return null;
+        if (isFloat(receiver, aNumber))
+            return bool(doubleValue(receiver) < doubleValue(aNumber));
+        return bool(compare(receiver, aNumber) < 0);
+    }
+
+    static PrimObject greaterThan(PrimObject receiver, PrimObject aNumber) {
+        if (!areNumbers(receiver, aNumber))
+            return null;
+        if (isFloat(receiver, aNumber))
+            return bool(doubleValue(receiver) > doubleValue(aNumber));
+        return bool(compare(receiver, aNumber) > 0);
+    }
+
+    static PrimObject lessThanOrEqual(PrimObject receiver, PrimObject aNumber) {
+        if (!areNumbers(receiver, aNumber))
+            return null;
+        if (isFloat(receiver, aNumber))
+            return bool(doubleValue(receiver) <= doubleValue(aNumber));
+        return bool(compare(receiver, aNumber) <= 0);
+    }
+
+    static PrimObject greaterThanOrEqual(PrimObject receiver, PrimObject aNumber) {
+        if (!areNumbers(receiver, aNumber))
+            return null;
+        if (isFloat(receiver, aNumber))
+            return bool(doubleValue(receiver) >= doubleValue(aNumber));
+        return bool(compare(receiver, aNumber) >= 0);
+    }
+
+    static PrimObject equal(PrimObject receiver, PrimObject aNumber) {
+        if (!areNumbers(receiver, aNumber))
+            return null;
+        if (isFloat(receiver, aNumber))
+            return bool(doubleValue(receiver) == doubleValue(aNumber));
+        return bool(compare(receiver, aNumber) == 0);
+    }
+
+    static PrimObject notEqual(PrimObject receiver, PrimObject aNumber) {
+        if (!areNumbers(receiver, aNumber))
+            return null;
+        if (isFloat(receiver, aNumber))
+            return bool(doubleValue(receiver) != doubleValue(aNumber));
+        return bool(compare(receiver, aNumber) != 0);
+    }
+
+    private static boolean areNumbers(PrimObject receiver, PrimObject aNumber) {
+        return isNumber(receiver) && isNumber(aNumber);
+    }
+
+    private static boolean isNumber(PrimObject object) {
+        return object instanceof PrimSmallInteger || object instanceof PrimFloat || object instanceof PrimFraction
+               || (object != null && object.javaValue() instanceof BigInteger);
+    }
+
+    private static boolean isFloat(PrimObject receiver, PrimObject aNumber) {
+        return receiver instanceof PrimFloat || aNumber instanceof PrimFloat;
+    }
+
+    private static PrimObject bool(boolean value) {
+        return value ? PrimObject.TRUE : PrimObject.FALSE;
+    }
+
+    private static int compare(PrimObject receiver, PrimObject aNumber) {
+        if (receiver instanceof PrimSmallInteger && aNumber instanceof PrimSmallInteger) {
+            long x = ((PrimSmallInteger) receiver).value;
+            long y = ((PrimSmallInteger) aNumber).value;
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+        if (receiver instanceof PrimFraction || aNumber instanceof PrimFraction)
+            return numerator(receiver).multiply(denominator(aNumber)).compareTo(numerator(aNumber).multiply(denominator(receiver)));
+        return bigInteger(receiver).compareTo(bigInteger(aNumber));
+    }
+
+    static PrimObject asFloat(PrimObject receiver) {
+        if (receiver instanceof PrimFloat)
+            return receiver;
+        return number(doubleValue(receiver));
+    }
+
+    static PrimObject truncated(PrimObject receiver) {
+        if (receiver instanceof PrimFloat) {
+            double value = ((PrimFloat) receiver).value;
+            if (value >= Long.MIN_VALUE && value < Long.MAX_VALUE)
+                return number((long) value);
+            return number(new BigDecimal(value).toBigInteger());
+        }
+        if (receiver instanceof PrimFraction)
+            return number(((PrimFraction) receiver).numerator.divide(((PrimFraction) receiver).denominator));
+        return receiver;
+    }
+
+    static PrimObject sqrt(PrimObject receiver) {
+        return number(Math.sqrt(doubleValue(receiver)));
+    }
+
+    static PrimObject ln(PrimObject receiver) {
+        return number(Math.log(doubleValue(receiver)));
+    }
+
+    static PrimObject printString(PrimObject receiver) {
+        return PrimObject.string(receiver.toString());
+    }
+
+    static PrimObject numeratorOf(PrimObject receiver) {
+        return number(numerator(receiver));
+    }
+
+    static PrimObject denominatorOf(PrimObject receiver) {
+        return number(denominator(receiver));
+    }
+
+    static PrimObject numeratorDenominator(PrimObject receiver, PrimObject numerator, PrimObject denominator) {
+        return fraction(bigInteger(numerator), bigInteger(denominator));
+    }
+
+    private static double doubleValue(PrimObject number) {
+        if (number instanceof PrimSmallInteger)
+            return ((PrimSmallInteger) number).value;
+        if (number instanceof PrimFloat)
+            return ((PrimFloat) number).value;
+        if (number instanceof PrimFraction)
+            return ((PrimFraction) number).doubleValue();
+        return ((BigInteger) number.javaValue()).doubleValue();
+    }
+
+    private static BigInteger bigInteger(PrimObject number) {
+        if (number instanceof PrimSmallInteger)
+            return BigInteger.valueOf(((PrimSmallInteger) number).value);
+        return (BigInteger) number.javaValue();
+    }
+
+    private static BigInteger numerator(PrimObject number) {
+        if (number instanceof PrimFraction)
+            return ((PrimFraction) number).numerator;
+        return bigInteger(number);
+    }
+
+    private static BigInteger denominator(PrimObject number) {
+        if (number instanceof PrimFraction)
+            return ((PrimFraction) number).denominator;
+        return BigInteger.ONE;
+    }
+
+    static PrimObject hash(PrimObject receiver) {
+        return number(receiver.hashCode());
+    }
+
+    static PrimObject identical(PrimObject receiver, PrimObject anObject) {
+        return receiver.equals(anObject) ? PrimObject.TRUE : PrimObject.FALSE;
+    }
+
+    static PrimObject classOf(PrimObject receiver) {
+        return receiver.cls();
+    }
+
+    static PrimObject at(PrimObject receiver, PrimObject index) {
+        // take into account class required data offset.
+        int offset = checkedOffset(receiver, index);
+        if (offset == 0)
+            return null;  // the primitive fails, so the method's Smalltalk code reports the bad index.
+        return receiver.slotAt(offset);
+    }
+
+    static PrimObject atPut(PrimObject receiver, PrimObject index, PrimObject object) {
+        int offset = checkedOffset(receiver, index);
+        if (offset == 0)
+            return null;
+        try {
+            receiver.slotAtPut(offset, object);
+        } catch (IllegalStateException e) {
+            return null;  // a shape has no field for a slot that isn't a variable.
+        }
+        return object;
+    }
+
+    // Answers the slot the index names, or 0 when it isn't an integer within the receiver's slots.
+    private static int checkedOffset(PrimObject receiver, PrimObject index) {
+        long offset;
+        if (index instanceof PrimSmallInteger)
+            offset = ((PrimSmallInteger) index).value;
+        else if (index != null && isSmallIntegral(index.javaValue()))
+            offset = ((Number) index.javaValue()).longValue();
+        else
+            return 0;
+        return offset > 0 && offset < receiver.slotLimit() ? (int) offset : 0;
+    }
+
+    private static boolean isSmallIntegral(Object value) {
+        if (value instanceof Integer || value instanceof Long)
+            return true;
+        if (value instanceof BigInteger)
+            return ((BigInteger) value).bitLength() < 64;
+        if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            return decimal.signum() == 0 || (decimal.stripTrailingZeros().scale() <= 0 && decimal.precision() - decimal.scale() < 19);
+        }
+        return false;
+    }
+
+    static PrimObject size(PrimObject receiver) {
+        // take into account class required data offset.
+        return number(receiver.slotLimit() + 1);
+    }
+
+    // Interval enumeration isn't bound directly as it evaluates blocks. When start, stop and step are
+    // SmallIntegers it counts with a long and the block is given PrimSmallInteger.valueOf the element, so
+    // most are preallocated. Otherwise the size and elements are computed by sending -, /, * and +, and
+    // the primitives fail when there are more elements than a long can count.
+    static PrimObject intervalDo(PrimObject interval, PrimObject aBlock) {
+        IntervalElements elements = new IntervalElements(interval);
+        if (elements.isTooLarge())
+            return null;
+        for (long index = 0; index < elements.size; index++)
+            aBlock.perform(elements.at(index), "value:");
+        return interval;
+    }
+
+    static PrimObject intervalReverseDo(PrimObject interval, PrimObject aBlock) {
+        IntervalElements elements = new IntervalElements(interval);
+        if (elements.isTooLarge())
+            return null;
+        for (long index = elements.size - 1; index >= 0; index--)
+            aBlock.perform(elements.at(index), "value:");
+        return interval;
+    }
+
+    static PrimObject intervalCollect(PrimObject interval, PrimObject aBlock) {
+        IntervalElements elements = new IntervalElements(interval);
+        if (elements.isTooLarge())
+            return null;
+        if (elements.size > Integer.MAX_VALUE - 1)
+            throw new IllegalStateException("Interval of " + elements.size + " elements is too large to collect.");
+        PrimObject array = PrimObject.array((int) elements.size);
+        List<PrimObject> list = (List<PrimObject>) array.javaValue();
+        for (int index = 0; index < elements.size; index++)
+            list.set(index + 1, aBlock.perform(elements.at(index), "value:"));
+        return array;
+    }
+
+    static PrimObject intervalInjectInto(PrimObject interval, PrimObject thisValue, PrimObject binaryBlock) {
+        IntervalElements elements = new IntervalElements(interval);
+        if (elements.isTooLarge())
+            return null;
+        PrimObject nextValue = thisValue;
+        for (long index = 0; index < elements.size; index++)
+            nextValue = binaryBlock.perform(nextValue, elements.at(index), "value:value:");
+        return nextValue;
+    }
+
+    static PrimObject intervalSize(PrimObject interval) {
+        IntervalElements elements = new IntervalElements(interval);
+        if (elements.isTooLarge())
+            return null;
+        return number(elements.size);
+    }
+
+    // Number>>to:do: enumerates the Interval from the receiver to stop by 1 without creating it.
+    static PrimObject toDo(PrimObject receiver, PrimObject stop, PrimObject aBlock) {
+        IntervalElements elements = new IntervalElements(receiver, stop, number(1));
+        if (elements.isTooLarge())
+            return null;
+        for (long index = 0; index < elements.size; index++)
+            aBlock.perform(elements.at(index), "value:");
+        return receiver;
+    }
+
+    private static class IntervalElements {
+
+        final PrimObject start;
+        final PrimObject step;
+        final boolean small;
+        final long first;
+        final long by;
+        final long size;
+
+        IntervalElements(PrimObject interval) {
+            this(interval.variableAt("start"), interval.variableAt("stop"), interval.variableAt("step"));
+        }
+
+        IntervalElements(PrimObject start, PrimObject stop, PrimObject step) {
+            this.start = start;
+            this.step = step;
+            long first = 0, by = 0, size = -1;
+            if (start instanceof PrimSmallInteger && stop instanceof PrimSmallInteger && step instanceof PrimSmallInteger) {
+                first = ((PrimSmallInteger) start).value;
+                long last = ((PrimSmallInteger) stop).value;
+                by = ((PrimSmallInteger) step).value;
+                if (by == 0)
+                    throw new IllegalStateException("Interval step can't be zero.");
+                long span = by > 0 ? last - first : first - last;
+                // an overflowing span, or step, is left to the sends below.
+                boolean overflow = by > 0 ? ((last ^ first) & (last ^ span)) < 0 : ((first ^ last) & (first ^ span)) < 0;
+                if (!overflow && by != Long.MIN_VALUE && span != Long.MAX_VALUE)
+                    size = span < 0 ? 0 : span / Math.abs(by) + 1;
+            }
+            this.small = size != -1;
+            this.first = first;
+            this.by = by;
+            this.size = small ? size : sizeBySending(start, stop, step);
+        }
+
+        // Answers -1 when the size doesn't fit in a long, see isTooLarge.
+        private static long sizeBySending(PrimObject start, PrimObject stop, PrimObject step) {
+            PrimObject quotient = stop.perform(start, "-").perform(step, "/");
+            if (quotient.perform(number(0), "<").isTrueObject())
+                return 0;
+            Object truncated = quotient.perform("truncated").javaValue();
+            if (!isSmallIntegral(truncated) || ((Number) truncated).longValue() == Long.MAX_VALUE)
+                return -1;
+            return ((Number) truncated).longValue() + 1;
+        }
+
+        boolean isTooLarge() {
+            return size < 0;
+        }
+
+        PrimObject at(long index) {
+            if (small)
+                return number(first + index * by);
+            return start.perform(number(index).perform(step, "*"), "+");
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+// Provides a global table assigning each selector an int id, in the order selectors are first seen.
+// Ids index the per class dispatch tables (see PrimObjectClass). Ids are never reused or removed,
+// there is one for each distinct selector compiled or sent.
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class Selectors {
+
+    private static final ConcurrentHashMap<String, Integer> IDS = new ConcurrentHashMap<String, Integer>();
+    private static final List<String> NAMES = new ArrayList<String>();
+
+    public static int idOf(String selector) {
+        Integer id = IDS.get(selector);
+        if (id != null)
+            return id;
+        return register(selector);
+    }
+
+    private static synchronized int register(String selector) {
+        Integer id = IDS.get(selector);
+        if (id != null)
+            return id;
+        id = NAMES.size();
+        NAMES.add(selector);
+        IDS.put(selector, id);
+        return id;
+    }
+
+    public static synchronized String nameOf(int id) {
+        return NAMES.get(id);
+    }
+
+    public static int size() {
+        return IDS.size();
+    }
+}
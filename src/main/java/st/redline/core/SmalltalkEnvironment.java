@@ -6,10 +6,11 @@ import java.net.MalformedURLException;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SmalltalkEnvironment {
 
-    public static Map<String, Object> BLOCKS_TO_BE_COMPILED = new Hashtable<String, Object>();
+    public static Map<String, Object> BLOCKS_TO_BE_COMPILED = new ConcurrentHashMap<String, Object>();
     public static Map<ClassLoader, SmalltalkEnvironment> ENVIRONMENTS = new Hashtable<ClassLoader, SmalltalkEnvironment>();
     private final CommandLine commandLine;
 
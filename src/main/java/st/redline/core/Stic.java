@@ -76,6 +76,9 @@ public class Stic {
     }
 
     public PrimObject invoke(String className) throws Exception {
-        return (PrimObject) classLoader().loadClass(className).newInstance();
+        Class program = classLoader().loadClass(className);
+        // loading the program registered its blocks, compile them while it runs.
+        BlockCompiler.precompileInBackground();
+        return (PrimObject) program.newInstance();
     }
 }
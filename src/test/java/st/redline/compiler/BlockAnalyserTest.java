@@ -31,6 +31,25 @@ public class BlockAnalyserTest {
 		verify(writer).openClass();
 	}
 
+	@Test
+	public void shouldOpenClassWithoutContextWhenBlockDoesNotNeedOne() {
+		analyser.visitBegin(block, 1);
+		verify(writer).contextFree(0);
+	}
+
+	@Test
+	public void shouldRecordPrimitiveBlockStartsWith() {
+		when(block.leadingPrimitive()).thenReturn("60");
+		analyser.visitBegin(block, 1);
+		verify(writer).primitive("60");
+	}
+
+	@Test
+	public void shouldNotRecordPrimitiveWhenBlockDoesNotStartWithOne() {
+		analyser.visitBegin(block, 1);
+		verify(writer, never()).primitive(anyString());
+	}
+
 	@Test
 	public void shouldCloseClassWhenVisitEndOfBlock() {
 		analyser.visitEnd(block, 1);
@@ -39,8 +58,7 @@ public class BlockAnalyserTest {
 
 	@Test
 	public void shouldInvokeBlockAnswerWhenVisitAnswerStatementEnd() {
-		when(block.blockReturnType()).thenReturn("blockreturntype");
 		analyser.visitEnd(mock(AnswerStatement.class));
-		verify(writer).invokeBlockAnswer("blockreturntype");
+		verify(writer).invokeBlockAnswer();
 	}
 }
@@ -0,0 +1,99 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.compiler;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CaptureAnalyserTest {
+
+	@Test
+	public void shouldCaptureOnlyReferredOuterNames() {
+		CaptureAnalyser captures = captures(block(new String[]{"a"}, binary(identifier("a"), "<", identifier("t"))), "t", "u");
+		assertEquals(Arrays.asList("t"), captures.captured());
+		assertFalse(captures.needsReceiver());
+		assertFalse(captures.needsHome());
+	}
+
+	@Test
+	public void shouldNeedReceiverWhenSelfIsReferred() {
+		assertTrue(captures(block(new String[0], expression(identifier("self")))).needsReceiver());
+	}
+
+	@Test
+	public void shouldNeedReceiverWhenVariableIsReferred() {
+		assertTrue(captures(block(new String[0], expression(identifier("limit"))), "t").needsReceiver());
+	}
+
+	@Test
+	public void shouldNeedHomeWhenNestedBlockAnswers() {
+		Block inner = new Block(1, null, null, new AnswerStatement(1, expression(identifier("nil"))));
+		assertTrue(captures(block(new String[0], expression(inner))).needsHome());
+	}
+
+	@Test
+	public void shouldNotBoxTemporaryStoredBeforeCapture() {
+		Block method = method(assignment("t", expression(identifier("nil"))), expression(block(new String[0], expression(identifier("t")))));
+		assertTrue(captures(method).boxedTemporaries().isEmpty());
+	}
+
+	@Test
+	public void shouldBoxTemporaryStoredAfterCapture() {
+		Block method = method(expression(block(new String[0], expression(identifier("t")))), assignment("t", expression(identifier("nil"))));
+		assertEquals(Collections.singleton("t"), captures(method).boxedTemporaries());
+	}
+
+	@Test
+	public void shouldBoxTemporaryStoredByBlock() {
+		Block method = method(expression(block(new String[]{"a"}, assignment("t", expression(identifier("a"))))));
+		assertEquals(Collections.singleton("t"), captures(method).boxedTemporaries());
+	}
+
+	private CaptureAnalyser captures(Block block, String... outerNames) {
+		return new CaptureAnalyser(new Analyser("Foo", "st.redline", "", false), block, new HashSet<String>(Arrays.asList(outerNames)));
+	}
+
+	private Block method(Expression... expressions) {
+		Statements statements = null;
+		for (int index = expressions.length - 1; index >= 0; index--)
+			statements = new Statements(expressions[index], statements);
+		return new Block(1, null, new Temporaries(Arrays.asList(new Temporary("t", 1))), statements);
+	}
+
+	private Block block(String[] arguments, Expression expression) {
+		BlockArguments blockArguments = null;
+		if (arguments.length > 0) {
+			List<BlockArgument> list = new ArrayList<BlockArgument>();
+			for (String argument : arguments)
+				list.add(new BlockArgument(argument, 1));
+			blockArguments = new BlockArguments(list);
+		}
+		return new Block(1, blockArguments, null, new Statements(expression, null));
+	}
+
+	private Expression assignment(String name, Expression expression) {
+		return new AssignmentExpression(identifier(name), expression);
+	}
+
+	private Identifier identifier(String name) {
+		return new Identifier(name, 1);
+	}
+
+	private SimpleExpression expression(Primary primary) {
+		SimpleExpression expression = new SimpleExpression();
+		expression.add(primary);
+		return expression;
+	}
+
+	private SimpleExpression binary(Primary receiver, String selector, Primary argument) {
+		SimpleExpression expression = expression(receiver);
+		BinarySelector binarySelector = new BinarySelector();
+		binarySelector.add(selector, 1);
+		BinaryExpression binaryExpression = new BinaryExpression();
+		binaryExpression.add(binarySelector, new UnaryObjectDescription(argument));
+		expression.add(binaryExpression);
+		return expression;
+	}
+}
@@ -0,0 +1,90 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.compiler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CleanBlockAnalyserTest {
+
+	@Test
+	public void shouldBeCleanWhenOnlyArgumentsAreReferred() {
+		assertTrue(isClean(block(new String[]{"a", "b"}, binary(identifier("a"), "<", identifier("b")))));
+	}
+
+	@Test
+	public void shouldBeCleanWhenOnlyLiteralsAreReferred() {
+		assertTrue(isClean(block(new String[0], expression(identifier("nil")))));
+	}
+
+	@Test
+	public void shouldNotBeCleanWhenSelfIsReferred() {
+		assertFalse(isClean(block(new String[0], expression(identifier("self")))));
+	}
+
+	@Test
+	public void shouldNotBeCleanWhenVariableIsReferred() {
+		assertFalse(isClean(block(new String[]{"a"}, binary(identifier("a"), "<", identifier("limit")))));
+	}
+
+	@Test
+	public void shouldNotBeCleanWhenOuterTemporaryIsReferred() {
+		Block block = block(new String[]{"a"}, binary(identifier("a"), "<", identifier("t")));
+		Map<String, Integer> outerTemporaries = new HashMap<String, Integer>();
+		outerTemporaries.put("t", 0);
+		block.outerTemporariesRegistry(outerTemporaries);
+		assertFalse(isClean(block));
+	}
+
+	@Test
+	public void shouldNotBeCleanWhenBlockAnswers() {
+		Block block = new Block(1, null, null, new AnswerStatement(1, expression(identifier("nil"))));
+		assertFalse(isClean(block));
+	}
+
+	@Test
+	public void shouldNotBeCleanWhenBlockCreatesBlocks() {
+		Block inner = block(new String[0], expression(identifier("nil")));
+		assertFalse(isClean(block(new String[0], expression(inner))));
+	}
+
+	private boolean isClean(Block block) {
+		return new CleanBlockAnalyser(new Analyser("Foo", "st.redline", "", false), block).isClean();
+	}
+
+	private Block block(String[] arguments, Expression expression) {
+		BlockArguments blockArguments = null;
+		if (arguments.length > 0) {
+			List<BlockArgument> list = new ArrayList<BlockArgument>();
+			for (String argument : arguments)
+				list.add(new BlockArgument(argument, 1));
+			blockArguments = new BlockArguments(list);
+		}
+		return new Block(1, blockArguments, null, new Statements(expression, null));
+	}
+
+	private Identifier identifier(String name) {
+		return new Identifier(name, 1);
+	}
+
+	private SimpleExpression expression(Primary primary) {
+		SimpleExpression expression = new SimpleExpression();
+		expression.add(primary);
+		return expression;
+	}
+
+	private SimpleExpression binary(Primary receiver, String selector, Primary argument) {
+		SimpleExpression expression = expression(receiver);
+		BinarySelector binarySelector = new BinarySelector();
+		binarySelector.add(selector, 1);
+		BinaryExpression binaryExpression = new BinaryExpression();
+		binaryExpression.add(binarySelector, new UnaryObjectDescription(argument));
+		expression.add(binaryExpression);
+		return expression;
+	}
+}
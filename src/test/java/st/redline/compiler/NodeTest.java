@@ -474,4 +474,162 @@ public class NodeTest {
 			return aClass.equals(anObject.getClass());
 		}
 	}
+
+	@Test
+	public void keywordExpressionWithLiteralBlockArgumentsShouldBeInlined() {
+		Block block = new Block(42, null, null, null);
+		SimpleExpression simpleExpression = keywordMessage(new Identifier("aBoolean", 42), "ifTrue:", block);
+		assertTrue(simpleExpression.isInlined());
+		assertTrue(block.isInlined());
+	}
+
+	@Test
+	public void keywordExpressionSentToSuperShouldNotBeInlined() {
+		Block block = new Block(42, null, null, null);
+		SimpleExpression simpleExpression = keywordMessage(new Identifier("super", 42), "ifTrue:", block);
+		assertFalse(simpleExpression.isInlined());
+		assertFalse(block.isInlined());
+	}
+
+	@Test
+	public void whileTrueShouldOnlyBeInlinedWithLiteralBlockReceiver() {
+		Block receiver = new Block(42, null, null, null);
+		assertTrue(keywordMessage(receiver, "whileTrue:", new Block(42, null, null, null)).isInlinedLoop());
+		assertTrue(receiver.isInlined());
+		assertFalse(keywordMessage(new Identifier("aBlock", 42), "whileTrue:", new Block(42, null, null, null)).isInlined());
+	}
+
+	@Test
+	public void keywordMessageSentToAnswerOfBinaryMessageShouldBeInlined() {
+		Block trueBlock = new Block(42, null, null, null);
+		Block falseBlock = new Block(42, null, null, null);
+		SimpleExpression simpleExpression = binaryMessages(new Identifier("a", 42), ">", new Identifier("b", 42));
+		KeywordExpression keywordExpression = keywordExpression("ifTrue:", trueBlock, "ifFalse:", falseBlock);
+		((BinaryExpression) simpleExpression.messageExpression()).add(keywordExpression);
+		simpleExpression.analyseForInlining();
+		assertTrue(keywordExpression.isInlined());
+		assertTrue(trueBlock.isInlined());
+		assertTrue(falseBlock.isInlined());
+	}
+
+	@Test
+	public void keywordMessageSentToAnswerOfUnaryMessageShouldBeInlined() {
+		Block block = new Block(42, null, null, null);
+		UnaryExpression unaryExpression = new UnaryExpression();
+		unaryExpression.add(new UnarySelector("isNil", 42));
+		KeywordExpression keywordExpression = keywordExpression("ifTrue:", block);
+		unaryExpression.add(keywordExpression);
+		SimpleExpression simpleExpression = new SimpleExpression();
+		simpleExpression.add(new Identifier("x", 42));
+		simpleExpression.add(unaryExpression);
+		simpleExpression.analyseForInlining();
+		assertTrue(keywordExpression.isInlined());
+		assertTrue(block.isInlined());
+	}
+
+	@Test
+	public void whileTrueSentToAnswerOfUnaryMessageShouldNotBeInlined() {
+		Block block = new Block(42, null, null, null);
+		UnaryExpression unaryExpression = new UnaryExpression();
+		unaryExpression.add(new UnarySelector("condition", 42));
+		KeywordExpression keywordExpression = keywordExpression("whileTrue:", block);
+		unaryExpression.add(keywordExpression);
+		SimpleExpression simpleExpression = new SimpleExpression();
+		simpleExpression.add(new Identifier("x", 42));
+		simpleExpression.add(unaryExpression);
+		simpleExpression.analyseForInlining();
+		assertFalse(keywordExpression.isInlined());
+		assertFalse(block.isInlined());
+	}
+
+	@Test
+	public void arithmeticOnNumberLiteralsShouldBeFolded() {
+		SimpleExpression simpleExpression = binaryMessages(number("60"), "*", number("60"), "*", number("24"));
+		simpleExpression.accept(visitor);
+		assertTrue(simpleExpression.primary() instanceof FoldedExpression);
+		assertNull(simpleExpression.messageExpression());
+		verify(visitor).visit((FoldedExpression) simpleExpression.primary(), "60 * 60 * 24", 42);
+	}
+
+	@Test
+	public void arithmeticShouldOnlyBeFoldedUpToFirstArgumentThatIsNotANumberLiteral() {
+		SimpleExpression simpleExpression = binaryMessages(number("60"), "+", number("1"), "*", new Identifier("x", 42), "-", number("2"));
+		simpleExpression.accept(visitor);
+		assertEquals("60 + 1", ((FoldedExpression) simpleExpression.primary()).value());
+		assertEquals(2, ((BinaryExpression) simpleExpression.messageExpression()).binarySelectorUnaryObjectDescriptions().size());
+	}
+
+	@Test
+	public void comparisonOfNumberLiteralsShouldNotBeFolded() {
+		Number receiver = number("1");
+		SimpleExpression simpleExpression = binaryMessages(receiver, "<", number("2"));
+		simpleExpression.accept(visitor);
+		assertSame(receiver, simpleExpression.primary());
+	}
+
+	@Test
+	public void arrayShouldEncodeItsElementsAsOneLiteral() {
+		Symbol symbol = new Symbol();
+		symbol.valueAndLine("b", 42);
+		Array nested = new Array();
+		nested.add(symbol);
+		Array array = new Array();
+		array.add(number("12"));
+		array.add(new StringConstant("'a:b'", 42));
+		array.add(nested);
+		assertEquals("n2:12s3:a:ba4:y1:b", array.literal());
+	}
+
+	private Number number(String digits) {
+		return new Number(null, null, null, digits, 42, null, null, null, null);
+	}
+
+	@Test
+	public void blockShouldAnswerPrimitiveThatIsItsFirstStatement() {
+		Statements statements = new Statements(primitive("60"), new Statements(new SimpleExpression(), null));
+		assertEquals("60", new Block(42, null, null, statements).leadingPrimitive());
+	}
+
+	@Test
+	public void blockShouldNotAnswerPrimitiveAfterItsFirstStatement() {
+		SimpleExpression first = new SimpleExpression();
+		first.add(new Identifier("index", 42));
+		Statements statements = new Statements(first, new Statements(primitive("60"), null));
+		assertNull(new Block(42, null, null, statements).leadingPrimitive());
+		assertNull(new Block(42, null, null, null).leadingPrimitive());
+	}
+
+	private SimpleExpression primitive(String digits) {
+		SimpleExpression simpleExpression = new SimpleExpression();
+		simpleExpression.add(new Primitive("primitive:", 42, digits));
+		return simpleExpression;
+	}
+
+	private SimpleExpression binaryMessages(Primary receiver, Object... selectorsAndArguments) {
+		BinaryExpression binaryExpression = new BinaryExpression();
+		for (int index = 0; index < selectorsAndArguments.length; index += 2) {
+			BinarySelector binarySelector = new BinarySelector();
+			binarySelector.add((String) selectorsAndArguments[index], 42);
+			binaryExpression.add(binarySelector, new UnaryObjectDescription((Primary) selectorsAndArguments[index + 1]));
+		}
+		SimpleExpression simpleExpression = new SimpleExpression();
+		simpleExpression.add(receiver);
+		simpleExpression.add(binaryExpression);
+		return simpleExpression;
+	}
+
+	private SimpleExpression keywordMessage(Primary receiver, String keyword, Block argument) {
+		KeywordExpression keywordExpression = keywordExpression(keyword, argument);
+		SimpleExpression simpleExpression = new SimpleExpression();
+		simpleExpression.add(receiver);
+		simpleExpression.add(keywordExpression);
+		return simpleExpression;
+	}
+
+	private KeywordExpression keywordExpression(Object... keywordsAndArguments) {
+		KeywordExpression keywordExpression = new KeywordExpression();
+		for (int index = 0; index < keywordsAndArguments.length; index += 2)
+			keywordExpression.add((String) keywordsAndArguments[index], 42, new BinaryObjectDescription((Primary) keywordsAndArguments[index + 1]));
+		return keywordExpression;
+	}
 }
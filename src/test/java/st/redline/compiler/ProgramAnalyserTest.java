@@ -44,20 +44,55 @@ public class ProgramAnalyserTest {
 		doReturn(smalltalkEnvironment).when(spy).smalltalkEnvironment();
 		spy.visitBegin(block, 1);
 		verify(smalltalkEnvironment).registerBlockToBeCompiled(block, "st.redline.SomeClass$M1");
-		verify(writer).invokeObjectCompileBlock("st.redline.SomeClass$M1", 1);
+		verify(writer).invokeObjectCompileBlock("st.redline.SomeClass$M1");
 	}
 
 	@Test
-	public void shouldAlwaysSkipBlockVisits() {
-		Assert.assertTrue(analyser.skipBlockVisit(null));
+	public void shouldSkipVisitsOfBlocksNotInlined() {
+		Assert.assertTrue(analyser.skipBlockVisit(mock(Block.class)));
 	}
 
 	@Test
-	public void shouldInvokePrimObjectArrayWhenVisitArray() {
+	public void shouldNotSkipVisitsOfInlinedBlocks() {
+		Block block = new Block(1, null, null, null);
+		block.inline();
+		Assert.assertFalse(analyser.skipBlockVisit(block));
+	}
+
+	@Test
+	public void shouldBranchOnReceiverWhenVisitBeginOfInlinedKeywordExpression() {
+		KeywordExpression keywordExpression = mock(KeywordExpression.class);
+		when(keywordExpression.isInlined()).thenReturn(true);
+		when(keywordExpression.keywords()).thenReturn("ifTrue:");
+		analyser.visitBegin(keywordExpression, "ifTrue:", 1, 10);
+		verify(writer).popOrJumpUnless(eq(true), any());
+	}
+
+	@Test
+	public void shouldSendMustBeBooleanToNonBooleanWhenVisitEndOfInlinedKeywordExpression() {
+		KeywordExpression keywordExpression = mock(KeywordExpression.class);
+		when(keywordExpression.isInlined()).thenReturn(true);
+		when(keywordExpression.keywords()).thenReturn("ifTrue:");
+		analyser.visitBegin(keywordExpression, "ifTrue:", 1, 10);
+		analyser.visitEnd(keywordExpression, "ifTrue:", 1, 10);
+		verify(writer).popOrJumpUnless(eq(false), any());
+		verify(writer).invokeObjectPerform("mustBeBoolean", 0, false);
+		verify(writer, never()).invokeObjectPerform("ifTrue:", 1, false);
+	}
+
+	@Test
+	public void shouldInvokeLiteralArrayWhenVisitArrayConstant() {
 		Array array = mock(Array.class);
-		when(array.size()).thenReturn(2);
-		analyser.visitBegin(array);
-		verify(writer).invokeObjectArray(2);
+		when(array.literal()).thenReturn("n1:1n1:2");
+		analyser.visit(new ArrayConstant(array, 1), 1);
+		verify(writer).invokeObjectLiteralArray("n1:1n1:2", 1);
+	}
+
+	@Test
+	public void shouldInvokeFoldedWhenVisitFoldedExpression() {
+		FoldedExpression foldedExpression = mock(FoldedExpression.class);
+		analyser.visit(foldedExpression, "60 * 60", 1);
+		verify(writer).invokeObjectFolded("60 * 60", 1);
 	}
 
 	@Test
@@ -68,11 +103,10 @@ public class ProgramAnalyserTest {
 	}
 
 	@Test
-	public void shouldInvokeArrayPutWhenVisitSymbolInsideAnArray() {
+	public void shouldNotCreateSymbolWhenVisitSymbolInsideAnArray() {
 		Symbol symbol = mock(Symbol.class);
 		analyser.visit(symbol, "sym", 32, true, 1);
-		verify(writer).invokeObjectSymbol("sym", 1);
-		verify(writer).invokeArrayPutAt(32, 1);
+		verifyZeroInteractions(writer);
 	}
 
 	@Test
@@ -83,11 +117,10 @@ public class ProgramAnalyserTest {
 	}
 
 	@Test
-	public void shouldInvokeArrayPutWhenVisitCharacterConstantInsideAnArray() {
+	public void shouldNotCreateCharacterConstantWhenVisitCharacterConstantInsideAnArray() {
 		CharacterConstant characterConstant = mock(CharacterConstant.class);
 		analyser.visit(characterConstant, "c", 32, true, 1);
-		verify(writer).invokeObjectCharacter("c", 1);
-		verify(writer).invokeArrayPutAt(32, 1);
+		verifyZeroInteractions(writer);
 	}
 
 	@Test
@@ -98,11 +131,10 @@ public class ProgramAnalyserTest {
 	}
 
 	@Test
-	public void shouldInvokeArrayPutWhenVisitNumberInsideAnArray() {
+	public void shouldNotCreateNumberWhenVisitNumberInsideAnArray() {
 		Number number = mock(Number.class);
 		analyser.visit(number, "16", 32, true, 1);
-		verify(writer).invokeObjectNumber("16", 1);
-		verify(writer).invokeArrayPutAt(32, 1);
+		verifyZeroInteractions(writer);
 	}
 
 	@Test
@@ -113,11 +145,10 @@ public class ProgramAnalyserTest {
 	}
 
 	@Test
-	public void shouldInvokeArrayPutWhenVisitStringConstantInsideAnArray() {
+	public void shouldNotCreateStringConstantWhenVisitStringConstantInsideAnArray() {
 		StringConstant stringConstant = mock(StringConstant.class);
 		analyser.visit(stringConstant, "hello", 32, true, 1);
-		verify(writer).invokeObjectString("hello", 1);
-		verify(writer).invokeArrayPutAt(32, 1);
+		verifyZeroInteractions(writer);
 	}
 
 	@Test
@@ -206,6 +237,19 @@ public class ProgramAnalyserTest {
 		verify(writer).invokeObjectPerform("yourself", 0, false);
 	}
 
+	@Test
+	public void shouldInvokeArithmeticWhenVisitingArithmeticBinarySelector() {
+		analyser.visit(mock(BinarySelector.class), "+", 42);
+		verify(writer).visitLine(42);
+		verify(writer).invokeObjectArithmetic("+");
+	}
+
+	@Test
+	public void shouldInvokePerformWhenVisitingOtherBinarySelector() {
+		analyser.visit(mock(BinarySelector.class), ",", 42);
+		verify(writer).invokeObjectPerform(",", 1, false);
+	}
+
 	@Test
 	public void shouldPushReceiverWhenVisitingSelfNode() {
 		Self self = mock(Self.class);
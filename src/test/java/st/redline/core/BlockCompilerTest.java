@@ -0,0 +1,207 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import st.redline.compiler.Analyser;
+import st.redline.compiler.Block;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BlockCompilerTest {
+
+	private ClassLoader contextClassLoader;
+	private CountingClassLoader classLoader;
+
+	@Before
+	public void setUp() {
+		contextClassLoader = Thread.currentThread().getContextClassLoader();
+		classLoader = new CountingClassLoader(getClass().getClassLoader());
+		Thread.currentThread().setContextClassLoader(classLoader);
+	}
+
+	@After
+	public void tearDown() {
+		Thread.currentThread().setContextClassLoader(contextClassLoader);
+	}
+
+	@Test
+	public void shouldAnswerBlockAlreadyCompiled() {
+		PrimObject block = new PrimObject();
+		PrimObject.BLOCKS.put("st.redline.core.Thing$M3", block);
+		assertSame(block, BlockCompiler.compile("st.redline.core.Thing$M3"));
+	}
+
+	@Test
+	public void shouldFailEachTimeWithFailureOfCompilation() {
+		IllegalStateException first = failureOf("st.redline.core.Thing$M4");
+		assertEquals("Block to be compiled 'st.redline.core.Thing$M4' not found.", first.getMessage());
+		assertSame(first, failureOf("st.redline.core.Thing$M4"));
+	}
+
+	@Test
+	public void shouldCompileBlockNeededByManyThreadsOnce() throws Exception {
+		final String name = "st.redline.core.Thing$M5";
+		StubAnalyser analyser = new StubAnalyser(CompiledBlock.class);
+		analyser.delay = 50;
+		SmalltalkEnvironment.BLOCKS_TO_BE_COMPILED.put(name, blockAnalysedBy(analyser));
+		int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<PrimObject>> compiled = new ArrayList<Future<PrimObject>>();
+			for (int i = 0; i < threads; i++)
+				compiled.add(pool.submit(new Callable<PrimObject>() {
+					public PrimObject call() throws Exception {
+						start.await();
+						return BlockCompiler.compile(name);
+					}
+				}));
+			start.countDown();
+			PrimObject first = compiled.get(0).get(5, TimeUnit.SECONDS);
+			assertDefinedFrom(CompiledBlock.class, first);
+			for (Future<PrimObject> each : compiled)
+				assertSame(first, each.get(5, TimeUnit.SECONDS));
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals(1, analyser.compilations.get());
+		assertEquals(1, classLoader.definitions.get());
+		assertSame(PrimObject.BLOCKS.get(name), BlockCompiler.compile(name));
+	}
+
+	@Test
+	public void shouldPrecompileBlocksRegisteredWhileCompiling() {
+		String name = "st.redline.core.Thing$M6";
+		String innerName = "st.redline.core.Thing$M6$M7";
+		String failingName = "st.redline.core.Thing$M8";
+		StubAnalyser analyser = new StubAnalyser(CompiledBlock.class);
+		StubAnalyser inner = new StubAnalyser(OtherCompiledBlock.class);
+		analyser.registers(innerName, blockAnalysedBy(inner));
+		StubAnalyser failing = new StubAnalyser(null);
+		SmalltalkEnvironment.BLOCKS_TO_BE_COMPILED.put(name, blockAnalysedBy(analyser));
+		SmalltalkEnvironment.BLOCKS_TO_BE_COMPILED.put(failingName, blockAnalysedBy(failing));
+		BlockCompiler.precompile(classLoader);
+		assertDefinedFrom(CompiledBlock.class, PrimObject.BLOCKS.get(name));
+		assertDefinedFrom(OtherCompiledBlock.class, PrimObject.BLOCKS.get(innerName));
+		assertFalse(SmalltalkEnvironment.BLOCKS_TO_BE_COMPILED.containsKey(innerName));
+		assertEquals(1, inner.compilations.get());
+		assertEquals(2, classLoader.definitions.get());
+		assertSame(PrimObject.BLOCKS.get(innerName), BlockCompiler.compile(innerName));
+		assertFalse(PrimObject.BLOCKS.containsKey(failingName));
+		IllegalStateException failure = failureOf(failingName);
+		assertEquals("Block doesn't compile.", failure.getMessage());
+		assertSame(failure, failureOf(failingName));
+		assertEquals(1, failing.compilations.get());
+	}
+
+	// The compiled block's class is defined from the bytes of the given class by the environment's class loader.
+	private void assertDefinedFrom(Class aClass, PrimObject block) {
+		assertEquals(aClass.getName(), block.getClass().getName());
+		assertSame(classLoader, block.getClass().getClassLoader());
+	}
+
+	private IllegalStateException failureOf(String name) {
+		try {
+			BlockCompiler.compile(name);
+		} catch (IllegalStateException e) {
+			return e;
+		}
+		throw new AssertionError("expected IllegalStateException");
+	}
+
+	public static class CompiledBlock extends PrimObject {
+	}
+
+	public static class OtherCompiledBlock extends PrimObject {
+	}
+
+	// Stands in for the analyser of a block, giving it the bytes of the given class, or failing when there is none.
+	static class StubAnalyser extends Analyser {
+
+		final AtomicInteger compilations = new AtomicInteger();
+		private final Class compiledClass;
+		private String registeredName;
+		private Block registeredBlock;
+		long delay;
+
+		StubAnalyser(Class compiledClass) {
+			super("Thing", "st.redline.core", "", false);
+			this.compiledClass = compiledClass;
+		}
+
+		void registers(String name, Block block) {
+			registeredName = name;
+			registeredBlock = block;
+		}
+
+		public void visitBegin(Block block, int line) {
+			compilations.incrementAndGet();
+			if (compiledClass == null)
+				throw new IllegalStateException("Block doesn't compile.");
+			if (registeredName != null)
+				SmalltalkEnvironment.BLOCKS_TO_BE_COMPILED.put(registeredName, registeredBlock);
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public boolean skipBlockVisit(Block block) {
+			return true;
+		}
+
+		public byte[] classBytes() {
+			return bytesOf(compiledClass);
+		}
+	}
+
+	static class CountingClassLoader extends ExposedClassLoader {
+
+		final AtomicInteger definitions = new AtomicInteger();
+
+		CountingClassLoader(ClassLoader parent) {
+			super(parent, null);
+		}
+
+		public Class defineClass(byte[] classBytes) {
+			definitions.incrementAndGet();
+			return super.defineClass(classBytes);
+		}
+	}
+
+	private static Block blockAnalysedBy(Analyser analyser) {
+		Block block = new Block(0, null, null, null);
+		block.analyser(analyser);
+		return block;
+	}
+
+	private static byte[] bytesOf(Class aClass) {
+		String resource = aClass.getName().substring(aClass.getName().lastIndexOf('.') + 1) + ".class";
+		InputStream input = aClass.getResourceAsStream(resource);
+		try {
+			try {
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				byte[] buffer = new byte[4096];
+				int count;
+				while ((count = input.read(buffer)) != -1)
+					output.write(buffer, 0, count);
+				return output.toByteArray();
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+import org.junit.Test;
+
+import java.lang.invoke.SwitchPoint;
+
+import static org.junit.Assert.*;
+
+public class GlobalBindingsTest {
+
+	@Test
+	public void shouldAnswerSameSwitchPointUntilNameDefined() {
+		SwitchPoint switchPoint = GlobalBindings.switchPointFor("AGlobal");
+		assertSame(switchPoint, GlobalBindings.switchPointFor("AGlobal"));
+		GlobalBindings.defined("AGlobal");
+		assertTrue(switchPoint.hasBeenInvalidated());
+		assertNotSame(switchPoint, GlobalBindings.switchPointFor("AGlobal"));
+	}
+
+	@Test
+	public void shouldInvalidateShortNameWhenFullyQualifiedNameDefined() {
+		SwitchPoint switchPoint = GlobalBindings.switchPointFor("AClass");
+		GlobalBindings.defined("st.redline.AClass");
+		assertTrue(switchPoint.hasBeenInvalidated());
+	}
+
+	@Test
+	public void shouldNotInvalidateOtherNames() {
+		SwitchPoint switchPoint = GlobalBindings.switchPointFor("AnotherClass");
+		GlobalBindings.defined("st.redline.AClass");
+		assertFalse(switchPoint.hasBeenInvalidated());
+	}
+}
@@ -0,0 +1,152 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import static org.junit.Assert.*;
+
+public class IndyBootstrapTest {
+
+	private boolean bootstrapping;
+
+	@Before
+	public void setUp() {
+		// blocks are made without resolving BlockClosure.
+		bootstrapping = PrimObject.bootstrapping(true);
+	}
+
+	@After
+	public void tearDown() {
+		PrimObject.bootstrapping(bootstrapping);
+	}
+
+	@Test
+	public void shouldRelinkSuperSendAfterSelectorRedefinedInSuperclass() throws Throwable {
+		PrimObject first = new PrimObject();
+		PrimObjectClass superclass = new PrimObjectClass();
+		superclass.methods().put("aMethod", answering(first));
+		PrimObjectClass aClass = new PrimObjectClass();
+		aClass.superclass(superclass);
+		aClass.methods().put("aMethod", answering(new PrimObject()));
+		MethodHandle site = superSite();
+		PrimObject receiver = instanceOf(aClass);
+		PrimContext context = new PrimContext(receiver, aClass, "aMethod");
+		assertSame(first, (PrimObject) site.invokeExact(receiver, context, "aMethod"));
+		assertSame(first, (PrimObject) site.invokeExact(receiver, context, "aMethod"));
+		PrimObject redefined = new PrimObject();
+		superclass.methods().put("aMethod", answering(redefined));
+		superclass.invalidateSelector("aMethod");
+		assertSame(redefined, (PrimObject) site.invokeExact(receiver, context, "aMethod"));
+	}
+
+	@Test
+	public void shouldRelinkSuperSendAfterSuperclassChanged() throws Throwable {
+		PrimObjectClass superclass = new PrimObjectClass();
+		superclass.methods().put("aMethod", answering(new PrimObject()));
+		PrimObjectClass aClass = new PrimObjectClass();
+		aClass.superclass(superclass);
+		MethodHandle site = superSite();
+		PrimObject receiver = instanceOf(aClass);
+		PrimContext context = new PrimContext(receiver, aClass, "aMethod");
+		assertNotNull((PrimObject) site.invokeExact(receiver, context, "aMethod"));
+		assertNotNull((PrimObject) site.invokeExact(receiver, context, "aMethod"));
+		PrimObject other = new PrimObject();
+		PrimObjectClass otherSuperclass = new PrimObjectClass();
+		otherSuperclass.methods().put("aMethod", answering(other));
+		aClass.superclass(otherSuperclass);
+		assertSame(other, (PrimObject) site.invokeExact(receiver, context, "aMethod"));
+	}
+
+	@Test
+	public void shouldPassArgumentsToStaticInvokeOfContextFreeMethod() throws Throwable {
+		ContextFreeMethod method = new ContextFreeMethod();
+		PrimObjectClass aClass = new PrimObjectClass();
+		aClass.methods().put("at:put:", method);
+		MethodHandle site = IndyBootstrap.performBootstrap(MethodHandles.lookup(), "perform", MethodType.methodType(PrimObject.class, PrimObject.class, PrimObject.class, PrimObject.class, String.class)).dynamicInvoker();
+		PrimObject receiver = instanceOf(aClass);
+		for (int send = 0; send < 3; send++) {
+			PrimObject first = new PrimObject();
+			PrimObject second = new PrimObject();
+			ContextFreeMethod.invoked = null;
+			assertSame(second, (PrimObject) site.invokeExact(receiver, first, second, "at:put:"));
+			assertArrayEquals(new Object[] {method, receiver, first, second, aClass, "at:put:"}, ContextFreeMethod.invoked);
+		}
+	}
+
+	@Test
+	public void shouldLoadVariablesOfOuterReceiverInBlockEachTime() throws Throwable {
+		PrimObject count = new PrimObject();
+		PrimObject thing = new PrimObject();
+		PrimObject otherThing = new PrimObject();
+		PrimObjectMetaclass aClass = new PrimObjectMetaclass();
+		aClass.addVariableNamed("count");
+		aClass.packageAtPut("Thing", "st.redline.test.Thing");
+		PrimObjectMetaclass otherClass = new PrimObjectMetaclass();
+		otherClass.packageAtPut("Thing", "st.redline.test.other.Thing");
+		PrimObject.CLASSES.put("st.redline.test.Thing", thing);
+		PrimObject.CLASSES.put("st.redline.test.other.Thing", otherThing);
+		PrimObject receiver = new PrimObject(aClass.primInstanceSize());
+		receiver.cls(aClass);
+		receiver.slotAtPut(aClass.indexOfVariable("count"), count);
+		PrimObjectClass blockClosure = new PrimObjectClass();
+		PrimObjectBlock block = blockOf(receiver, blockClosure);
+		PrimObjectBlock otherBlock = blockOf(instanceOf(otherClass), blockClosure);
+		MethodHandle countSite = variableSite();
+		MethodHandle thingSite = variableSite();
+		for (int load = 0; load < 3; load++) {
+			assertSame(count, (PrimObject) countSite.invokeExact((PrimObject) block, "count"));
+			assertSame(thing, (PrimObject) thingSite.invokeExact((PrimObject) block, "Thing"));
+		}
+		assertSame(otherThing, (PrimObject) thingSite.invokeExact((PrimObject) otherBlock, "Thing"));
+		assertSame(thing, (PrimObject) thingSite.invokeExact((PrimObject) block, "Thing"));
+	}
+
+	private MethodHandle variableSite() throws Throwable {
+		return IndyBootstrap.variableBootstrap(MethodHandles.lookup(), "variableAt", MethodType.methodType(PrimObject.class, PrimObject.class, String.class)).dynamicInvoker();
+	}
+
+	private PrimObjectBlock blockOf(PrimObject outerReceiver, PrimObjectClass blockClosure) {
+		PrimObjectBlock block = new PrimObjectBlock(outerReceiver, null, null);
+		block.cls(blockClosure);
+		return block;
+	}
+
+	private MethodHandle superSite() throws Throwable {
+		return IndyBootstrap.superPerformBootstrap(MethodHandles.lookup(), "superPerform", MethodType.methodType(PrimObject.class, PrimObject.class, PrimContext.class, String.class)).dynamicInvoker();
+	}
+
+	private PrimObject instanceOf(PrimObjectClass aClass) {
+		PrimObject instance = new PrimObject();
+		instance.cls(aClass);
+		return instance;
+	}
+
+	private PrimObject answering(final PrimObject answer) {
+		return new PrimObject() {
+			protected PrimObject invoke(PrimObject receiver, PrimContext context) {
+				return answer;
+			}
+		};
+	}
+
+	// Has the static body the compiler gives a block that doesn't need a context (see BlockBytecodeWriter).
+	public static class ContextFreeMethod extends PrimObjectBlock {
+
+		static Object[] invoked;
+
+		public static PrimObject _invoke_(PrimObjectBlock method, PrimObject receiver, PrimObject arg1, PrimObject arg2, PrimObject foundInClass, String selector) {
+			invoked = new Object[] {method, receiver, arg1, arg2, foundInClass, selector};
+			return arg2;
+		}
+
+		protected PrimObject invoke2(PrimObject receiver, PrimObject arg1, PrimObject arg2, PrimObject foundInClass, String selector) {
+			return _invoke_(this, receiver, arg1, arg2, foundInClass, selector);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InstanceCensusTest {
+
+	private boolean bootstrapping;
+
+	@Before
+	public void setUp() {
+		bootstrapping = PrimObject.bootstrapping(true);
+	}
+
+	@After
+	public void tearDown() {
+		PrimObject.bootstrapping(bootstrapping);
+	}
+
+	@Test
+	public void shouldCountEveryInstanceMadeAndSampleFirst() {
+		PrimObjectClass aClass = new PrimObjectClass();
+		InstanceCensus.made(aClass, PrimObjectShapes.newInstance(3));
+		InstanceCensus.made(aClass, PrimObjectShapes.newInstance(3));
+		assertEquals(2, aClass.censusTally.made.get());
+		assertEquals(InstanceCensus.SAMPLE_RATE, aClass.censusTally.live());
+		assertEquals(40 * InstanceCensus.SAMPLE_RATE, aClass.censusTally.bytes());
+	}
+
+	@Test
+	public void shouldEstimateBytesOfShapeFromItsFields() {
+		assertEquals(32, InstanceCensus.bytesOf(PrimObjectShapes.newInstance(1)));
+		assertEquals(40, InstanceCensus.bytesOf(PrimObjectShapes.newInstance(3)));
+	}
+
+	@Test
+	public void shouldEstimateBytesOfIndexedInstanceWithItsAttributes() {
+		assertEquals(64, InstanceCensus.bytesOf(new PrimObject(3)));
+	}
+
+	@Test
+	public void shouldAnswerCensusEntryForClassWithInstances() {
+		PrimObjectClass aClass = new PrimObjectClass();
+		InstanceCensus.made(aClass, new PrimObject(3));
+		List<PrimObject> census = (List<PrimObject>) InstanceCensus.census().javaValue();
+		boolean found = false;
+		for (PrimObject entry : census.subList(1, census.size())) {
+			List<PrimObject> elements = (List<PrimObject>) entry.javaValue();
+			if (elements.get(1) == aClass) {
+				found = true;
+				assertEquals(InstanceCensus.SAMPLE_RATE, ((Number) elements.get(2).javaValue()).longValue());
+				assertEquals(1, ((Number) elements.get(4).javaValue()).longValue());
+			}
+		}
+		assertTrue(found);
+	}
+}
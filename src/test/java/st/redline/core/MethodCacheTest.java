@@ -0,0 +1,102 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MethodCacheTest {
+
+	@Test
+	public void shouldFindMethodAndClassItWasFoundIn() {
+		PrimObject aMethod = new PrimObject();
+		PrimObjectClass superclass = new PrimObjectClass();
+		superclass.methods().put("aMethod", aMethod);
+		PrimObjectClass aClass = new PrimObjectClass();
+		aClass.superclass(superclass);
+		MethodCache.Entry entry = MethodCache.lookup(aClass, "aMethod");
+		assertEquals(aMethod, entry.method);
+		assertSame(superclass, entry.foundInClass);
+	}
+
+	@Test
+	public void shouldAnswerSameEntryForRepeatedLookup() {
+		PrimObjectClass aClass = new PrimObjectClass();
+		aClass.methods().put("aMethod", new PrimObject());
+		assertSame(MethodCache.lookup(aClass, "aMethod"), MethodCache.lookup(aClass, "aMethod"));
+	}
+
+	@Test
+	public void shouldAnswerDoesNotUnderstandWhenSelectorNotFound() {
+		PrimObjectClass aClass = new PrimObjectClass();
+		assertSame(PrimObject.BASIC_DOES_NOT_UNDERSTAND, MethodCache.lookup(aClass, "abscentMethod").method);
+		assertFalse(MethodCache.lookup(aClass, "abscentMethod").isUnderstood());
+	}
+
+	@Test
+	public void shouldMissNegativeEntryAfterSelectorDefinedInSuperclass() {
+		PrimObjectClass superclass = new PrimObjectClass();
+		PrimObjectClass aClass = new PrimObjectClass();
+		aClass.superclass(superclass);
+		MethodCache.Entry entry = MethodCache.lookup(aClass, "aMethod");
+		superclass.methods().put("aMethod", new PrimObject());
+		superclass.invalidateSelector("aMethod");
+		assertFalse(entry.isValid());
+		assertTrue(MethodCache.lookup(aClass, "aMethod").isUnderstood());
+	}
+
+	@Test
+	public void shouldMissAfterSelectorRedefinedInSuperclass() {
+		PrimObjectClass superclass = new PrimObjectClass();
+		superclass.methods().put("aMethod", new PrimObject());
+		PrimObjectClass aClass = new PrimObjectClass();
+		aClass.superclass(superclass);
+		MethodCache.Entry entry = MethodCache.lookup(aClass, "aMethod");
+		PrimObject redefined = new PrimObject();
+		superclass.methods().put("aMethod", redefined);
+		superclass.invalidateSelector("aMethod");
+		assertFalse(entry.isValid());
+		assertEquals(redefined, MethodCache.lookup(aClass, "aMethod").method);
+	}
+
+	@Test
+	public void shouldMissAfterSuperclassChanged() {
+		PrimObjectClass aClass = new PrimObjectClass();
+		MethodCache.Entry entry = MethodCache.lookup(aClass, "aMethod");
+		PrimObjectClass superclass = new PrimObjectClass();
+		superclass.methods().put("aMethod", new PrimObject());
+		aClass.superclass(superclass);
+		assertFalse(entry.isValid());
+		assertSame(superclass, MethodCache.lookup(aClass, "aMethod").foundInClass);
+	}
+
+	@Test
+	public void shouldHitAfterUnrelatedChanges() {
+		PrimObjectClass aClass = new PrimObjectClass();
+		aClass.methods().put("aMethod", new PrimObject());
+		MethodCache.Entry entry = MethodCache.lookup(aClass, "aMethod");
+		aClass.addVariableNamed("var");
+		aClass.invalidateSelector("anotherMethod");
+		assertSame(entry, MethodCache.lookup(aClass, "aMethod"));
+	}
+
+	@Test
+	public void shouldRecordLookupInDispatchTableOfClass() {
+		PrimObjectClass aClass = new PrimObjectClass();
+		aClass.methods().put("aMethod", new PrimObject());
+		MethodCache.Entry entry = MethodCache.lookup(aClass, "aMethod");
+		assertSame(entry, aClass.dispatchEntry(Selectors.idOf("aMethod")));
+	}
+
+	@Test
+	public void shouldReplaceInvalidDispatchTableEntry() {
+		PrimObjectClass aClass = new PrimObjectClass();
+		aClass.methods().put("aMethod", new PrimObject());
+		MethodCache.lookup(aClass, "aMethod");
+		PrimObject redefined = new PrimObject();
+		aClass.methods().put("aMethod", redefined);
+		aClass.invalidateSelector("aMethod");
+		assertEquals(redefined, MethodCache.lookup(aClass, "aMethod").method);
+		assertEquals(redefined, aClass.dispatchEntry(Selectors.idOf("aMethod")).method);
+	}
+}
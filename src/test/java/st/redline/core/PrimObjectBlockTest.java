@@ -1,13 +1,26 @@
 /* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
 package st.redline.core;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class PrimObjectBlockTest {
 
 	private boolean blockClosureResolved = false;
+	private boolean bootstrapping;
+
+	@Before
+	public void setUp() {
+		bootstrapping = PrimObject.bootstrapping(true);
+	}
+
+	@After
+	public void tearDown() {
+		PrimObject.bootstrapping(bootstrapping);
+	}
 
 	@Test
 	public void shouldInitializeClassToBlockClosureWhenConstructed() {
@@ -15,6 +28,90 @@ public class PrimObjectBlockTest {
 		assertTrue(blockClosureResolved);
 	}
 
+	@Test
+	public void shouldSignalAnswerToHomeContextWithoutStackTrace() {
+		PrimContext home = new PrimContext(null);
+		PrimObject answer = new PrimObject();
+		try {
+			new PrimObjectBlock(home).answer(answer);
+			fail("expected BlockReturn");
+		} catch (BlockReturn blockReturn) {
+			assertSame(home, blockReturn.home());
+			assertSame(answer, blockReturn.answerIn(home));
+			assertEquals(0, blockReturn.getStackTrace().length);
+		}
+	}
+
+	@Test
+	public void shouldSignalEachAnswerOfBlockSeparately() {
+		PrimObjectBlock block = new PrimObjectBlock(new PrimContext(null));
+		PrimObject firstAnswer = new PrimObject();
+		BlockReturn first = answerOf(block, firstAnswer);
+		PrimObject secondAnswer = new PrimObject();
+		BlockReturn second = answerOf(block, secondAnswer);
+		assertNotSame(first, second);
+		assertSame(firstAnswer, first.answer());
+		assertSame(secondAnswer, second.answer());
+	}
+
+	@Test
+	public void shouldAnswerNilWhenBlockAnswersNull() {
+		PrimObject nil = PrimObject.NIL;
+		PrimObject.NIL = new PrimObject();
+		try {
+			assertSame(PrimObject.NIL, answerOf(new PrimObjectBlock(new PrimContext(null)), null).answer());
+		} finally {
+			PrimObject.NIL = nil;
+		}
+	}
+
+	@Test
+	public void shouldAnswerFromMethodBlock() {
+		PrimObjectBlock block = new PrimObjectBlock(new PrimContext(null));
+		block.markAsMethodBlock();
+		PrimObject answer = new PrimObject();
+		assertSame(answer, block.answer(answer));
+	}
+
+	@Test
+	public void shouldThrowSignalOnWhenContextIsNotHome() {
+		BlockReturn blockReturn = answerOf(new PrimObjectBlock(new PrimContext(null)), new PrimObject());
+		try {
+			blockReturn.answerIn(new PrimContext(null));
+			fail("expected BlockReturn");
+		} catch (BlockReturn thrown) {
+			assertSame(blockReturn, thrown);
+		}
+	}
+
+	@Test
+	public void shouldGiveBlockMadeByBlockTheSameHome() {
+		PrimContext home = new PrimContext(null);
+		PrimObjectBlock block = new PrimObjectBlock(home);
+		PrimObjectBlock made = new PrimObjectBlock(new PrimContext(null));
+		assertSame(made, block.made(made));
+		assertSame(home, answerOf(made, new PrimObject()).home());
+	}
+
+	@Test
+	public void shouldNotChangeHomeOfBlockMadeByMethodBlock() {
+		PrimObjectBlock method = new PrimObjectBlock(new PrimContext(null));
+		method.markAsMethodBlock();
+		PrimContext context = new PrimContext(null);
+		PrimObjectBlock made = new PrimObjectBlock(context);
+		method.made(made);
+		assertSame(context, answerOf(made, new PrimObject()).home());
+	}
+
+	private BlockReturn answerOf(PrimObjectBlock block, PrimObject answer) {
+		try {
+			block.answer(answer);
+		} catch (BlockReturn blockReturn) {
+			return blockReturn;
+		}
+		throw new AssertionError("expected BlockReturn");
+	}
+
 	private class TestPrimObjectBlock extends PrimObjectBlock {
 
 		public TestPrimObjectBlock() {
@@ -3,6 +3,8 @@ package st.redline.core;
 
 import org.junit.Test;
 
+import java.lang.invoke.SwitchPoint;
+
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
@@ -31,6 +33,26 @@ public class PrimObjectClassTest {
 		assertTrue(object.variableIndexes().containsKey("var"));
 	}
 
+	@Test
+	public void shouldInvalidateShapeWhenVariableAdded() {
+		PrimObjectClass object = new PrimObjectClass();
+		SwitchPoint shape = object.shapeSwitchPoint();
+		assertSame(shape, object.shapeSwitchPoint());
+		object.addVariableNamed("var");
+		assertTrue(shape.hasBeenInvalidated());
+		assertNotSame(shape, object.shapeSwitchPoint());
+	}
+
+	@Test
+	public void shouldInvalidateShapeOfSubclassWhenVariableAddedToSuperclass() {
+		PrimObjectClass superclass = new PrimObjectClass();
+		PrimObjectClass object = new PrimObjectClass();
+		object.superclass(superclass);
+		SwitchPoint shape = object.shapeSwitchPoint();
+		superclass.addVariableNamed("var");
+		assertTrue(shape.hasBeenInvalidated());
+	}
+
     @Test
     public void shouldHaveRegistryOfVariableIndexesWhenConstructed() {
         PrimObjectClass object = new PrimObjectClass();
@@ -24,7 +24,7 @@ public class PrimObjectMetaclassTest {
         assertTrue(metaclass.hasClassVariableNamed("newvar"));
         assertEquals(before + 1, metaclass.attributes.length);
         assertEquals(newElement, metaclass.attributes[metaclass.attributes.length - 1]);
-        assertEquals(newElement, metaclass.attributes[currentNextVariableIndex]);
+        assertEquals(newElement, metaclass.attributes[currentNextVariableIndex - PrimObject.FIRST_ATTRIBUTE_INDEX]);
     }
 
     @Test (expected = IllegalStateException.class)
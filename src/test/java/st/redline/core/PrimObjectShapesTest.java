@@ -0,0 +1,68 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+import org.junit.Test;
+
+import java.lang.invoke.MethodHandle;
+
+import static org.junit.Assert.*;
+
+public class PrimObjectShapesTest {
+
+	@Test
+	public void shouldCreateInstanceWithEverySlotPrimitiveNil() {
+		PrimObject instance = PrimObjectShapes.newInstance(4);
+		assertTrue(PrimObjectShapes.isShape(instance.getClass()));
+		assertNull(instance.attributes);
+		assertEquals(5, instance.slotLimit());
+		for (int i = 1; i < 5; i++)
+			assertSame(PrimObject.PRIM_NIL, instance.slotAt(i));
+	}
+
+	@Test
+	public void shouldShareShapeBetweenInstancesOfSameSize() {
+		assertSame(PrimObjectShapes.newInstance(3).getClass(), PrimObjectShapes.newInstance(3).getClass());
+		assertNotSame(PrimObjectShapes.newInstance(3).getClass(), PrimObjectShapes.newInstance(4).getClass());
+	}
+
+	@Test
+	public void shouldStoreSlotsInOwnInstance() {
+		PrimObject first = PrimObjectShapes.newInstance(3);
+		PrimObject second = PrimObjectShapes.newInstance(3);
+		PrimObject object = new PrimObject();
+		first.slotAtPut(3, object);
+		assertSame(object, first.slotAt(3));
+		assertSame(PrimObject.PRIM_NIL, second.slotAt(3));
+	}
+
+	@Test
+	public void shouldLoadAndStoreSlotsThroughFieldHandles() throws Throwable {
+		PrimObject instance = PrimObjectShapes.newInstance(2);
+		PrimObject object = new PrimObject();
+		MethodHandle setter = PrimObjectShapes.setterFor(instance.getClass(), 2);
+		MethodHandle getter = PrimObjectShapes.getterFor(instance.getClass(), 2);
+		setter.invokeWithArguments(instance, object);
+		assertSame(object, getter.invokeWithArguments(instance));
+		assertSame(object, instance.slotAt(2));
+	}
+
+	@Test
+	public void shouldCopyOwnSlots() {
+		PrimObject instance = PrimObjectShapes.newInstance(2);
+		PrimObject copy = instance.shallowCopy();
+		copy.slotAtPut(2, new PrimObject());
+		assertSame(PrimObject.PRIM_NIL, instance.slotAt(2));
+	}
+
+	@Test
+	public void shouldUseAttributesWhenLargerThanLargestShape() {
+		PrimObject instance = PrimObjectShapes.newInstance(PrimObjectShapes.MAX_SHAPE_SIZE + 1);
+		assertFalse(PrimObjectShapes.isShape(instance.getClass()));
+		assertEquals(PrimObjectShapes.MAX_SHAPE_SIZE + 1, instance.attributes.length);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldNotStoreOutsideShape() {
+		PrimObjectShapes.newInstance(2).slotAtPut(3, new PrimObject());
+	}
+}
@@ -5,11 +5,28 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 public class PrimObjectTest {
 
+	@Test
+	public void shouldAnswerCopyOfLiteralWithOwnAttributes() {
+		PrimObject aClass = new PrimObject();
+		PrimObject literal = new PrimObject(1);
+		literal.cls(aClass);
+		literal.javaValue("literal");
+		PrimObject copy = literal.literalCopy();
+		assertNotSame(literal, copy);
+		assertSame(aClass, copy.cls());
+		assertEquals("literal", copy.javaValue());
+		copy.attributes[0] = new PrimObject();
+		assertSame(PrimObject.PRIM_NIL, literal.attributes[0]);
+	}
+
 	@Test
 	public void shouldCallInvokeOnReceiverWhenP81Called() {
 		PrimContext context = mock(PrimContext.class);
@@ -45,12 +62,13 @@ public class PrimObjectTest {
 		PrimObject newInstance = spy.p70(spy, null);
 		assertNotNull(newInstance);
 		assertNotNull(newInstance.cls());
-		assertEquals(5, newInstance.attributes.length);
+		assertEquals(5, newInstance.slotLimit());
+		assertNull(newInstance.attributes);
 	}
 
 	@Test (expected = IllegalStateException.class)
 	public void shouldThrowExceptionWhenBlockToBeCompiledNotFound() {
-		new PrimObject().block("st/redline/core/Thing$M2", null);
+		new PrimObject().block(null, null, null, "st/redline/core/Thing$M2");
 	}
 
 	@Test
@@ -59,7 +77,7 @@ public class PrimObjectTest {
 		PrimObject block = mock(PrimObject.class);
 		when(block.isMethodBlock()).thenReturn(true);
 		PrimObject.BLOCKS.put("st/redline/core/Thing$M1", block);
-		primObject.block("st/redline/core/Thing$M1", null);
+		primObject.block(null, null, null, "st/redline/core/Thing$M1");
 		// not a test so much as documentation.
 	}
 
@@ -121,9 +139,9 @@ public class PrimObjectTest {
 	}
 
 	@Test
-	public void shouldAddSlotToAttributesForClass() {
+	public void shouldNotAddSlotToAttributesForClass() {
 		PrimObject object = new PrimObject(5);
-		assertEquals(object.attributes.length, 6);
+		assertEquals(object.attributes.length, 5);
 	}
 
 	@Test
@@ -134,9 +152,13 @@ public class PrimObjectTest {
 	}
 
 	@Test
-	public void shouldAddSlotForClassInAttributes() {
+	public void shouldHoldSlotsAfterClassInAttributes() {
 		PrimObject object = new PrimObject(3);
-		assertEquals(object.attributes.length, 4);
+		PrimObject slot = new PrimObject();
+		object.slotAtPut(1, slot);
+		assertSame(slot, object.attributes[0]);
+		assertSame(slot, object.slotAt(1));
+		assertEquals(4, object.slotLimit());
 	}
 
 	@Test
@@ -0,0 +1,73 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PrimSmallIntegerTest {
+
+	private boolean bootstrapping;
+	private PrimObject smallIntegerClass;
+	private PrimSmallInteger[] cache;
+
+	@Before
+	public void setUp() {
+		bootstrapping = PrimObject.bootstrapping(false);
+		smallIntegerClass = PrimSmallInteger.smallIntegerClass;
+		cache = PrimSmallInteger.cache;
+		PrimSmallInteger.smallIntegerClass = new PrimObjectClass();
+		PrimSmallInteger.cache = null;
+	}
+
+	@After
+	public void tearDown() {
+		PrimSmallInteger.smallIntegerClass = smallIntegerClass;
+		PrimSmallInteger.cache = cache;
+		PrimObject.bootstrapping(bootstrapping);
+	}
+
+	@Test
+	public void shouldAnswerSameInstanceForValueInCachedRange() {
+		assertSame(PrimSmallInteger.valueOf(5), PrimSmallInteger.valueOf(5));
+		assertSame(PrimSmallInteger.valueOf(PrimSmallInteger.CACHE_LOW), PrimSmallInteger.valueOf(PrimSmallInteger.CACHE_LOW));
+		assertSame(PrimSmallInteger.valueOf(PrimSmallInteger.CACHE_HIGH), PrimSmallInteger.valueOf(PrimSmallInteger.CACHE_HIGH));
+	}
+
+	@Test
+	public void shouldAnswerEqualInstancesForValueOutsideCachedRange() {
+		PrimSmallInteger above = PrimSmallInteger.valueOf(PrimSmallInteger.CACHE_HIGH + 1L);
+		PrimSmallInteger below = PrimSmallInteger.valueOf(PrimSmallInteger.CACHE_LOW - 1L);
+		assertNotSame(above, PrimSmallInteger.valueOf(PrimSmallInteger.CACHE_HIGH + 1L));
+		assertEquals(above, PrimSmallInteger.valueOf(PrimSmallInteger.CACHE_HIGH + 1L));
+		assertEquals(above.hashCode(), PrimSmallInteger.valueOf(PrimSmallInteger.CACHE_HIGH + 1L).hashCode());
+		assertNotSame(below, PrimSmallInteger.valueOf(PrimSmallInteger.CACHE_LOW - 1L));
+		assertEquals(below, PrimSmallInteger.valueOf(PrimSmallInteger.CACHE_LOW - 1L));
+	}
+
+	@Test
+	public void shouldNotCacheValuesMadeWhileBootstrapping() {
+		PrimSmallInteger.smallIntegerClass = null;
+		PrimObject.bootstrapping(true);
+		PrimSmallInteger early = PrimSmallInteger.valueOf(5);
+		assertNull(PrimSmallInteger.cache);
+		assertNotSame(early, PrimSmallInteger.valueOf(5));
+		PrimObject.bootstrapping(false);
+		PrimSmallInteger.smallIntegerClass = new PrimObjectClass();
+		PrimSmallInteger cached = PrimSmallInteger.valueOf(5);
+		assertNotSame(early, cached);
+		assertSame(cached, PrimSmallInteger.valueOf(5));
+		assertEquals(early, cached);
+		assertSame(PrimSmallInteger.smallIntegerClass, cached.cls());
+	}
+
+	@Test
+	public void shouldNotCacheWhenRangeIsEmptyOrTooLarge() {
+		assertEquals(66560, PrimSmallInteger.cacheSize(-1024, 65535));
+		assertEquals(1, PrimSmallInteger.cacheSize(0, 0));
+		assertEquals(0, PrimSmallInteger.cacheSize(10, 5));
+		assertEquals(0, PrimSmallInteger.cacheSize(Integer.MIN_VALUE, Integer.MAX_VALUE));
+	}
+}
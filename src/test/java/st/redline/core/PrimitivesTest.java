@@ -0,0 +1,380 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PrimitivesTest {
+
+	private boolean bootstrapping;
+	private PrimObject trueObject;
+	private PrimObject falseObject;
+
+	@Before
+	public void setUp() {
+		// numbers are created without resolving their class.
+		bootstrapping = PrimObject.bootstrapping(true);
+		// comparisons answer these, which are only set once the image is loaded.
+		trueObject = PrimObject.TRUE;
+		falseObject = PrimObject.FALSE;
+		if (PrimObject.TRUE == null) {
+			PrimObject.TRUE = new PrimObject();
+			PrimObject.FALSE = new PrimObject();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		PrimObject.TRUE = trueObject;
+		PrimObject.FALSE = falseObject;
+		PrimObject.bootstrapping(bootstrapping);
+	}
+
+	@Test
+	public void shouldAnswerHandleForPrimitiveWithDirectForm() {
+		assertNotNull(Primitives.handleFor(21, 1));
+		assertNotNull(Primitives.handleFor(137, 2));
+	}
+
+	@Test
+	public void shouldAnswerNullWhenArgumentCountDiffers() {
+		assertNull(Primitives.handleFor(21, 0));
+	}
+
+	@Test
+	public void shouldAnswerNullWhenPrimitiveHasNoDirectForm() {
+		assertNull(Primitives.handleFor(81, 1));
+	}
+
+	@Test
+	public void shouldAnswerAndStoreAtIndex() {
+		PrimObject receiver = new PrimObject(2);
+		PrimObject index = new PrimObject().javaValue(new BigDecimal(1));
+		PrimObject object = new PrimObject();
+		assertSame(object, Primitives.atPut(receiver, index, object));
+		assertSame(object, Primitives.at(receiver, index));
+	}
+
+	@Test
+	public void shouldFailAtIndexZero() {
+		assertNull(Primitives.at(new PrimObject(2), PrimObject.number(0)));
+		assertNull(Primitives.at(new PrimObject(2), new PrimObject().javaValue(new BigDecimal(0))));
+	}
+
+	@Test
+	public void shouldFailAtIndexOfNil() {
+		assertNull(Primitives.at(new PrimObject(2), null));
+		assertNull(Primitives.at(new PrimObject(2), new PrimObject()));
+	}
+
+	@Test
+	public void shouldFailAtIndexBeyondSize() {
+		PrimObject receiver = new PrimObject(2);
+		PrimObject index = PrimObject.number(((PrimSmallInteger) Primitives.size(receiver)).value() + 1);
+		assertNull(Primitives.at(receiver, index));
+		assertNull(Primitives.atPut(receiver, index, new PrimObject()));
+	}
+
+	@Test
+	public void shouldFailAtIndexThatIsNotAnInteger() {
+		assertNull(Primitives.at(new PrimObject(2), new PrimObject().javaValue(new BigDecimal("1.5"))));
+		assertNull(Primitives.at(new PrimObject(2), PrimObject.number(BigInteger.ONE.shiftLeft(64).add(BigInteger.ONE))));
+	}
+
+	@Test
+	public void shouldAnswerSmallIntegerForSumThatFitsLong() {
+		PrimObject sum = Primitives.add(PrimObject.number(3), PrimObject.number(4));
+		assertTrue(sum instanceof PrimSmallInteger);
+		assertEquals(7, ((PrimSmallInteger) sum).value());
+	}
+
+	@Test
+	public void shouldPromoteToLargeIntegerWhenSumOverflows() {
+		PrimObject sum = Primitives.add(PrimObject.number(Long.MAX_VALUE), PrimObject.number(1));
+		assertFalse(sum instanceof PrimSmallInteger);
+		assertEquals(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE), sum.javaValue());
+	}
+
+	@Test
+	public void shouldPromoteToLargeIntegerWhenProductOverflows() {
+		PrimObject product = Primitives.multiply(PrimObject.number(Long.MIN_VALUE), PrimObject.number(-1));
+		assertEquals(BigInteger.valueOf(Long.MIN_VALUE).negate(), product.javaValue());
+	}
+
+	@Test
+	public void shouldAnswerSmallIntegerWhenLargeIntegerResultFitsLong() {
+		PrimObject large = PrimObject.number(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE));
+		PrimObject difference = Primitives.subtract(large, PrimObject.number(1));
+		assertTrue(difference instanceof PrimSmallInteger);
+		assertEquals(Long.MAX_VALUE, ((PrimSmallInteger) difference).value());
+	}
+
+	@Test
+	public void shouldCompareSmallIntegerWithLargeInteger() {
+		PrimObject large = PrimObject.number("100000000000000000000");
+		assertSame(PrimObject.TRUE, Primitives.lessThan(PrimObject.number(1), large));
+		assertSame(PrimObject.FALSE, Primitives.equal(large, PrimObject.number(1)));
+	}
+
+	@Test
+	public void shouldAnswerSmallIntegerForRadixLiteral() {
+		assertEquals(PrimObject.number(31), PrimObject.number("16r1F"));
+	}
+
+	@Test
+	public void shouldAnswerNormalisedFractionWhenDivisionIsInexact() {
+		PrimObject quotient = Primitives.divide(PrimObject.number(6), PrimObject.number(-4));
+		assertEquals(new PrimFraction(BigInteger.valueOf(-3), BigInteger.valueOf(2)), quotient);
+	}
+
+	@Test
+	public void shouldAnswerIntegerWhenFractionResultIsWhole() {
+		PrimObject half = Primitives.divide(PrimObject.number(1), PrimObject.number(2));
+		assertEquals(PrimObject.number(1), Primitives.add(half, half));
+	}
+
+	@Test
+	public void shouldCoerceToFloatWhenEitherArgumentIsFloat() {
+		PrimObject half = Primitives.divide(PrimObject.number(1), PrimObject.number(2));
+		PrimObject sum = Primitives.add(half, PrimObject.number("0.25"));
+		assertEquals(0.75, ((PrimFloat) sum).value(), 0);
+		assertSame(PrimObject.TRUE, Primitives.equal(PrimObject.number(2), PrimObject.number(2.0)));
+	}
+
+	@Test
+	public void shouldFindNegativeZeroInSetOfZero() {
+		Set<PrimObject> set = new HashSet<PrimObject>();
+		set.add(PrimObject.number(0.0));
+		assertTrue(set.contains(PrimObject.number(-0.0)));
+	}
+
+	@Test
+	public void shouldHashIntegralFloatAsEqualInteger() {
+		assertSame(PrimObject.TRUE, Primitives.equal(PrimObject.number(1), PrimObject.number(1.0)));
+		assertEquals(Primitives.hash(PrimObject.number(1)), Primitives.hash(PrimObject.number(1.0)));
+		assertEquals(Primitives.hash(PrimObject.number(-3)), Primitives.hash(PrimObject.number(-3.0)));
+	}
+
+	@Test
+	public void shouldCompareFractions() {
+		PrimObject third = Primitives.divide(PrimObject.number(1), PrimObject.number(3));
+		PrimObject half = Primitives.divide(PrimObject.number(1), PrimObject.number(2));
+		assertSame(PrimObject.TRUE, Primitives.lessThan(third, half));
+	}
+
+	@Test
+	public void shouldTruncateTowardZero() {
+		assertEquals(PrimObject.number(-2), Primitives.truncated(PrimObject.number(-2.7)));
+		assertEquals(PrimObject.number(-1), Primitives.truncated(Primitives.divide(PrimObject.number(-3), PrimObject.number(2))));
+	}
+
+	@Test
+	public void shouldAnswerExactNumberForExponentWithoutFractionPart() {
+		assertEquals(PrimObject.number(1000), PrimObject.number("1e3"));
+		assertEquals(new PrimFraction(BigInteger.ONE, BigInteger.valueOf(100)), PrimObject.number("1e-2"));
+	}
+
+	@Test
+	public void shouldAnswerFalseForEveryOrderingWithNaN() {
+		PrimObject nan = PrimObject.number(Double.NaN);
+		PrimObject one = PrimObject.number(1);
+		assertSame(PrimObject.FALSE, Primitives.greaterThan(nan, one));
+		assertSame(PrimObject.FALSE, Primitives.lessThan(one, nan));
+		assertSame(PrimObject.FALSE, Primitives.lessThan(nan, one));
+		assertSame(PrimObject.FALSE, Primitives.greaterThanOrEqual(nan, one));
+		assertSame(PrimObject.FALSE, Primitives.lessThanOrEqual(one, nan));
+		assertSame(PrimObject.FALSE, Primitives.greaterThanOrEqual(nan, nan));
+	}
+
+	@Test
+	public void shouldAnswerNaNNotEqualToItself() {
+		PrimObject nan = Primitives.divide(PrimObject.number(0.0), PrimObject.number(0.0));
+		assertSame(PrimObject.FALSE, Primitives.equal(nan, nan));
+		assertSame(PrimObject.TRUE, Primitives.notEqual(nan, nan));
+		assertSame(PrimObject.TRUE, Primitives.notEqual(nan, PrimObject.number(1)));
+	}
+
+	@Test
+	public void shouldFailWhenOperandIsNotANumber() {
+		PrimObject notANumber = new PrimObject();
+		assertNull(Primitives.add(PrimObject.number(3), notANumber));
+		assertNull(Primitives.add(PrimObject.number(3.5), notANumber));
+		assertNull(Primitives.multiply(notANumber, PrimObject.number(3)));
+		assertNull(Primitives.lessThan(PrimObject.number(3), notANumber));
+		assertNull(Primitives.equal(PrimObject.number(3), notANumber));
+	}
+
+	@Test
+	public void shouldFailWhenDividingByExactZero() {
+		assertNull(Primitives.divide(PrimObject.number(3), PrimObject.number(0)));
+		assertEquals(PrimObject.number(Double.POSITIVE_INFINITY), Primitives.divide(PrimObject.number(3.0), PrimObject.number(0)));
+	}
+
+	@Test
+	public void shouldInvokeMethodWhenPrimitiveFails() throws Throwable {
+		final PrimObject failed = new PrimObject();
+		PrimObject method = new PrimObjectBlock() {
+			protected PrimObject invoke1(PrimObject receiver, PrimObject arg1, PrimObject foundInClass, String selector) {
+				return failed;
+			}
+		};
+		MethodHandle invoker = IndyBootstrap.primitiveInvoker(Primitives.handleFor(21, 1), 1);
+		assertEquals(PrimObject.number(7), invoker.invokeWithArguments(method, PrimObject.number(3), PrimObject.number(4), null, "+"));
+		assertSame(failed, invoker.invokeWithArguments(method, PrimObject.number(3), new PrimObject(), null, "+"));
+	}
+
+	@Test
+	public void shouldAnswerNearestFloatForFraction() {
+		// 16 significant digits round this one to the wrong double.
+		assertEquals(PrimObject.number(17143660386170.0 / 72914193), Primitives.asFloat(fraction(17143660386170L, 72914193)));
+		assertEquals(PrimObject.number(-1.0 / 3), Primitives.asFloat(fraction(-1, 3)));
+		assertEquals(PrimObject.number(2 * Double.MIN_VALUE), Primitives.asFloat(new PrimFraction(BigInteger.valueOf(3), BigInteger.ONE.shiftLeft(1075))));
+		assertEquals(PrimObject.number(Double.POSITIVE_INFINITY), Primitives.asFloat(new PrimFraction(BigInteger.ONE.shiftLeft(1100), BigInteger.valueOf(3))));
+	}
+
+	@Test
+	public void shouldNotEnumerateEmptyInterval() {
+		List<PrimObject> elements = new ArrayList<PrimObject>();
+		PrimObject interval = interval(5, 1, 1);
+		assertSame(interval, Primitives.intervalDo(interval, block(elements)));
+		Primitives.intervalReverseDo(interval, block(elements));
+		assertTrue(elements.isEmpty());
+		assertEquals(PrimObject.number(0), Primitives.intervalSize(interval));
+		assertEquals(PrimObject.number(7), Primitives.intervalInjectInto(interval, PrimObject.number(7), block(elements)));
+		assertTrue(((List) Primitives.intervalCollect(interval, block(elements)).javaValue()).subList(1, 1).isEmpty());
+	}
+
+	@Test
+	public void shouldEnumerateIntervalWithNegativeStepInReverse() {
+		List<PrimObject> elements = new ArrayList<PrimObject>();
+		PrimObject interval = interval(10, 1, -3);
+		assertEquals(PrimObject.number(4), Primitives.intervalSize(interval));
+		Primitives.intervalDo(interval, block(elements));
+		assertEquals(Arrays.asList(PrimObject.number(10), PrimObject.number(7), PrimObject.number(4), PrimObject.number(1)), elements);
+		elements.clear();
+		Primitives.intervalReverseDo(interval, block(elements));
+		assertEquals(Arrays.asList(PrimObject.number(1), PrimObject.number(4), PrimObject.number(7), PrimObject.number(10)), elements);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldNotEnumerateIntervalWithZeroStep() {
+		Primitives.intervalDo(interval(1, 10, 0), block(new ArrayList<PrimObject>()));
+	}
+
+	@Test
+	public void shouldAnswerResultsOfCollectAndInjectInto() {
+		List<PrimObject> elements = new ArrayList<PrimObject>();
+		PrimObject interval = interval(1, 10, 3);
+		List collected = (List) Primitives.intervalCollect(interval, block(elements)).javaValue();
+		assertEquals(Arrays.asList(PrimObject.number(1), PrimObject.number(16), PrimObject.number(49), PrimObject.number(100)), collected.subList(1, collected.size()));
+		assertEquals(PrimObject.number(22), Primitives.intervalInjectInto(interval, PrimObject.number(0), block(elements)));
+	}
+
+	@Test
+	public void shouldAnswerReceiverOfToDo() {
+		List<PrimObject> elements = new ArrayList<PrimObject>();
+		PrimObject start = PrimObject.number(3);
+		assertSame(start, Primitives.toDo(start, PrimObject.number(5), block(elements)));
+		assertEquals(Arrays.asList(PrimObject.number(3), PrimObject.number(4), PrimObject.number(5)), elements);
+		elements.clear();
+		assertSame(start, Primitives.toDo(start, PrimObject.number(2), block(elements)));
+		assertTrue(elements.isEmpty());
+	}
+
+	@Test
+	public void shouldFailIntervalPrimitivesWhenSizeDoesNotFitLong() {
+		List<PrimObject> elements = new ArrayList<PrimObject>();
+		PrimObject interval = interval(PrimObject.number(0), quotientTruncatedTo(PrimObject.number(BigInteger.ONE.shiftLeft(64))), PrimObject.number(1));
+		assertNull(Primitives.intervalSize(interval));
+		assertNull(Primitives.intervalDo(interval, block(elements)));
+		assertNull(Primitives.intervalReverseDo(interval, block(elements)));
+		assertNull(Primitives.intervalCollect(interval, block(elements)));
+		assertNull(Primitives.intervalInjectInto(interval, PrimObject.number(0), block(elements)));
+		assertTrue(elements.isEmpty());
+		assertNull(Primitives.intervalSize(interval(PrimObject.number(0), quotientTruncatedTo(PrimObject.number(Long.MAX_VALUE)), PrimObject.number(1))));
+	}
+
+	@Test
+	public void shouldAnswerSizeBySendingWhenItFitsLong() {
+		PrimObject interval = interval(PrimObject.number(0), quotientTruncatedTo(PrimObject.number(1L << 62)), PrimObject.number(1));
+		assertEquals(PrimObject.number((1L << 62) + 1), Primitives.intervalSize(interval));
+	}
+
+	private PrimObject interval(long start, long stop, long step) {
+		return interval(PrimObject.number(start), PrimObject.number(stop), PrimObject.number(step));
+	}
+
+	private PrimObject interval(PrimObject start, PrimObject stop, PrimObject step) {
+		PrimObjectClass intervalClass = new PrimObjectClass();
+		intervalClass.variableIndexes().put("start", 1);
+		intervalClass.variableIndexes().put("stop", 2);
+		intervalClass.variableIndexes().put("step", 3);
+		PrimObject interval = new PrimObject(3);
+		interval.cls(intervalClass);
+		interval.variableAtPut("start", start);
+		interval.variableAtPut("stop", stop);
+		interval.variableAtPut("step", step);
+		return interval;
+	}
+
+	// answers a stop that isn't a SmallInteger, so the size is computed by sending - and / to it, which answer
+	// a quotient that isn't negative and truncates to the given integer.
+	private PrimObject quotientTruncatedTo(final PrimObject truncated) {
+		PrimObjectClass quotientClass = new PrimObjectClass();
+		PrimObject answersReceiver = new PrimObject() {
+			protected PrimObject invoke(PrimObject receiver, PrimContext context) {
+				return receiver;
+			}
+		};
+		quotientClass.methods().put("-", answersReceiver);
+		quotientClass.methods().put("/", answersReceiver);
+		quotientClass.methods().put("<", new PrimObject() {
+			protected PrimObject invoke(PrimObject receiver, PrimContext context) {
+				return new PrimObject();
+			}
+		});
+		quotientClass.methods().put("truncated", new PrimObject() {
+			protected PrimObject invoke(PrimObject receiver, PrimContext context) {
+				return truncated;
+			}
+		});
+		PrimObject quotient = new PrimObject();
+		quotient.cls(quotientClass);
+		return quotient;
+	}
+
+	// answers a block that records the elements it is given and answers their square, or the sum of two.
+	private PrimObject block(final List<PrimObject> elements) {
+		PrimObjectClass blockClass = new PrimObjectClass();
+		blockClass.methods().put("value:", new PrimObject() {
+			protected PrimObject invoke(PrimObject receiver, PrimContext context) {
+				elements.add(context.argumentAt(0));
+				return Primitives.multiply(context.argumentAt(0), context.argumentAt(0));
+			}
+		});
+		blockClass.methods().put("value:value:", new PrimObject() {
+			protected PrimObject invoke(PrimObject receiver, PrimContext context) {
+				return Primitives.add(context.argumentAt(0), context.argumentAt(1));
+			}
+		});
+		PrimObject block = new PrimObject();
+		block.cls(blockClass);
+		return block;
+	}
+
+	private PrimObject fraction(long numerator, long denominator) {
+		return Primitives.divide(PrimObject.number(numerator), PrimObject.number(denominator));
+	}
+}
@@ -0,0 +1,24 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution */
+package st.redline.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SelectorsTest {
+
+	@Test
+	public void shouldAnswerSameIdForEqualSelectors() {
+		assertEquals(Selectors.idOf("at:put:"), Selectors.idOf(new String("at:put:")));
+	}
+
+	@Test
+	public void shouldAnswerDifferentIdsForDifferentSelectors() {
+		assertTrue(Selectors.idOf("at:") != Selectors.idOf("at:put:"));
+	}
+
+	@Test
+	public void shouldAnswerSelectorNamedById() {
+		assertEquals("printOn:", Selectors.nameOf(Selectors.idOf("printOn:")));
+	}
+}